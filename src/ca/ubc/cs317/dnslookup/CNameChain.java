@@ -0,0 +1,69 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.*;
+
+/** A resolved chain of CNAME records leading from an alias to its canonical name. The chain is
+ * only valid as long as every one of its CNAME records is, so its expiration time is the
+ * earliest expiration time among them. Results for the canonical name are returned under the
+ * alias with the smaller of the chain's TTL and their own.
+ */
+public class CNameChain {
+
+    private final DNSNode alias;
+    private final List<ResourceRecord> cnames;
+    private final Date expirationTime;
+
+    /**
+     * @param alias  Host name and record type queried under the alias.
+     * @param cnames CNAME records of the chain, in order, starting with the alias' CNAME.
+     */
+    public CNameChain(DNSNode alias, List<ResourceRecord> cnames) {
+        if (cnames.isEmpty())
+            throw new IllegalArgumentException("A CNAME chain needs at least one record");
+
+        this.alias = alias;
+        this.cnames = Collections.unmodifiableList(new ArrayList<>(cnames));
+
+        Date earliest = cnames.get(0).getExpirationTime();
+        for (ResourceRecord cname : cnames)
+            if (cname.getExpirationTime().before(earliest))
+                earliest = cname.getExpirationTime();
+        this.expirationTime = earliest;
+    }
+
+    public DNSNode getAlias() {
+        return alias;
+    }
+
+    public List<ResourceRecord> getCNames() {
+        return cnames;
+    }
+
+    /**
+     * Returns the canonical name the chain leads to.
+     */
+    public String getTarget() {
+        return cnames.get(cnames.size() - 1).getTextResult();
+    }
+
+    public boolean isStillValid() {
+        return expirationTime.after(new Date());
+    }
+
+    /**
+     * Returns the results of the canonical name as results of the alias. Each result expires
+     * when either the result itself or the chain expires, whichever comes first.
+     *
+     * @param targetResults Results for the canonical name and the alias' record type.
+     * @return The results under the alias' host name.
+     */
+    public Set<ResourceRecord> flatten(Set<ResourceRecord> targetResults) {
+        Set<ResourceRecord> results = new HashSet<>();
+        for (ResourceRecord result : targetResults) {
+            Date expiration = result.getExpirationTime().before(expirationTime)
+                    ? result.getExpirationTime() : expirationTime;
+            results.add(new ResourceRecord(alias.getHostName(), expiration, result));
+        }
+        return results;
+    }
+}
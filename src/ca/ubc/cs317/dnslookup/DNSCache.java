@@ -1,5 +1,6 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.net.InetAddress;
 import java.util.*;
 import java.util.function.BiConsumer;
 
@@ -7,16 +8,36 @@ import java.util.function.BiConsumer;
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
  * the user.
+ *
+ * A cache is not thread-safe. When the resolver runs with several workers, each worker owns a
+ * separate cache (shard), which is only accessed from the worker's thread. A point-in-time
+ * snapshot shares the map of nodes and their record sets with the cache, and may be read from
+ * any thread while the worker keeps updating the cache: whatever a snapshot shares is copied
+ * before it is next modified, and so is a record set returned by getCachedResults. Taking a
+ * snapshot copies nothing, and sets nobody else holds are modified in place.
  */
 public class DNSCache {
 
+    public static final int MAX_INDEXED_NAMES = 100000;
+
     private static DNSCache instance = new DNSCache();
 
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private TreeMap<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    // the number of snapshots taken; record sets created before the last one are shared with it
+    private long snapshots = 0;
+    private boolean nodesShared = false;
+    private Map<DNSNode, CNameChain> cachedChains = new TreeMap<>();
+    private Map<String, Set<DNSNode>> chainsByHostName = new HashMap<>();
+    private Map<InetAddress, Map<String, Long>> namesByAddress = new HashMap<>();
+    // every name added to the address index, in order of expiration; a name whose expiration
+    // was extended since has a later entry too, and its earlier entries are skipped
+    private PriorityQueue<IndexedName> indexExpirations = new PriorityQueue<>(
+            Comparator.comparingLong(indexed -> indexed.expirationTime));
+    private int indexedNames = 0;
 
-    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
-     * method returns the single DNS cache instance.
+    /** Default instance retrieval method. This method returns the DNS cache instance used by
+     * code that does not run on a resolver worker.
      *
      * @return Instance of a DNS cache.
      */
@@ -37,10 +58,49 @@ public class DNSCache {
         if (results == null)
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid());
+        return share(removeExpired(node, results));
+    }
+
+    // returns a view of a record set for callers, which may keep it: the set is copied before
+    // it is next modified
+    private static Set<ResourceRecord> share(Map<ResourceRecord, ResourceRecord> results) {
+        if (results instanceof RecordSet)
+            ((RecordSet) results).shared = true;
         return Collections.unmodifiableSet(results.keySet());
     }
 
+    // replaces the records of a node with those still valid, returning the records kept
+    private Map<ResourceRecord, ResourceRecord> removeExpired(DNSNode node, Map<ResourceRecord, ResourceRecord> results) {
+        if (results.keySet().stream().allMatch(ResourceRecord::isStillValid))
+            return results;
+
+        RecordSet validResults = writableResults(node, results);
+        validResults.keySet().removeIf(record -> !record.isStillValid());
+        if (validResults.isEmpty())
+            writableNodes().remove(node);
+        return validResults;
+    }
+
+    // returns the map of nodes, copying it first if a snapshot shares it
+    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> writableNodes() {
+        if (nodesShared) {
+            cachedResults = new TreeMap<>(cachedResults);
+            nodesShared = false;
+        }
+        return cachedResults;
+    }
+
+    // returns the record set of a node for modification, storing a copy first if a snapshot or
+    // a caller shares the current set, or a new set if the node has none
+    private RecordSet writableResults(DNSNode node, Map<ResourceRecord, ResourceRecord> results) {
+        if (results instanceof RecordSet && !((RecordSet) results).shared
+                && ((RecordSet) results).snapshots == snapshots)
+            return (RecordSet) results;
+        RecordSet copy = new RecordSet(snapshots, results);
+        writableNodes().put(node, copy);
+        return copy;
+    }
+
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
      * record, otherwise the existing record is maintained.
@@ -49,18 +109,178 @@ public class DNSCache {
      *               of a DNS query.
      */
     public void addResult(ResourceRecord record) {
+        addResult(record, true);
+    }
+
+    /** Adds a resource record to the DNS cache, as addResult(ResourceRecord) does, adding the
+     * owner name of an address record to the address index only if requested. Address records
+     * of the authority and additional sections of a response (such as glue) are not indexed, so
+     * they are cached without being decoded.
+     *
+     * @param record  Resource record to be cached.
+     * @param indexed true if an address record is to be added to the address index.
+     */
+    public void addResult(ResourceRecord record, boolean indexed) {
 
         if (!record.isStillValid()) return;
 
         Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        ResourceRecord oldRecord = results != null ? results.get(record) : null;
+        if (oldRecord == null || oldRecord.expiresBefore(record)) {
+            writableResults(record.getNode(), results).put(record, record);
+            // encoded responses and CNAME chains holding this node no longer match the cached records
+            DNSPacketCache.forNode(record.getNode()).invalidate(record.getNode());
+            if (record.getType() == RecordType.CNAME)
+                removeChainsThrough(record.getHostName());
+            else if (indexed && (record.getType() == RecordType.A || record.getType() == RecordType.AAAA))
+                indexAddress(record);
         }
+    }
+
+    // adds the owner name of an address record to the address index, which is kept by the shard
+    // owning the reverse lookup name of the address
+    private void indexAddress(ResourceRecord record) {
+        InetAddress address = record.getInetResult();
+        if (address == null) return;
+
+        String hostName = record.getHostName();
+        long expirationTime = record.getExpirationTime().getTime();
+        DNSResolverWorker owner = DNSResolverWorker.forNode(
+                new DNSNode(ReverseName.forAddress(address), RecordType.PTR));
+        if (owner == null || owner.getCache() == this) {
+            addAddressName(address, hostName, expirationTime);
+        } else {
+            owner.submit(() -> {
+                owner.getCache().addAddressName(address, hostName, expirationTime);
+                return null;
+            });
+        }
+    }
+
+    // adds a name to the address index, first evicting expired names, and then the names
+    // expiring soonest if the index is full
+    private void addAddressName(InetAddress address, String hostName, long expirationTime) {
+        long now = System.currentTimeMillis();
+        while (!indexExpirations.isEmpty() && (indexExpirations.peek().expirationTime <= now
+                || indexedNames >= MAX_INDEXED_NAMES))
+            evictAddressName(indexExpirations.poll());
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+        Map<String, Long> names = namesByAddress.computeIfAbsent(address,
+                key -> new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+        Long oldExpirationTime = names.get(hostName);
+        if (oldExpirationTime != null && oldExpirationTime >= expirationTime)
+            return;
+        if (oldExpirationTime == null)
+            indexedNames++;
+        names.put(hostName, expirationTime);
+        indexExpirations.add(new IndexedName(address, hostName, expirationTime));
+    }
+
+    // removes a name from the address index, unless its expiration was extended since the entry
+    private void evictAddressName(IndexedName indexed) {
+        Map<String, Long> names = namesByAddress.get(indexed.address);
+        if (names == null) return;
+        Long expirationTime = names.get(indexed.hostName);
+        if (expirationTime == null || expirationTime != indexed.expirationTime) return;
+
+        names.remove(indexed.hostName);
+        indexedNames--;
+        if (names.isEmpty())
+            namesByAddress.remove(indexed.address);
+    }
+
+    /** Returns the number of names in the address index, including names that expired but were
+     * not evicted yet.
+     */
+    public int getIndexedNameCount() {
+        return indexedNames;
+    }
+
+    /** Returns the owner names of the cached A and AAAA records holding an address, along with
+     * the expiration time (in milliseconds since the epoch) of each. Only the names of records
+     * whose reverse lookup name this cache owns are indexed, and only records of the answer
+     * section of a response (see addResult(ResourceRecord, boolean)). Expired names are removed from the
+     * index before returning; the names of other addresses are evicted once they expire, and
+     * the index holds at most MAX_INDEXED_NAMES names, evicting those expiring soonest first.
+     *
+     * @param address IPv4 or IPv6 address.
+     * @return A potentially empty map of host names to expiration times.
+     */
+    public Map<String, Long> getNamesForAddress(InetAddress address) {
+        Map<String, Long> names = namesByAddress.get(address);
+        if (names == null)
+            return Collections.emptyMap();
+
+        long now = System.currentTimeMillis();
+        int before = names.size();
+        names.values().removeIf(expirationTime -> expirationTime <= now);
+        indexedNames -= before - names.size();
+        if (names.isEmpty())
+            namesByAddress.remove(address);
+        return Collections.unmodifiableMap(names);
+    }
+
+    /** Returns the CNAME chain cached for a query, or null if no valid chain is cached. Expired
+     * chains are removed from the cache before returning.
+     *
+     * @param node DNS query (alias and record type) to obtain the cached chain.
+     * @return The cached chain, or null.
+     */
+    public CNameChain getCachedChain(DNSNode node) {
+        CNameChain chain = cachedChains.get(node);
+        if (chain != null && !chain.isStillValid()) {
+            removeChain(chain);
+            return null;
+        }
+        return chain;
+    }
+
+    /** Adds a resolved CNAME chain to the cache, replacing any chain cached for the same alias.
+     * The chain is removed if a CNAME record for one of the host names it goes through is added
+     * or replaced.
+     *
+     * @param chain Resolved CNAME chain.
+     */
+    public void addChain(CNameChain chain) {
+        CNameChain oldChain = cachedChains.get(chain.getAlias());
+        if (oldChain != null)
+            removeChain(oldChain);
+
+        cachedChains.put(chain.getAlias(), chain);
+        for (ResourceRecord cname : chain.getCNames())
+            chainsByHostName.computeIfAbsent(cname.getHostName().toLowerCase(Locale.ROOT), name -> new HashSet<>())
+                    .add(chain.getAlias());
+    }
+
+    private void removeChain(CNameChain chain) {
+        cachedChains.remove(chain.getAlias());
+        for (ResourceRecord cname : chain.getCNames()) {
+            String hostName = cname.getHostName().toLowerCase(Locale.ROOT);
+            Set<DNSNode> aliases = chainsByHostName.get(hostName);
+            if (aliases != null && aliases.remove(chain.getAlias()) && aliases.isEmpty())
+                chainsByHostName.remove(hostName);
+        }
+    }
+
+    private void removeChainsThrough(String hostName) {
+        Set<DNSNode> aliases = chainsByHostName.get(hostName.toLowerCase(Locale.ROOT));
+        if (aliases == null) return;
+        for (DNSNode alias : new ArrayList<>(aliases)) {
+            CNameChain chain = cachedChains.get(alias);
+            if (chain != null)
+                removeChain(chain);
+        }
+    }
+
+    /** Returns a point-in-time snapshot of the cached records. Taking the snapshot copies
+     * nothing; the snapshot may then be read from any thread.
+     *
+     * @return A snapshot of the cache contents.
+     */
+    public DNSCacheSnapshot snapshot() {
+        nodesShared = true;
+        snapshots++;
+        return new DNSCacheSnapshot(Collections.unmodifiableSortedMap(cachedResults), System.currentTimeMillis());
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
@@ -70,10 +290,10 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (DNSNode node : new ArrayList<>(cachedResults.keySet())) {
+            Map<ResourceRecord, ResourceRecord> results = removeExpired(node, cachedResults.get(node));
+            if (!results.isEmpty())
+                consumer.accept(node, share(results));
         }
     }
 
@@ -84,10 +304,31 @@ public class DNSCache {
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        forEachNode((node, results) -> results.forEach(record -> consumer.accept(node, record)));
+    }
+
+    // the records of a node, tagged with the number of snapshots taken when the set was created
+    private static class RecordSet extends HashMap<ResourceRecord, ResourceRecord> {
+        private static final long serialVersionUID = 1L;
+
+        private final long snapshots;
+        private boolean shared = false;
+
+        private RecordSet(long snapshots, Map<ResourceRecord, ResourceRecord> results) {
+            super(results != null ? results : Collections.emptyMap());
+            this.snapshots = snapshots;
         }
     }
 
-}
\ No newline at end of file
+    private static class IndexedName {
+        private final InetAddress address;
+        private final String hostName;
+        private final long expirationTime;
+
+        private IndexedName(InetAddress address, String hostName, long expirationTime) {
+            this.address = address;
+            this.hostName = hostName;
+            this.expirationTime = expirationTime;
+        }
+    }
+}
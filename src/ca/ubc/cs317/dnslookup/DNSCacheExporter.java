@@ -0,0 +1,152 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Writes cache snapshots to a stream, in pages: records are buffered and the stream is flushed
+ * every PAGE_SIZE records, so a large dump starts appearing right away and never holds more than
+ * a page in memory. Exporting only reads snapshots, so it runs off the resolver workers and does
+ * not slow down lookups. The snapshots of the shards are merged as they are read, so the records
+ * of all shards come out in a single node order.
+ *
+ * Three formats are supported: the text format printed by the lookup commands, JSON lines (one
+ * object per record), and a compact binary format written with a DataOutputStream:
+ *
+ *   header:  int magic ("DNSD"), short version, long snapshot time (milliseconds since the epoch)
+ *   record:  byte 1, UTF host name, short type code, int TTL, then either byte address length
+ *            and the address bytes (A and AAAA), or byte 0 and the UTF text of the record
+ *   end:     byte 0
+ */
+public class DNSCacheExporter {
+
+    public static final int PAGE_SIZE = 1000;
+
+    private static final int BINARY_MAGIC = 0x444E5344;
+    private static final short BINARY_VERSION = 1;
+
+    public enum Format {
+        TEXT, JSON, BINARY
+    }
+
+    private final Format format;
+    private final String prefix;
+    private final RecordType type;
+
+    /**
+     * @param format Output format.
+     * @param prefix Prefix of the host names to export (case-insensitive), or null for all.
+     * @param type   Record type to export, or null for all.
+     */
+    public DNSCacheExporter(Format format, String prefix, RecordType type) {
+        this.format = format;
+        this.prefix = prefix;
+        this.type = type;
+    }
+
+    /**
+     * Writes the records of a set of snapshots (typically one per cache shard) to a stream, in
+     * node order across all snapshots. The stream is flushed but not closed.
+     *
+     * @param snapshots Snapshots to export.
+     * @param out       Stream the records are written to.
+     * @return The number of records written.
+     * @throws IOException if the stream could not be written to.
+     */
+    public long export(List<DNSCacheSnapshot> snapshots, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        Writer text = new OutputStreamWriter(data, StandardCharsets.UTF_8);
+        long count = 0;
+
+        if (format == Format.BINARY) {
+            data.writeInt(BINARY_MAGIC);
+            data.writeShort(BINARY_VERSION);
+            data.writeLong(snapshots.isEmpty() ? System.currentTimeMillis() : snapshots.get(0).getTime());
+        }
+        // k-way merge: each shard's nodes are already in order, so the next node overall is the
+        // smallest of the shards' next nodes
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>(Comparator.comparing(cursor -> cursor.node.getKey()));
+        for (DNSCacheSnapshot snapshot : snapshots) {
+            Cursor cursor = new Cursor(snapshot, snapshot.nodes(prefix, type));
+            if (cursor.advance())
+                cursors.add(cursor);
+        }
+        while (!cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            DNSNode node = cursor.node.getKey();
+            List<ResourceRecord> records = cursor.node.getValue();
+            records.sort(Comparator.comparing(ResourceRecord::getTextResult));
+            for (ResourceRecord record : records) {
+                long ttl = cursor.snapshot.getTTL(record);
+                if (format == Format.BINARY)
+                    writeBinary(data, node, ttl, record);
+                else
+                    text.write(format == Format.JSON ? toJson(node, ttl, record)
+                            : String.format("%-30s %-5s %-8d %s\n", node.getHostName(), node.getType(), ttl,
+                            record.getTextResult()));
+                if (++count % PAGE_SIZE == 0) {
+                    text.flush();
+                    data.flush();
+                }
+            }
+            if (cursor.advance())
+                cursors.add(cursor);
+        }
+        if (format == Format.BINARY)
+            data.writeByte(0);
+        text.flush();
+        data.flush();
+        return count;
+    }
+
+    private static void writeBinary(DataOutputStream data, DNSNode node, long ttl, ResourceRecord record)
+            throws IOException {
+        data.writeByte(1);
+        data.writeUTF(node.getHostName());
+        data.writeShort(node.getType().getCode());
+        data.writeInt((int) ttl);
+        if (record.getInetResult() != null) {
+            byte[] address = record.getInetResult().getAddress();
+            data.writeByte(address.length);
+            data.write(address);
+        } else {
+            data.writeByte(0);
+            data.writeUTF(record.getTextResult());
+        }
+    }
+
+    private static String toJson(DNSNode node, long ttl, ResourceRecord record) {
+        return "{\"name\":" + jsonString(node.getHostName()) + ",\"type\":\"" + node.getType()
+                + "\",\"ttl\":" + ttl + ",\"data\":" + jsonString(record.getTextResult()) + "}\n";
+    }
+
+    private static String jsonString(String value) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\')
+                builder.append('\\').append(c);
+            else if (c < 0x20)
+                builder.append(String.format("\\u%04x", (int) c));
+            else
+                builder.append(c);
+        }
+        return builder.append('"').toString();
+    }
+
+    // the next node of a snapshot in the merge
+    private static class Cursor {
+        private final DNSCacheSnapshot snapshot;
+        private final Iterator<Map.Entry<DNSNode, List<ResourceRecord>>> nodes;
+        private Map.Entry<DNSNode, List<ResourceRecord>> node;
+
+        private Cursor(DNSCacheSnapshot snapshot, Iterator<Map.Entry<DNSNode, List<ResourceRecord>>> nodes) {
+            this.snapshot = snapshot;
+            this.nodes = nodes;
+        }
+
+        private boolean advance() {
+            node = nodes.hasNext() ? nodes.next() : null;
+            return node != null;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/** A point-in-time view of the records of a cache (shard). The snapshot shares the map of nodes
+ * and the record sets of the cache, which the cache copies rather than modifies once shared, so
+ * it stays consistent while the cache keeps changing, and may be read from any thread. Records are considered valid if they had not
+ * expired when the snapshot was taken, and their TTL is computed relative to that time.
+ */
+public class DNSCacheSnapshot {
+
+    private final SortedMap<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults;
+    private final long time;
+
+    DNSCacheSnapshot(SortedMap<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults, long time) {
+        this.cachedResults = cachedResults;
+        this.time = time;
+    }
+
+    /**
+     * Returns the time (in milliseconds since the epoch) at which the snapshot was taken.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the number of nodes in the snapshot, including nodes whose records have all expired.
+     */
+    public int size() {
+        return cachedResults.size();
+    }
+
+    /**
+     * Returns the TTL a record had when the snapshot was taken.
+     *
+     * @param record Record of the snapshot.
+     * @return The number of seconds, rounded up, until the record expires.
+     */
+    public long getTTL(ResourceRecord record) {
+        return (record.getExpirationTime().getTime() - time + 999) / 1000;
+    }
+
+    /** Performs an action for each record that was valid when the snapshot was taken, in node
+     * order, optionally restricted to host names starting with a prefix and to a record type.
+     *
+     * @param prefix   Prefix of the host names to include (case-insensitive), or null for all.
+     * @param type     Record type to include, or null for all.
+     * @param consumer Action to be performed for each query and record.
+     */
+    public void forEachRecord(String prefix, RecordType type, BiConsumer<DNSNode, ResourceRecord> consumer) {
+        Iterator<Map.Entry<DNSNode, List<ResourceRecord>>> nodes = nodes(prefix, type);
+        while (nodes.hasNext()) {
+            Map.Entry<DNSNode, List<ResourceRecord>> entry = nodes.next();
+            for (ResourceRecord record : entry.getValue())
+                consumer.accept(entry.getKey(), record);
+        }
+    }
+
+    /** Returns an iterator over the nodes with records that were valid when the snapshot was
+     * taken, in node order, optionally restricted to host names starting with a prefix and to a
+     * record type. Each node comes with its valid records. Nodes are only read as the iterator
+     * advances, so several snapshots can be merged in node order without copying them.
+     *
+     * @param prefix Prefix of the host names to include (case-insensitive), or null for all.
+     * @param type   Record type to include, or null for all.
+     * @return An iterator over the nodes and their records.
+     */
+    public Iterator<Map.Entry<DNSNode, List<ResourceRecord>>> nodes(String prefix, RecordType type) {
+        SortedMap<DNSNode, Map<ResourceRecord, ResourceRecord>> range = cachedResults;
+        String lowerPrefix = prefix != null ? prefix.toLowerCase(Locale.ROOT) : null;
+        // nodes are ordered by host name first, so matching names are contiguous
+        if (lowerPrefix != null)
+            range = cachedResults.tailMap(new DNSNode(lowerPrefix, RecordType.values()[0]));
+        Iterator<Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>>> entries = range.entrySet().iterator();
+
+        return new Iterator<>() {
+            private Map.Entry<DNSNode, List<ResourceRecord>> next = advance();
+
+            // finds the next node in range with valid records, or returns null past the last one
+            private Map.Entry<DNSNode, List<ResourceRecord>> advance() {
+                while (entries.hasNext()) {
+                    Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry = entries.next();
+                    DNSNode node = entry.getKey();
+                    if (lowerPrefix != null && !node.getHostName().toLowerCase(Locale.ROOT).startsWith(lowerPrefix))
+                        return null;
+                    if (type != null && node.getType() != type)
+                        continue;
+                    List<ResourceRecord> records = new ArrayList<>();
+                    for (ResourceRecord record : entry.getValue().keySet())
+                        if (record.getExpirationTime().getTime() > time)
+                            records.add(record);
+                    if (!records.isEmpty())
+                        return new AbstractMap.SimpleImmutableEntry<>(node, records);
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<DNSNode, List<ResourceRecord>> next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                Map.Entry<DNSNode, List<ResourceRecord>> current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+}
@@ -0,0 +1,164 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The name servers of the zones delegated in the referrals the resolver has followed, so a
+ * lookup can start at the servers of the closest enclosing zone instead of a root server. A
+ * referral names the servers of a zone (NS records) and usually their addresses (glue A
+ * records); a zone is kept only with the glue addresses of its servers. Since the table steers
+ * every later lookup in a zone, a referral is only trusted for zones below the zone of the server
+ * that sent it, and for glue within its bailiwick.
+ *
+ * The table is shared by all workers, since the names of a zone hash to every cache shard: a
+ * referral learnt by one worker is used by all of them without being copied into each shard.
+ * It is read by every lookup and written only on referrals, so each zone's servers are an
+ * immutable entry that is replaced as a whole. Zones are kept until the first of their NS and
+ * glue records expires.
+ */
+public class DNSDelegations {
+
+    public static final int MAX_ZONES = 100000;
+
+    private static DNSDelegations instance = new DNSDelegations();
+
+    private final Map<String, Delegation> zones = new ConcurrentHashMap<>();
+
+    /** Singleton retrieval method. This method returns the single delegation table.
+     *
+     * @return Instance of the delegation table.
+     */
+    public static DNSDelegations getInstance() {
+        return instance;
+    }
+
+    /**
+     * Adds the delegations of a referral: the NS records of each zone, with the glue addresses
+     * of its servers. Zones that do not enclose the queried name, and the root zone (whose
+     * servers are known from the root hints), are ignored. So are zones that are not strictly
+     * below the zone of the server that sent the referral, which could otherwise take over the
+     * lookups of an enclosing zone. Glue addresses are only used if their name is within the
+     * delegated zone or the server's zone. A zone without such glue addresses is ignored too, as
+     * its servers cannot be queried without a lookup of their own.
+     *
+     * @param hostName   Name that was queried.
+     * @param serverZone Zone the server that sent the referral was queried as a name server of
+     *                   ("" for the root zone). A referral from a server whose zone is not known
+     *                   (null) is ignored.
+     * @param referral   Records of the referral response.
+     */
+    public void addReferral(String hostName, String serverZone, Collection<ResourceRecord> referral) {
+        if (serverZone == null) return;
+        String name = normalize(hostName);
+        String bailiwick = normalize(serverZone);
+        Map<String, List<String>> nameServersByZone = new HashMap<>();
+        Map<String, Long> expirationByZone = new HashMap<>();
+        for (ResourceRecord rr : referral) {
+            if (rr.getType() != RecordType.NS || rr.getTextResult() == null) continue;
+            String zone = normalize(rr.getHostName());
+            if (zone.isEmpty() || !isWithin(name, zone) || zone.equals(bailiwick) || !isWithin(zone, bailiwick))
+                continue;
+            nameServersByZone.computeIfAbsent(zone, z -> new ArrayList<>()).add(normalize(rr.getTextResult()));
+            expirationByZone.merge(zone, rr.getExpirationTime().getTime(), Math::min);
+        }
+        if (nameServersByZone.isEmpty()) return;
+
+        Map<String, List<ResourceRecord>> glue = new HashMap<>();
+        for (ResourceRecord rr : referral)
+            if (rr.getType() == RecordType.A && rr.getInetResult() != null)
+                glue.computeIfAbsent(normalize(rr.getHostName()), n -> new ArrayList<>()).add(rr);
+
+        for (Map.Entry<String, List<String>> entry : nameServersByZone.entrySet()) {
+            String zone = entry.getKey();
+            long expirationTime = expirationByZone.get(zone);
+            List<InetAddress> servers = new ArrayList<>();
+            for (String nameServer : entry.getValue()) {
+                if (!isWithin(nameServer, zone) && !isWithin(nameServer, bailiwick)) continue;
+                for (ResourceRecord address : glue.getOrDefault(nameServer, Collections.emptyList())) {
+                    servers.add(address.getInetResult());
+                    expirationTime = Math.min(expirationTime, address.getExpirationTime().getTime());
+                }
+            }
+            if (!servers.isEmpty())
+                put(zone, new Delegation(zone, Collections.unmodifiableList(servers), expirationTime));
+        }
+    }
+
+    // adds a delegation, unless the table is full even after dropping its expired delegations
+    private void put(String zone, Delegation delegation) {
+        if (zones.size() >= MAX_ZONES && !zones.containsKey(zone)) {
+            long now = System.currentTimeMillis();
+            zones.values().removeIf(d -> d.expirationTime <= now);
+            if (zones.size() >= MAX_ZONES) return;
+        }
+        zones.put(zone, delegation);
+    }
+
+    /**
+     * Returns the delegation of the closest zone (below the root) enclosing a name that is
+     * still valid. Expired delegations found on the way are removed.
+     *
+     * @param hostName Fully qualified domain name.
+     * @return The delegation, or null if no enclosing zone is known.
+     */
+    public Delegation find(String hostName) {
+        if (zones.isEmpty()) return null;
+        long now = System.currentTimeMillis();
+        String zone = normalize(hostName);
+        while (!zone.isEmpty()) {
+            Delegation delegation = zones.get(zone);
+            if (delegation != null) {
+                if (delegation.expirationTime > now)
+                    return delegation;
+                zones.remove(zone, delegation);
+            }
+            int dot = zone.indexOf('.');
+            zone = dot < 0 ? "" : zone.substring(dot + 1);
+        }
+        return null;
+    }
+
+    public int size() {
+        return zones.size();
+    }
+
+    /**
+     * Forgets every delegation.
+     */
+    public void clear() {
+        zones.clear();
+    }
+
+    // lower-cases a name and strips its trailing dot, so "." becomes the root name
+    private static String normalize(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static boolean isWithin(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    /** The name server addresses of a zone, valid until the first of its records expires.
+     */
+    public static class Delegation {
+        private final String zone;
+        private final List<InetAddress> servers;
+        private final long expirationTime;
+
+        private Delegation(String zone, List<InetAddress> servers, long expirationTime) {
+            this.zone = zone;
+            this.servers = servers;
+            this.expirationTime = expirationTime;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public List<InetAddress> getServers() {
+            return servers;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/** Ranges of names known not to exist, taken from the NSEC and NSEC3 records of negative
+ * responses (RFC 8198). An NSEC record denies the names between its owner and the next name of
+ * its zone in canonical order; an NSEC3 record denies the names whose hashes fall between the
+ * hash in its owner name and the next hash. A name does not exist if a cached range covers it
+ * and another covers the wildcard that could have synthesised it, so it can be answered with
+ * NXDOMAIN without querying the servers of its zone. Floods of random names in a signed zone
+ * stop reaching its servers once the zone's ranges are cached.
+ *
+ * The index is shared by all workers, since the names of a single range hash to every cache
+ * shard. Each zone keeps its ranges sorted by their start, so the range that may cover a name
+ * is found with a single floor lookup. Ranges are kept until the first of their TTL, the
+ * negative TTL of their zone (SOA TTL and minimum) and the expiration of their signature.
+ *
+ * Signatures are not validated, so a range could deny every name of its zone on the word of any
+ * server. Ranges are therefore only taken from authoritative negative responses (NXDOMAIN or
+ * NODATA), for a zone that encloses the question of the response and is at or below the zone
+ * the responding server was queried for: a server can only deny names it is responsible for.
+ */
+public class DNSDenialIndex {
+
+    public static final int MAX_RANGES_PER_ZONE = 10000;
+    // NSEC3 records with more hash iterations are ignored, as they are costly to check (RFC 9276)
+    public static final int MAX_NSEC3_ITERATIONS = 100;
+
+    private static final int NSEC3_HASH_SHA1 = 1;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int TYPE_DNAME = 39;
+
+    private static DNSDenialIndex instance = new DNSDenialIndex();
+
+    private final Map<String, Zone> zones = new ConcurrentHashMap<>();
+
+    /** Singleton retrieval method. This method returns the single denial index.
+     *
+     * @return Instance of the denial index.
+     */
+    public static DNSDenialIndex getInstance() {
+        return instance;
+    }
+
+    /**
+     * Adds the NSEC and NSEC3 records of the authority section of a response, if it is an
+     * authoritative name error (NXDOMAIN) or an authoritative response without answers (NODATA).
+     * The zone of each record is the signer name of its RRSIG record, or else the owner of the
+     * response's SOA record. Records are ignored if their zone does not enclose the question, is
+     * above the zone of the server, or has no SOA record in the response (which gives the
+     * negative TTL of the zone). Records that do not belong to their zone, whose signature has
+     * expired or whose NSEC3 parameters are not supported are ignored too.
+     *
+     * @param qname         Name of the question of the response.
+     * @param serverZone    Zone the server was queried as a name server of ("" for the root
+     *                      zone), or null if it is not known, in which case nothing is added.
+     * @param authoritative true if the response is authoritative (AA flag).
+     * @param rcode         Response code of the response.
+     * @param answerCount   Number of records in the answer section of the response.
+     * @param authority     Records of the authority section.
+     */
+    public void addAuthority(String qname, String serverZone, boolean authoritative, int rcode, int answerCount,
+                             Collection<ResourceRecord> authority) {
+        if (serverZone == null || !authoritative) return;
+        if (rcode != RCODE_NXDOMAIN && (rcode != RCODE_NOERROR || answerCount > 0)) return;
+        String name = normalize(qname);
+        String server = normalize(serverZone);
+
+        ResourceRecord soa = null;
+        Map<String, RecordData.RRSIG> signatures = new HashMap<>();
+        for (ResourceRecord rr : authority) {
+            if (rr.getType() == RecordType.SOA && soa == null) {
+                soa = rr;
+            } else if (rr.getType() == RecordType.RRSIG) {
+                RecordData.RRSIG rrsig = rr.getRRSIGResult();
+                if (rrsig != null)
+                    signatures.put(normalize(rr.getHostName()) + "/" + rrsig.getTypeCovered(), rrsig);
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        for (ResourceRecord rr : authority) {
+            if (rr.getType() != RecordType.NSEC && rr.getType() != RecordType.NSEC3) continue;
+
+            String owner = normalize(rr.getHostName());
+            RecordData.RRSIG rrsig = signatures.get(owner + "/" + rr.getType().getCode());
+            String zoneName = rrsig != null ? normalize(rrsig.getSignerName())
+                    : soa != null ? normalize(soa.getHostName()) : null;
+            if (zoneName == null || !isWithin(owner, zoneName) || !isWithin(name, zoneName)
+                    || !isWithin(zoneName, server)) continue;
+            if (soa == null || soa.getSOAResult() == null || !zoneName.equals(normalize(soa.getHostName())))
+                continue;
+
+            // a range lives no longer than its record, nor than the negative TTL of its zone
+            long expirationTime = Math.min(rr.getExpirationTime().getTime(), soa.getExpirationTime().getTime());
+            expirationTime = Math.min(expirationTime, now + soa.getSOAResult().getMinimum() * 1000);
+            if (rrsig != null)
+                expirationTime = Math.min(expirationTime, rrsig.getExpiration() * 1000);
+            if (expirationTime <= now) continue;
+
+            if (rr.getType() == RecordType.NSEC)
+                addNSEC(zoneName, owner, rr.getNSECResult(), expirationTime);
+            else
+                addNSEC3(zoneName, owner, rr.getNSEC3Result(), expirationTime);
+        }
+    }
+
+    private void addNSEC(String zoneName, String owner, RecordData.NSEC nsec, long expirationTime) {
+        if (nsec == null) return;
+        String next = normalize(nsec.getNextDomainName());
+        if (!isWithin(next, zoneName)) return;
+
+        Zone zone = zones.computeIfAbsent(zoneName, Zone::new);
+        zone.put(zone.nsecRanges, canonicalKey(owner), new Range(canonicalKey(owner), canonicalKey(next),
+                owner, next, expirationTime, isDelegation(nsec.getTypes()), false));
+    }
+
+    private void addNSEC3(String zoneName, String owner, RecordData.NSEC3 nsec3, long expirationTime) {
+        if (nsec3 == null || nsec3.getHashAlgorithm() != NSEC3_HASH_SHA1
+                || nsec3.getIterations() > MAX_NSEC3_ITERATIONS) return;
+        // the owner name is the hash of a name of the zone, as a label right under the apex
+        int dot = owner.indexOf('.');
+        if (dot < 0 || !owner.substring(dot + 1).equals(zoneName)) return;
+
+        String hash = owner.substring(0, dot);
+        Zone zone = zones.computeIfAbsent(zoneName, Zone::new);
+        zone.setNSEC3Parameters(nsec3.getIterations(), nsec3.getSalt());
+        zone.put(zone.nsec3Ranges, hash, new Range(hash, nsec3.getNextHashedOwnerName().toLowerCase(Locale.ROOT),
+                null, null, expirationTime, isDelegation(nsec3.getTypes()), nsec3.isOptOut()));
+    }
+
+    // returns true if the names below an owner with these types belong to another zone (a
+    // delegation, with NS but no SOA), or are redirected elsewhere (DNAME)
+    private static boolean isDelegation(Set<Integer> types) {
+        return (types.contains(RecordType.NS.getCode()) && !types.contains(RecordType.SOA.getCode()))
+                || types.contains(TYPE_DNAME);
+    }
+
+    /**
+     * Returns true if cached, still valid ranges prove that a name does not exist: one covering
+     * the name (or, with NSEC3, the next closer name) and one covering the wildcard at its
+     * closest encloser.
+     *
+     * @param hostName Fully qualified domain name.
+     * @return true if the name is known not to exist.
+     */
+    public boolean isDenied(String hostName) {
+        if (zones.isEmpty()) return false;
+        String name = normalize(hostName);
+
+        // ranges are looked up in the closest enclosing zone that has any
+        String zoneName = name;
+        Zone zone;
+        while ((zone = zones.get(zoneName)) == null) {
+            if (zoneName.isEmpty()) return false;
+            zoneName = parent(zoneName);
+        }
+        if (zoneName.equals(name)) return false;
+
+        long now = System.currentTimeMillis();
+        return isDeniedByNSEC(zone, name, now) || isDeniedByNSEC3(zone, name, now);
+    }
+
+    private static boolean isDeniedByNSEC(Zone zone, String name, long now) {
+        Range range = findCovering(zone.nsecRanges, canonicalKey(name), now);
+        if (range == null || (range.delegation && isWithin(name, range.ownerName))) return false;
+
+        // the closest encloser is the longest ancestor the name shares with either end of the range
+        String ownerAncestor = commonAncestor(name, range.ownerName);
+        String nextAncestor = commonAncestor(name, range.nextName);
+        String closestEncloser = ownerAncestor.length() > nextAncestor.length() ? ownerAncestor : nextAncestor;
+
+        String wildcard = wildcard(closestEncloser);
+        Range wildcardRange = findCovering(zone.nsecRanges, canonicalKey(wildcard), now);
+        return wildcardRange != null && !(wildcardRange.delegation && isWithin(wildcard, wildcardRange.ownerName));
+    }
+
+    private static boolean isDeniedByNSEC3(Zone zone, String name, long now) {
+        Zone.NSEC3Parameters parameters = zone.nsec3Parameters;
+        if (parameters == null || zone.nsec3Ranges.isEmpty()) return false;
+
+        // the closest encloser is the closest ancestor of the name whose hash is an owner name
+        String nextCloser = name;
+        String ancestor = parent(name);
+        while (true) {
+            Range match = zone.nsec3Ranges.get(parameters.hash(ancestor));
+            if (match != null && match.expirationTime > now) {
+                if (match.delegation) return false;
+                // opt-out ranges may hide unsigned delegations, so they do not prove anything
+                Range nextCloserRange = findCovering(zone.nsec3Ranges, parameters.hash(nextCloser), now);
+                Range wildcardRange = findCovering(zone.nsec3Ranges, parameters.hash(wildcard(ancestor)), now);
+                return nextCloserRange != null && !nextCloserRange.optOut && wildcardRange != null;
+            }
+            if (ancestor.equals(zone.name)) return false;
+            nextCloser = ancestor;
+            ancestor = parent(ancestor);
+        }
+    }
+
+    // returns the still valid range that covers a key, without matching it, or null if none
+    // does; expired ranges found on the way are removed
+    private static Range findCovering(ConcurrentSkipListMap<String, Range> ranges, String key, long now) {
+        Map.Entry<String, Range> entry = ranges.floorEntry(key);
+        // keys before the first range can only be covered by the last one, which wraps around
+        if (entry == null) entry = ranges.lastEntry();
+        if (entry == null) return null;
+
+        Range range = entry.getValue();
+        if (range.expirationTime <= now) {
+            ranges.remove(entry.getKey(), range);
+            return null;
+        }
+        return range.covers(key) ? range : null;
+    }
+
+    /**
+     * Prints the number of NSEC and NSEC3 ranges cached for each zone.
+     */
+    public void printStatus() {
+        if (zones.isEmpty()) {
+            System.out.println("No denial ranges are cached.");
+            return;
+        }
+        System.out.printf("%-30s %-12s %s\n", "Zone", "NSEC", "NSEC3");
+        for (Zone zone : new TreeMap<>(zones).values())
+            System.out.printf("%-30s %-12d %d\n", zone.name.isEmpty() ? "." : zone.name,
+                    zone.nsecRanges.size(), zone.nsec3Ranges.size());
+    }
+
+    // lower-cases a name and strips its trailing dot, so "." becomes the root name
+    private static String normalize(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static String parent(String name) {
+        int dot = name.indexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1);
+    }
+
+    private static boolean isWithin(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    private static String commonAncestor(String name, String other) {
+        String ancestor = name;
+        while (!isWithin(other, ancestor))
+            ancestor = parent(ancestor);
+        return ancestor;
+    }
+
+    private static String wildcard(String name) {
+        return name.isEmpty() ? "*" : "*." + name;
+    }
+
+    // returns a key that sorts names in canonical DNS order (RFC 4034): the labels from right to
+    // left, separated by a character that sorts before any other, so a name sorts right before
+    // its descendants
+    private static String canonicalKey(String name) {
+        if (name.isEmpty()) return name;
+        String[] labels = name.split("\\.");
+        StringBuilder key = new StringBuilder(name.length());
+        for (int i = labels.length - 1; i >= 0; i--) {
+            key.append(labels[i]);
+            if (i > 0) key.append('\0');
+        }
+        return key.toString();
+    }
+
+    /** A range of names (or hashes) that do not exist, between two existing ones.
+     */
+    private static class Range {
+        private final String start;
+        private final String end;
+        private final String ownerName;
+        private final String nextName;
+        private final long expirationTime;
+        private final boolean delegation;
+        private final boolean optOut;
+
+        private Range(String start, String end, String ownerName, String nextName, long expirationTime,
+                      boolean delegation, boolean optOut) {
+            this.start = start;
+            this.end = end;
+            this.ownerName = ownerName;
+            this.nextName = nextName;
+            this.expirationTime = expirationTime;
+            this.delegation = delegation;
+            this.optOut = optOut;
+        }
+
+        // the last range of a zone ends at the first name (or hash), and wraps around
+        private boolean covers(String key) {
+            if (start.compareTo(end) < 0)
+                return start.compareTo(key) < 0 && key.compareTo(end) < 0;
+            return start.compareTo(key) < 0 || key.compareTo(end) < 0;
+        }
+    }
+
+    /** The ranges of a zone, with the NSEC3 hash parameters the NSEC3 ranges were built with.
+     */
+    private static class Zone {
+        private final String name;
+        private final ConcurrentSkipListMap<String, Range> nsecRanges = new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListMap<String, Range> nsec3Ranges = new ConcurrentSkipListMap<>();
+        private volatile NSEC3Parameters nsec3Parameters;
+
+        private Zone(String name) {
+            this.name = name;
+        }
+
+        // adds a range, unless the zone is full even after dropping its expired ranges
+        private void put(ConcurrentSkipListMap<String, Range> ranges, String key, Range range) {
+            if (ranges.size() >= MAX_RANGES_PER_ZONE && !ranges.containsKey(key)) {
+                long now = System.currentTimeMillis();
+                ranges.values().removeIf(r -> r.expirationTime <= now);
+                if (ranges.size() >= MAX_RANGES_PER_ZONE) return;
+            }
+            ranges.put(key, range);
+        }
+
+        // hashes of other parameters cannot be compared, so a change of parameters (after the
+        // zone is re-signed) drops the existing NSEC3 ranges
+        private synchronized void setNSEC3Parameters(int iterations, byte[] salt) {
+            NSEC3Parameters parameters = nsec3Parameters;
+            if (parameters != null && parameters.iterations == iterations && Arrays.equals(parameters.salt, salt))
+                return;
+            nsec3Ranges.clear();
+            nsec3Parameters = new NSEC3Parameters(iterations, salt);
+        }
+
+        /** The hash parameters of the NSEC3 records of a zone.
+         */
+        private static class NSEC3Parameters {
+            private final int iterations;
+            private final byte[] salt;
+
+            private NSEC3Parameters(int iterations, byte[] salt) {
+                this.iterations = iterations;
+                this.salt = salt;
+            }
+
+            // returns the NSEC3 hash of a name (RFC 5155), in base32hex
+            private String hash(String name) {
+                // each label takes its length byte instead of its dot, plus the root label
+                ByteBuffer wire = ByteBuffer.allocate(name.length() + 2);
+                DNSQueryHandler.encodeDomainName(wire, name);
+                try {
+                    MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                    sha1.update(wire.array(), 0, wire.position());
+                    sha1.update(salt);
+                    byte[] digest = sha1.digest();
+                    for (int i = 0; i < iterations; i++) {
+                        sha1.update(digest);
+                        sha1.update(salt);
+                        digest = sha1.digest();
+                    }
+                    return RecordData.toBase32Hex(digest, 0, digest.length);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    }
+}
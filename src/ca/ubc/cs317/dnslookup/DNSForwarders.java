@@ -0,0 +1,149 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The zones whose names are resolved by forwarding queries to recursive resolvers, instead of
+ * iterating from the root servers. Each zone has a pool of forwarders; a name is forwarded to
+ * the pool of the longest zone it belongs to, and the root zone ("." on the command line)
+ * forwards every name without a more specific zone. Names outside every zone are iterated.
+ */
+public class DNSForwarders {
+
+    private static DNSForwarders instance = new DNSForwarders();
+
+    private final Map<String, Pool> pools = new ConcurrentSkipListMap<>();
+
+    /** Singleton retrieval method. This method returns the single forwarding configuration.
+     *
+     * @return Instance of the forwarding configuration.
+     */
+    public static DNSForwarders getInstance() {
+        return instance;
+    }
+
+    /**
+     * Forwards the names of a zone to a pool of forwarders, replacing any pool set for the zone.
+     *
+     * @param zone    Zone name, with or without the trailing dot ("." for the root zone).
+     * @param servers Non-empty list of forwarder addresses.
+     */
+    public void setZone(String zone, List<InetAddress> servers) {
+        if (servers.isEmpty())
+            throw new IllegalArgumentException("A forwarding zone needs at least one server");
+        String name = normalize(zone);
+        pools.put(name, new Pool(name, servers));
+    }
+
+    /**
+     * Stops forwarding the names of a zone.
+     *
+     * @param zone Zone name, with or without the trailing dot ("." for the root zone).
+     * @return true if the zone was forwarded.
+     */
+    public boolean removeZone(String zone) {
+        return pools.remove(normalize(zone)) != null;
+    }
+
+    /**
+     * Returns the pool of forwarders of the longest zone a name belongs to.
+     *
+     * @param hostName Fully qualified domain name.
+     * @return The pool of forwarders, or null if the name should be iterated.
+     */
+    public Pool findPool(String hostName) {
+        if (pools.isEmpty()) return null;
+        String name = normalize(hostName);
+        while (true) {
+            Pool pool = pools.get(name);
+            if (pool != null || name.isEmpty())
+                return pool;
+            int dot = name.indexOf('.');
+            name = dot < 0 ? "" : name.substring(dot + 1);
+        }
+    }
+
+    // lower-cases a name and strips its trailing dot, so "." becomes the root zone
+    private static String normalize(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    /**
+     * Prints each forwarding zone, and the outstanding queries and smoothed round-trip time of
+     * each of its forwarders.
+     */
+    public void printStatus() {
+        if (pools.isEmpty()) {
+            System.out.println("No zones are forwarded.");
+            return;
+        }
+        System.out.printf("%-30s %-40s %-12s %s\n", "Zone", "Forwarder", "Outstanding", "SRTT (ms)");
+        for (Pool pool : pools.values())
+            for (int i = 0; i < pool.servers.size(); i++)
+                System.out.printf("%-30s %-40s %-12d %.1f\n", pool.zone.isEmpty() ? "." : pool.zone,
+                        pool.servers.get(i).getHostAddress(), pool.outstanding[i].get(),
+                        DNSServerLatency.getInstance().getSrtt(pool.servers.get(i)));
+    }
+
+    /** The forwarders of a zone. Queries go to the forwarder with the fewest outstanding queries,
+     * and to the one with the lowest smoothed round-trip time among equally loaded forwarders.
+     */
+    public static class Pool {
+
+        private final String zone;
+        private final List<InetAddress> servers;
+        private final AtomicInteger[] outstanding;
+
+        private Pool(String zone, List<InetAddress> servers) {
+            this.zone = zone;
+            this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+            this.outstanding = new AtomicInteger[servers.size()];
+            for (int i = 0; i < outstanding.length; i++)
+                outstanding[i] = new AtomicInteger();
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public List<InetAddress> getServers() {
+            return servers;
+        }
+
+        /**
+         * Chooses the forwarder the next query goes to, and counts the query as outstanding on
+         * it. Every successful call must be matched by a call to release.
+         *
+         * @param excluded Forwarders not to choose, such as those that already failed the query.
+         * @return The address of the forwarder, or null if every forwarder is excluded.
+         */
+        public InetAddress select(Set<InetAddress> excluded) {
+            DNSServerLatency latency = DNSServerLatency.getInstance();
+            int best = -1;
+            for (int i = 0; i < servers.size(); i++) {
+                if (excluded.contains(servers.get(i))) continue;
+                if (best < 0 || outstanding[i].get() < outstanding[best].get()
+                        || (outstanding[i].get() == outstanding[best].get()
+                            && latency.getSrtt(servers.get(i)) < latency.getSrtt(servers.get(best))))
+                    best = i;
+            }
+            if (best < 0) return null;
+            outstanding[best].incrementAndGet();
+            return servers.get(best);
+        }
+
+        /**
+         * Marks a query to a forwarder as completed.
+         *
+         * @param server Address of the forwarder the query was sent to.
+         */
+        public void release(InetAddress server) {
+            int index = servers.indexOf(server);
+            if (index >= 0)
+                outstanding[index].decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** Load generator for the resolver. It replays a query log, or a synthetic set of names whose
+ * popularity follows a Zipf distribution, and reports latency percentiles, cache hit ratio and
+ * upstream queries per lookup.
+ *
+ * Queries are sent on an open-loop schedule: each query has an intended send time fixed in
+ * advance, and its latency is measured from that time rather than from when it was actually
+ * sent. A resolver that stalls therefore shows the delay in the latency of every query that
+ * should have been sent during the stall (no coordinated omission).
+ *
+ * Queries are either handed to the resolver API in-process, or sent as UDP packets to a DNS
+ * server (by default an in-process DNSServer). Unless another root server is given, the
+ * resolver runs against a DNSStubNameServer, so results are reproducible without network access.
+ *
+ * Each query has exactly one outcome: whichever of its response or its timeout comes first
+ * records it, and the other is ignored. A UDP query whose response has not arrived within the
+ * timeout of its intended send time is counted as timed out, and a reply arriving after that is
+ * not counted as a latency. The report is only printed once every query has an outcome.
+ */
+public class DNSLoadGenerator {
+
+    private static final int DEFAULT_QPS = 1000;
+    private static final int DEFAULT_DURATION = 10;
+    private static final int DEFAULT_NAMES = 10000;
+    private static final int DEFAULT_ZONES = 16;
+    private static final double DEFAULT_ZIPF_EXPONENT = 1.0;
+    private static final int DEFAULT_STUB_PORT = 10053;
+    private static final int DEFAULT_STUB_TTL = 300;
+    private static final long DEFAULT_TIMEOUT = 5000;
+    private static final int HEADER_LENGTH = 12;
+
+    /**
+     * Main function, called when program is first invoked.
+     *
+     * @param args list of arguments specified in the command line.
+     */
+    public static void main(String[] args) {
+
+        String logFile = null, target = null, rootArg = null, mode = "api";
+        int qps = -1, duration = DEFAULT_DURATION, names = DEFAULT_NAMES, zones = DEFAULT_ZONES;
+        int port = DEFAULT_STUB_PORT, ttl = DEFAULT_STUB_TTL, delay = 0;
+        int workers = DNSResolverWorker.DEFAULT_WORKER_COUNT, sockets = DNSSocketPool.DEFAULT_POOL_SIZE;
+        double zipfExponent = DEFAULT_ZIPF_EXPONENT;
+        long seed = 1, timeout = DEFAULT_TIMEOUT;
+        RecordType type = RecordType.A;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (i + 1 >= args.length) printUsageAndExit();
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "-log": logFile = value; break;
+                    case "-qps": qps = Integer.parseInt(value); break;
+                    case "-duration": duration = Integer.parseInt(value); break;
+                    case "-names": names = Integer.parseInt(value); break;
+                    case "-zones": zones = Integer.parseInt(value); break;
+                    case "-zipf": zipfExponent = Double.parseDouble(value); break;
+                    case "-seed": seed = Long.parseLong(value); break;
+                    case "-type": type = RecordType.valueOf(value.toUpperCase()); break;
+                    case "-mode": mode = value.toLowerCase(); break;
+                    case "-target": target = value; break;
+                    case "-root": rootArg = value; break;
+                    case "-port": port = Integer.parseInt(value); break;
+                    case "-ttl": ttl = Integer.parseInt(value); break;
+                    case "-delay": delay = Integer.parseInt(value); break;
+                    case "-timeout": timeout = Long.parseLong(value); break;
+                    case "-workers": workers = Integer.parseInt(value); break;
+                    case "-sockets": sockets = Integer.parseInt(value); break;
+                    default: printUsageAndExit();
+                }
+                i++;
+            }
+        } catch (IllegalArgumentException ex) {
+            printUsageAndExit();
+        }
+        if (!mode.equals("api") && !mode.equals("udp") || (target != null && !mode.equals("udp"))
+                || duration < 1 || names < 1 || zones < 1 || workers < 1 || sockets < 1 || port < 1)
+            printUsageAndExit();
+
+        List<ScheduledQuery> schedule;
+        try {
+            schedule = logFile != null ? readLog(logFile, qps) : synthesize(names, zones, zipfExponent, type,
+                    qps > 0 ? qps : DEFAULT_QPS, duration, new Random(seed));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Could not read query log (" + e.getMessage() + ").");
+            System.exit(1);
+            return;
+        }
+        if (schedule.isEmpty()) {
+            System.err.println("No queries to send.");
+            System.exit(1);
+        }
+        Outcomes outcomes = new Outcomes(schedule.size());
+
+        DNSStubNameServer stub = null;
+        DNSServer server = null;
+        try {
+            // an external target needs neither a resolver nor a stand-in hierarchy
+            if (target == null) {
+                InetAddress root;
+                if (rootArg == null) {
+                    stub = new DNSStubNameServer(port, ttl, delay);
+                    root = DNSStubNameServer.ROOT_ADDRESS;
+                    System.out.println("Stand-in nameservers listening on 127.0.0.1-3, port " + port);
+                } else {
+                    root = InetAddress.getByName(rootArg);
+                }
+                DNSQueryHandler.openSocket(Math.max(sockets, workers));
+                DNSQueryHandler.setServerPort(port);
+                DNSLookupService.setRootServer(root);
+                DNSResolverWorker.startWorkers(workers);
+                if (mode.equals("udp"))
+                    server = new DNSServer(0);
+            }
+
+            System.out.printf("Sending %d queries in %s mode...\n", schedule.size(), mode);
+            long stubQueriesBefore = stub != null ? stub.getQueries() : 0;
+            long packetHitsBefore = DNSPacketCache.getTotalHits();
+            long sentBefore = target == null ? DNSQueryHandler.getSocketPool().getTotalSent() : 0;
+
+            long elapsed;
+            if (mode.equals("api")) {
+                elapsed = runApi(schedule, timeout, outcomes);
+            } else {
+                InetSocketAddress address = server != null
+                        ? new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort())
+                        : parseTarget(target);
+                elapsed = runUdp(schedule, address, timeout, outcomes);
+            }
+
+            if (mode.equals("udp") && server != null)
+                outcomes.cacheHits.set(DNSPacketCache.getTotalHits() - packetHitsBefore);
+            if (target == null && mode.equals("udp"))
+                outcomes.upstreamQueries.set(DNSQueryHandler.getSocketPool().getTotalSent() - sentBefore);
+            printReport(outcomes, schedule.size(), elapsed, target == null,
+                    stub != null ? stub.getQueries() - stubQueriesBefore : -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("Load test interrupted.");
+        } catch (IOException e) {
+            System.err.println("Could not start load test (" + e.getMessage() + ").");
+        } finally {
+            if (server != null) server.close();
+            if (target == null) {
+                DNSResolverWorker.stopWorkers();
+                DNSQueryHandler.closeSocket();
+            }
+            if (stub != null) stub.close();
+        }
+    }
+
+    private static void printUsageAndExit() {
+        System.err.println("Invalid call. Usage:");
+        System.err.println("\tjava -cp DNSLookupService.jar ca.ubc.cs317.dnslookup.DNSLoadGenerator [-log file] [-qps N]");
+        System.err.println("\t\t[-duration S] [-names N] [-zones N] [-zipf S] [-seed N] [-type T] [-mode api|udp]");
+        System.err.println("\t\t[-target host:port] [-root IP] [-port P] [-ttl S] [-delay MS] [-timeout MS]");
+        System.err.println("\t\t[-workers N] [-sockets N]");
+        System.err.println("-log replays a file of \"name type timestamp\" lines (timestamps in seconds), at their");
+        System.err.println("recorded times or at -qps if given. Without -log, -duration seconds of queries are sent at");
+        System.err.println("-qps, for -names names spread across -zones zones of the stand-in hierarchy and drawn with");
+        System.err.println("Zipf exponent -zipf. -mode udp sends queries to -target, or to an in-process server.");
+        System.exit(1);
+    }
+
+    private static InetSocketAddress parseTarget(String target) throws UnknownHostException {
+        int colon = target.lastIndexOf(':');
+        if (colon < 0)
+            return new InetSocketAddress(InetAddress.getByName(target), DNSQueryHandler.DEFAULT_DNS_PORT);
+        return new InetSocketAddress(InetAddress.getByName(target.substring(0, colon)),
+                Integer.parseInt(target.substring(colon + 1)));
+    }
+
+    // reads a query log, keeping the recorded spacing of queries unless a fixed rate is requested
+    static List<ScheduledQuery> readLog(String fileName, int qps) throws IOException {
+        List<ScheduledQuery> schedule = new ArrayList<>();
+        double firstTimestamp = Double.NaN;
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim().split("#", 2)[0];
+                if (line.isEmpty()) continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length != 3)
+                    throw new IllegalArgumentException("Invalid line: " + line);
+
+                double timestamp = Double.parseDouble(fields[2]);
+                if (Double.isNaN(firstTimestamp)) firstTimestamp = timestamp;
+                long offset = qps > 0 ? schedule.size() * 1_000_000_000L / qps
+                        : (long) ((timestamp - firstTimestamp) * 1e9);
+                schedule.add(new ScheduledQuery(new DNSNode(fields[0], RecordType.valueOf(fields[1].toUpperCase())),
+                        offset));
+            }
+        }
+        schedule.sort(Comparator.comparingLong(query -> query.offset));
+        return schedule;
+    }
+
+    // draws names of the stand-in hierarchy with Zipf-distributed popularity, at a fixed rate
+    static List<ScheduledQuery> synthesize(int names, int zones, double exponent, RecordType type,
+                                           int qps, int duration, Random random) {
+        double[] cumulative = new double[names];
+        double total = 0;
+        for (int rank = 0; rank < names; rank++) {
+            total += 1 / Math.pow(rank + 1, exponent);
+            cumulative[rank] = total;
+        }
+
+        int count = qps * duration;
+        List<ScheduledQuery> schedule = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            if (rank < 0) rank = -rank - 1;
+            String hostName = "host" + rank + ".zone" + (rank % zones) + "." + DNSStubNameServer.TLD;
+            schedule.add(new ScheduledQuery(new DNSNode(hostName, type), i * 1_000_000_000L / qps));
+        }
+        return schedule;
+    }
+
+    // waits until the intended send time of a query, returning that time
+    private static long waitUntil(long start, ScheduledQuery query) {
+        long intended = start + query.offset;
+        long remaining;
+        while ((remaining = intended - System.nanoTime()) > 0)
+            LockSupport.parkNanos(remaining);
+        return intended;
+    }
+
+    /**
+     * Hands the queries of a schedule to the resolver API, each at its intended send time.
+     *
+     * @param schedule Queries to send, in order of intended send time.
+     * @param timeout  Budget (in milliseconds) of each lookup.
+     * @param outcomes Outcomes of the queries, recorded as they complete.
+     * @return Time (in nanoseconds) taken to send every query.
+     */
+    static long runApi(List<ScheduledQuery> schedule, long timeout, Outcomes outcomes) throws InterruptedException {
+        long start = System.nanoTime();
+        for (int i = 0; i < schedule.size(); i++) {
+            int index = i;
+            ScheduledQuery query = schedule.get(i);
+            long intended = waitUntil(start, query);
+            DNSQueryBudget budget = new DNSQueryBudget(timeout, DNSQueryBudget.DEFAULT_MAX_QUERIES,
+                    DNSQueryBudget.PRIORITY_CLIENT);
+            DNSLookupService.resolve(query.node, budget).whenComplete((results, ex) -> {
+                if (!outcomes.claim(index)) return;
+                outcomes.upstreamQueries.addAndGet(budget.getQueriesUsed());
+                if (budget.getQueriesUsed() == 0 && ex == null)
+                    outcomes.cacheHits.incrementAndGet();
+                if (ex != null)
+                    outcomes.errors.incrementAndGet();
+                else if (results.isEmpty() && budget.isExhausted())
+                    outcomes.timeouts.incrementAndGet();
+                else if (results.isEmpty())
+                    outcomes.emptyAnswers.incrementAndGet();
+                outcomes.recordLatency(intended);
+            });
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // every lookup is bounded by its budget, so this only waits for stragglers to report
+        if (!outcomes.await(timeout * 2))
+            outcomes.timeOutUnfinished();
+        return elapsed;
+    }
+
+    /**
+     * Sends the queries of a schedule as UDP packets to a DNS server, each at its intended send
+     * time, and returns once every query has been answered or has timed out.
+     *
+     * @param schedule Queries to send, in order of intended send time.
+     * @param server   Address and port of the server.
+     * @param timeout  Time (in milliseconds) after its intended send time at which a query that
+     *                 has not been answered is counted as timed out.
+     * @param outcomes Outcomes of the queries, recorded as they complete.
+     * @return Time (in nanoseconds) taken to send every query.
+     */
+    static long runUdp(List<ScheduledQuery> schedule, InetSocketAddress server, long timeout, Outcomes outcomes)
+            throws IOException, InterruptedException {
+        Map<Integer, PendingQuery> outstanding = new ConcurrentHashMap<>();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-loadgen-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (DatagramSocket socket = new DatagramSocket()) {
+            Thread receiver = new Thread(() -> {
+                byte[] buffer = new byte[DNSPacketCache.MAX_UDP_MESSAGE_SIZE];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                while (!socket.isClosed()) {
+                    try {
+                        socket.receive(packet);
+                    } catch (IOException ex) {
+                        continue;
+                    }
+                    if (packet.getLength() < HEADER_LENGTH) continue;
+                    int id = ((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF);
+                    PendingQuery pending = outstanding.remove(id);
+                    if (pending == null || !outcomes.claim(pending.index)) continue;
+
+                    int rcode = buffer[3] & 0x0F;
+                    int answers = ((buffer[6] & 0xFF) << 8) | (buffer[7] & 0xFF);
+                    if (rcode == 2)
+                        outcomes.errors.incrementAndGet();
+                    else if (answers == 0)
+                        outcomes.emptyAnswers.incrementAndGet();
+                    outcomes.recordLatency(pending.intended);
+                }
+            }, "dns-loadgen-receiver");
+            receiver.setDaemon(true);
+            receiver.start();
+
+            ByteBuffer query = ByteBuffer.allocate(DNSPacketCache.MAX_UDP_MESSAGE_SIZE);
+            DatagramPacket packet = new DatagramPacket(query.array(), 0, server);
+            long start = System.nanoTime();
+            long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+            int nextId = 0;
+            for (int i = 0; i < schedule.size(); i++) {
+                ScheduledQuery scheduled = schedule.get(i);
+                long intended = waitUntil(start, scheduled);
+
+                // IDs of queries still in flight are skipped, so every response matches the
+                // query it answers; a query finding all 65536 IDs in flight is not sent
+                int id = nextId, tries = 0;
+                PendingQuery pending = new PendingQuery(i, intended);
+                while (outstanding.putIfAbsent(id, pending) != null && ++tries <= 0xFFFF)
+                    id = (id + 1) & 0xFFFF;
+                if (tries > 0xFFFF) {
+                    if (outcomes.claim(i))
+                        outcomes.recordTimeout();
+                    continue;
+                }
+                nextId = (id + 1) & 0xFFFF;
+
+                // a query without a response by its deadline times out, but its ID stays taken
+                // for another timeout, so a late reply is matched to it and ignored
+                int queryId = id;
+                timer.schedule(() -> {
+                    if (outcomes.claim(pending.index))
+                        outcomes.recordTimeout();
+                    timer.schedule(() -> outstanding.remove(queryId, pending), timeout, TimeUnit.MILLISECONDS);
+                }, intended + timeoutNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+
+                query.clear();
+                query.putShort((short) id);
+                query.putShort((short) 0x0100);
+                query.putShort((short) 1);
+                query.putShort((short) 0);
+                query.putInt(0);
+                DNSQueryHandler.encodeDomainName(query, scheduled.node.getHostName());
+                query.putShort((short) scheduled.node.getType().getCode());
+                query.putShort((short) 1);
+                packet.setLength(query.position());
+                socket.send(packet);
+            }
+            long elapsed = System.nanoTime() - start;
+
+            // every query has a deadline, so this ends once the last one is answered or expires
+            outcomes.await(Long.MAX_VALUE);
+            return elapsed;
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    private static void printReport(Outcomes outcomes, int sent, long elapsed, boolean inProcess, long stubQueries) {
+        long[] sorted = outcomes.getSortedLatencies();
+        int count = sorted.length;
+        int answered = Math.max(count, 1);
+
+        System.out.printf("Sent:              %d queries in %.2f s (%.1f qps)\n", sent, elapsed / 1e9,
+                sent / Math.max(elapsed / 1e9, 1e-9));
+        System.out.printf("Completed:         %d (%d empty, %d errors), %d timed out\n", count,
+                outcomes.emptyAnswers.get(), outcomes.errors.get(), outcomes.timeouts.get());
+        if (count > 0)
+            System.out.printf("Latency (ms):      p50 %.3f  p99 %.3f  p99.9 %.3f  max %.3f\n",
+                    percentile(sorted, 50), percentile(sorted, 99), percentile(sorted, 99.9),
+                    sorted[count - 1] / 1e6);
+        if (inProcess) {
+            System.out.printf("Cache hit ratio:   %.2f%%\n", 100.0 * outcomes.cacheHits.get() / answered);
+            System.out.printf("Upstream queries:  %.3f per lookup\n",
+                    (double) outcomes.upstreamQueries.get() / answered);
+        }
+        if (stubQueries >= 0)
+            System.out.printf("Stand-in servers:  %d queries received\n", stubQueries);
+    }
+
+    /**
+     * Returns a percentile (nearest rank) of sorted latencies, in milliseconds.
+     *
+     * @param sorted     Latencies in nanoseconds, in ascending order. Must not be empty.
+     * @param percentile Percentile, between 0 and 100.
+     */
+    static double percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    /** The outcomes of the queries of a run: exactly one per query, either a latency (with an
+     * empty answer or error counted alongside it) or a timeout.
+     */
+    static class Outcomes {
+
+        private final AtomicIntegerArray finished;
+        private final CountDownLatch remaining;
+        private final long[] latencies;
+        private int completed;
+        private final AtomicLong emptyAnswers = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+        private final AtomicLong upstreamQueries = new AtomicLong();
+
+        Outcomes(int queries) {
+            finished = new AtomicIntegerArray(queries);
+            remaining = new CountDownLatch(queries);
+            latencies = new long[queries];
+        }
+
+        // claims the outcome of a query, returning false if it was already recorded
+        private boolean claim(int index) {
+            return finished.compareAndSet(index, 0, 1);
+        }
+
+        private synchronized void recordLatency(long intended) {
+            latencies[completed++] = System.nanoTime() - intended;
+            remaining.countDown();
+        }
+
+        private void recordTimeout() {
+            timeouts.incrementAndGet();
+            remaining.countDown();
+        }
+
+        // counts every query without an outcome yet as timed out
+        private void timeOutUnfinished() {
+            for (int i = 0; i < finished.length(); i++)
+                if (claim(i))
+                    recordTimeout();
+        }
+
+        // waits until every query has an outcome, returning false if the timeout expires first
+        private boolean await(long timeout) throws InterruptedException {
+            return remaining.await(timeout, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Returns the latencies (in nanoseconds) of the queries answered so far, in ascending order.
+         */
+        synchronized long[] getSortedLatencies() {
+            long[] sorted = Arrays.copyOf(latencies, completed);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        long getTimeouts() {
+            return timeouts.get();
+        }
+
+        long getErrors() {
+            return errors.get();
+        }
+
+        long getEmptyAnswers() {
+            return emptyAnswers.get();
+        }
+    }
+
+    private static class PendingQuery {
+        private final int index;
+        private final long intended;
+
+        private PendingQuery(int index, long intended) {
+            this.index = index;
+            this.intended = intended;
+        }
+    }
+
+    static class ScheduledQuery {
+        private final DNSNode node;
+        private final long offset;
+
+        /**
+         * @param node   Host name and record type of the query.
+         * @param offset Intended send time of the query, in nanoseconds from the start of the run.
+         */
+        ScheduledQuery(DNSNode node, long offset) {
+            this.node = node;
+            this.offset = offset;
+        }
+
+        DNSNode getNode() {
+            return node;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+    }
+}
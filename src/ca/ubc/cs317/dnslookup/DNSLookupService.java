@@ -1,18 +1,37 @@
 package ca.ubc.cs317.dnslookup;
 
 import java.io.Console;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class DNSLookupService {
 
     private static boolean p1Flag = false; // isolating part 1
     private static final int MAX_INDIRECTION_LEVEL = 10;
-    private static InetAddress rootServer;
-    private static DNSCache cache = DNSCache.getInstance();
+    private static final long ADDRESS_LOOKUP_TIMEOUT = 10000;
+    private static final long ROOT_QUERY_TIMEOUT = 2000;
+    private static final long FORWARD_QUERY_TIMEOUT = 2000;
+    private static final long ADDRESS_QUERY_TIMEOUT = 2000;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+    private static final int DEFAULT_WARM_UP_TOP = 10000;
+    private static final DNSRootServers rootServers = DNSRootServers.getInstance();
+    private static DNSServer server;
 
     /**
      * Main function, called when program is first invoked.
@@ -21,29 +40,90 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length == 2 && args[1].equals("-p1")) {
-            p1Flag = true;
-        } else if (args.length != 1) {
-            System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
-            System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
-            System.exit(1);
+        String rootArg = null;
+        String hintsFile = DNSRootServers.DEFAULT_HINTS_FILE;
+        String warmUpFile = null, saveHitsFile = null;
+        int warmUpTop = DEFAULT_WARM_UP_TOP;
+        int warmUpRate = DNSWarmUp.DEFAULT_RATE;
+        int warmUpConcurrency = DNSWarmUp.DEFAULT_CONCURRENCY;
+        int socketPoolSize = DNSSocketPool.DEFAULT_POOL_SIZE;
+        int workerCount = DNSResolverWorker.DEFAULT_WORKER_COUNT;
+        int serverPort = 0;
+        int maxOutstanding = DNSQueryScheduler.DEFAULT_MAX_OUTSTANDING;
+        int upstreamPort = DNSQueryHandler.DEFAULT_DNS_PORT;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-p1")) {
+                p1Flag = true;
+            } else if (args[i].equals("-sockets") && i + 1 < args.length) {
+                socketPoolSize = parsePositiveOption(args[++i]);
+            } else if (args[i].equals("-workers") && i + 1 < args.length) {
+                workerCount = parsePositiveOption(args[++i]);
+            } else if (args[i].equals("-max-outstanding") && i + 1 < args.length) {
+                maxOutstanding = parsePositiveOption(args[++i]);
+            } else if (args[i].equals("-port") && i + 1 < args.length) {
+                upstreamPort = parsePositiveOption(args[++i]);
+            } else if (args[i].equals("-forward") && i + 1 < args.length) {
+                String[] zoneAndServers = args[++i].split("=", 2);
+                if (zoneAndServers.length != 2 || !setForwarders(zoneAndServers[0], zoneAndServers[1].split(",")))
+                    printUsageAndExit();
+            } else if (args[i].equals("-warmup") && i + 1 < args.length) {
+                warmUpFile = args[++i];
+            } else if (args[i].equals("-warmup-top") && i + 1 < args.length) {
+                warmUpTop = parsePositiveOption(args[++i]);
+            } else if (args[i].equals("-warmup-rate") && i + 1 < args.length) {
+                warmUpRate = parsePositiveOption(args[++i]);
+            } else if (args[i].equals("-warmup-concurrency") && i + 1 < args.length) {
+                warmUpConcurrency = parsePositiveOption(args[++i]);
+            } else if (args[i].equals("-save-hits") && i + 1 < args.length) {
+                saveHitsFile = args[++i];
+            } else if (args[i].equals("-hints") && i + 1 < args.length) {
+                hintsFile = args[++i];
+            } else if (args[i].equals("-serve") && i + 1 < args.length) {
+                serverPort = parsePositiveOption(args[++i]);
+            } else if (rootArg == null && !args[i].startsWith("-")) {
+                rootArg = args[i];
+            } else {
+                printUsageAndExit();
+            }
         }
+        if (socketPoolSize < 1 || workerCount < 1 || serverPort < 0 || maxOutstanding < 1 || upstreamPort < 1
+                || warmUpTop < 1 || warmUpRate < 1 || warmUpConcurrency < 1)
+            printUsageAndExit();
 
         try {
-            rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            if (rootArg != null) {
+                rootServers.setOverride(InetAddress.getByName(rootArg));
+                System.out.println("Root DNS server is: " + rootServers.getOverride().getHostAddress());
+            } else {
+                int count = rootServers.loadHints(hintsFile);
+                System.out.println("Loaded " + count + " root DNS servers from " + hintsFile);
+            }
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
             System.exit(1);
+        } catch (IOException e) {
+            System.err.println("Could not read root hints (" + e.getMessage() + ").");
+            System.exit(1);
         }
 
         try {
-            DNSQueryHandler.openSocket();
+            // every worker needs a socket of its own
+            DNSQueryHandler.openSocket(Math.max(socketPoolSize, workerCount));
         } catch (SocketException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
+        DNSQueryScheduler.getInstance().setMaxOutstanding(maxOutstanding);
+        DNSQueryHandler.setServerPort(upstreamPort);
+        DNSResolverWorker.startWorkers(workerCount);
+        if (rootArg == null)
+            primeRootServers();
+        if (warmUpFile != null)
+            warmUpCache(warmUpFile, warmUpTop, warmUpRate, warmUpConcurrency);
+        DNSLookupStatistics.getInstance().setEnabled(saveHitsFile != null);
+        if (serverPort > 0)
+            startServer(serverPort);
+        System.out.println("Ready.");
 
         Scanner in = new Scanner(System.in);
         Console console = System.console();
@@ -74,16 +154,38 @@ public class DNSLookupService {
                     commandArgs[0].equalsIgnoreCase("exit"))
                 break;
             else if (commandArgs[0].equalsIgnoreCase("server")) {
-                // SERVER: Change root nameserver
-                if (commandArgs.length == 2) {
+                // SERVER: Change root nameserver, go back to the root server set, or print the root servers
+                if (commandArgs.length == 1) {
+                    rootServers.printStatus();
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("hints")) {
+                    try {
+                        if (!rootServers.hasHints())
+                            System.out.println("Loaded " + rootServers.loadHints(hintsFile) + " root DNS servers from " + hintsFile);
+                        rootServers.setOverride(null);
+                        primeRootServers();
+                    } catch (IOException e) {
+                        System.out.println("Could not read root hints (" + e.getMessage() + ").");
+                    }
+                } else if (commandArgs.length == 2) {
                     try {
-                        rootServer = InetAddress.getByName(commandArgs[1]);
-                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
+                        rootServers.setOverride(InetAddress.getByName(commandArgs[1]));
+                        System.out.println("Root DNS server is now: " + rootServers.getOverride().getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
                     }
                 } else {
-                    System.out.println("Invalid call. Format:\n\tserver IP");
+                    System.out.println("Invalid call. Format:\n\tserver [IP|hints]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("forward")) {
+                // FORWARD: Forward a zone to recursive resolvers, stop forwarding it, or print the forwarded zones
+                if (commandArgs.length == 1) {
+                    DNSForwarders.getInstance().printStatus();
+                } else if (commandArgs.length == 3 && commandArgs[2].equalsIgnoreCase("off")) {
+                    if (!DNSForwarders.getInstance().removeZone(commandArgs[1]))
+                        System.out.println("Zone " + commandArgs[1] + " is not forwarded.");
+                } else if (commandArgs.length < 3
+                        || !setForwarders(commandArgs[1], Arrays.copyOfRange(commandArgs, 2, commandArgs.length))) {
+                    System.err.println("Invalid call. Format:\n\tforward [zone IP [IP...]|zone off]");
                 }
             } else if (commandArgs[0].equalsIgnoreCase("trace")) {
                 // TRACE: Turn trace setting on or off
@@ -108,13 +210,21 @@ public class DNSLookupService {
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
                 RecordType type;
-                if (commandArgs.length == 2)
+                InetAddress address = commandArgs.length > 1 ? ReverseName.parseLiteral(commandArgs[1]) : null;
+                if (commandArgs.length == 3 && commandArgs[2].equalsIgnoreCase("ADDR")) {
+                    findAndPrintAddresses(commandArgs[1]);
+                    continue;
+                } else if (address != null && (commandArgs.length == 2 || commandArgs[2].equalsIgnoreCase("PTR"))) {
+                    // an IP address is looked up by its reverse lookup name
+                    findAndPrintResults(ReverseName.forAddress(address), RecordType.PTR);
+                    continue;
+                } else if (commandArgs.length == 2)
                     type = RecordType.A;
                 else if (commandArgs.length == 3)
                     try {
                         type = RecordType.valueOf(commandArgs[2].toUpperCase());
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, ADDR, NS, MX, CNAME, SOA, TXT, SRV, PTR");
                         continue;
                     }
                 else {
@@ -123,23 +233,391 @@ public class DNSLookupService {
                 }
                 findAndPrintResults(commandArgs[1], type);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                // DUMP: Print or save all results still cached
+                dumpCache(commandArgs);
+            } else if (commandArgs[0].equalsIgnoreCase("serve")) {
+                // SERVE: Answer client queries on a UDP port, or stop doing so
+                if (commandArgs.length == 1) {
+                    printServerStatus();
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    stopServer();
+                } else if (commandArgs.length == 2 && parsePositiveOption(commandArgs[1]) > 0) {
+                    stopServer();
+                    startServer(parsePositiveOption(commandArgs[1]));
+                } else {
+                    System.err.println("Invalid call. Format:\n\tserve [port|off]");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("upstreams")) {
+                // UPSTREAMS: Print the outstanding and queued queries of each upstream server
+                DNSQueryScheduler.getInstance().printStatistics();
+            } else if (commandArgs[0].equalsIgnoreCase("sockets")) {
+                // SOCKETS: Print the load of each socket in the pool
+                DNSQueryHandler.getSocketPool().printStatistics();
+            } else if (commandArgs[0].equalsIgnoreCase("denials")) {
+                // DENIALS: Print the NSEC and NSEC3 ranges cached for each zone
+                DNSDenialIndex.getInstance().printStatus();
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
                 System.err.println("\ttrace on|off");
-                System.err.println("\tserver IP");
-                System.err.println("\tdump");
+                System.err.println("\tserver [IP|hints]");
+                System.err.println("\tforward [zone IP [IP...]|zone off]");
+                System.err.println("\tdump [file] [prefix=name] [type=type] [format=text|json|binary]");
+                System.err.println("\tserve [port|off]");
+                System.err.println("\tsockets");
+                System.err.println("\tupstreams");
+                System.err.println("\tdenials");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
+        stopServer();
+        if (saveHitsFile != null) {
+            try {
+                int count = DNSLookupStatistics.getInstance().saveTop(saveHitsFile, warmUpTop);
+                System.out.println("Saved the " + count + " most looked up names to " + saveHitsFile);
+            } catch (IOException e) {
+                System.err.println("Could not save lookup statistics (" + e.getMessage() + ").");
+            }
+        }
+        DNSResolverWorker.stopWorkers();
         DNSQueryHandler.closeSocket();
         System.out.println("Goodbye!");
     }
 
+    private static void printUsageAndExit() {
+        System.err.println("Invalid call. Usage:");
+        System.err.println("\tjava -jar DNSLookupService.jar [rootServer] [-hints file] [-forward zone=IP[,IP...]] [-warmup file] [-warmup-top N] [-warmup-rate N] [-warmup-concurrency N] [-save-hits file] [-sockets N] [-workers N] [-max-outstanding N] [-port P] [-serve port] [-p1]");
+        System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+        System.err.println("Without it, the search starts at the root servers listed in the root hints file (root.hints by");
+        System.err.println("default), refreshed with a priming query at startup. -forward sends the queries for names in");
+        System.err.println("a zone (\".\" for all names) to recursive resolvers instead, and may be repeated.");
+        System.err.println("-warmup resolves the first -warmup-top names (default 10000) of a ranked list before reporting");
+        System.err.println("ready, starting at most -warmup-rate lookups per second with at most -warmup-concurrency");
+        System.err.println("running. -save-hits writes the most looked up names to a file on exit, in the same format.");
+        System.err.println("-sockets sets the number of UDP sockets queries are spread across, and -workers the number of");
+        System.err.println("resolver workers (cache shards) queries are routed to by host name. -max-outstanding caps");
+        System.err.println("the queries outstanding at any upstream server, and -port sets their UDP port. -serve answers");
+        System.err.println("client queries on the given UDP port.");
+        System.exit(1);
+    }
+
+    /**
+     * Writes the cached results to the standard output or a file. Each worker only takes a
+     * snapshot of its shard, which is then filtered and written from this thread, so lookups
+     * keep running while the dump is in progress.
+     *
+     * @param commandArgs Arguments of the dump command.
+     */
+    private static void dumpCache(String[] commandArgs) {
+        String fileName = null, prefix = null;
+        RecordType type = null;
+        DNSCacheExporter.Format format = DNSCacheExporter.Format.TEXT;
+        try {
+            for (int i = 1; i < commandArgs.length; i++) {
+                String[] option = commandArgs[i].split("=", 2);
+                if (option.length == 1 && fileName == null)
+                    fileName = option[0];
+                else if (option[0].equalsIgnoreCase("prefix"))
+                    prefix = option[1];
+                else if (option[0].equalsIgnoreCase("type"))
+                    type = RecordType.valueOf(option[1].toUpperCase());
+                else if (option[0].equalsIgnoreCase("format"))
+                    format = DNSCacheExporter.Format.valueOf(option[1].toUpperCase());
+                else
+                    throw new IllegalArgumentException(commandArgs[i]);
+            }
+            if (format == DNSCacheExporter.Format.BINARY && fileName == null)
+                throw new IllegalArgumentException("binary format requires a file");
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Invalid call. Format:\n\tdump [file] [prefix=name] [type=type] [format=text|json|binary]");
+            return;
+        }
+
+        List<DNSCacheSnapshot> snapshots = new ArrayList<>();
+        for (int i = 0; i < DNSResolverWorker.getWorkerCount(); i++) {
+            DNSResolverWorker worker = DNSResolverWorker.getWorker(i);
+            snapshots.add(worker.submit(() -> worker.getCache().snapshot()).join());
+        }
+
+        DNSCacheExporter exporter = new DNSCacheExporter(format, prefix, type);
+        try {
+            if (fileName == null) {
+                exporter.export(snapshots, System.out);
+            } else {
+                try (OutputStream out = new FileOutputStream(fileName)) {
+                    long count = exporter.export(snapshots, out);
+                    System.out.println("Wrote " + count + " records to " + fileName);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not write cache dump (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Forwards the names of a zone to a pool of recursive resolvers.
+     *
+     * @param zone    Zone name ("." for the root zone).
+     * @param servers IP addresses of the resolvers.
+     * @return true if the zone is now forwarded, or false if an address is not an IP address.
+     */
+    private static boolean setForwarders(String zone, String[] servers) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String server : servers) {
+            InetAddress address = ReverseName.parseLiteral(server);
+            if (address == null) return false;
+            addresses.add(address);
+        }
+        if (addresses.isEmpty()) return false;
+        DNSForwarders.getInstance().setZone(zone, addresses);
+        return true;
+    }
+
+    /**
+     * Resolves the most popular names of a warm-up list, and waits until all lookups complete or
+     * the warm-up deadline passes.
+     *
+     * @param fileName    Name of the warm-up list.
+     * @param top         Number of names of the list to resolve.
+     * @param rate        Maximum number of lookups started per second.
+     * @param concurrency Maximum number of lookups running at the same time.
+     */
+    private static void warmUpCache(String fileName, int top, int rate, int concurrency) {
+        List<DNSNode> nodes;
+        try {
+            nodes = DNSWarmUp.readList(fileName, top);
+        } catch (IOException e) {
+            System.err.println("Could not read warm-up list (" + e.getMessage() + ").");
+            return;
+        }
+        System.out.println("Warming up the cache with " + nodes.size() + " names from " + fileName + "...");
+        long start = System.currentTimeMillis();
+        DNSWarmUp.Result result = new DNSWarmUp(rate, concurrency).run(nodes);
+        double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+        if (result.isComplete())
+            System.out.printf("Warm-up done: %d of %d names resolved in %.1f s\n", result.getResolved(),
+                    nodes.size(), elapsed);
+        else
+            System.out.printf("Warm-up stopped at its deadline after %.1f s: %d of %d names resolved, %d lookups " +
+                    "unfinished, %d not started\n", elapsed, result.getResolved(), nodes.size(),
+                    result.getStarted() - result.getFinished(), nodes.size() - result.getStarted());
+    }
+
+    private static void startServer(int port) {
+        try {
+            server = new DNSServer(port);
+            System.out.println("Answering queries on UDP port " + server.getPort());
+        } catch (SocketException e) {
+            System.err.println("Could not listen on port " + port + " (" + e.getMessage() + ").");
+        }
+    }
+
+    private static void stopServer() {
+        if (server != null) {
+            System.out.println("Stopped answering queries on UDP port " + server.getPort());
+            server.close();
+            server = null;
+        }
+    }
+
+    private static void printServerStatus() {
+        System.out.println("Server: " + (server != null ? "UDP port " + server.getPort() : "OFF"));
+        System.out.println("Packet cache: " + DNSPacketCache.getTotalSize() + " entries, "
+                + DNSPacketCache.getTotalHits() + " hits, " + DNSPacketCache.getTotalMisses() + " misses");
+    }
+
+    // parses the value of a numeric command line option, returning -1 if it is not a positive number
+    private static int parsePositiveOption(String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            return parsed > 0 ? parsed : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /**
+     * Sets the root DNS server lookups start at, instead of the root server set.
+     *
+     * @param server Address of the root DNS server.
+     */
+    public static void setRootServer(InetAddress server) {
+        rootServers.setOverride(server);
+    }
+
+    /**
+     * Sends a priming query (the NS records of the root zone) to a root server, and waits until
+     * the root servers of the response replace the root hints.
+     */
+    private static void primeRootServers() {
+        if (!rootServers.startPriming()) return;
+        DNSNode rootNode = new DNSNode(DNSRootServers.ROOT_NAME, RecordType.NS);
+        int count = DNSResolverWorker.forNode(rootNode).submitAsync(DNSLookupService::prime).join();
+        rootServers.endPriming();
+        if (count > 0)
+            System.out.println("Primed " + count + " root DNS servers");
+        else
+            System.out.println("Priming query failed, using root hints");
+    }
+
+    // sends the priming query and keeps the root servers of its response, returning their number
+    private static CompletableFuture<Integer> prime() {
+        DNSNode rootNode = new DNSNode(DNSRootServers.ROOT_NAME, RecordType.NS);
+        return queryRootServer(rootNode, new DNSQueryBudget()).thenApply(response -> {
+            Set<ResourceRecord> records = decodeAndCache(response);
+
+            Set<String> rootNames = new HashSet<>();
+            long expirationTime = Long.MAX_VALUE;
+            for (ResourceRecord record : records) {
+                if (record.getNode().equals(rootNode)) {
+                    rootNames.add(record.getTextResult().toLowerCase(Locale.ROOT));
+                    expirationTime = Math.min(expirationTime, record.getExpirationTime().getTime());
+                }
+            }
+            List<InetAddress> addresses = new ArrayList<>();
+            for (ResourceRecord record : records) {
+                if (record.getType() == RecordType.A && record.getInetResult() != null
+                        && rootNames.contains(record.getHostName().toLowerCase(Locale.ROOT))) {
+                    addresses.add(record.getInetResult());
+                    expirationTime = Math.min(expirationTime, record.getExpirationTime().getTime());
+                }
+            }
+            if (!addresses.isEmpty())
+                rootServers.setPrimed(addresses, expirationTime);
+            return addresses.size();
+        }).exceptionally(ex -> 0);
+    }
+
+    /**
+     * Finds all the results for a specific node. The lookup runs on the worker that owns the
+     * node, and may use cached results.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A future completed with the set of resource records corresponding to the query.
+     */
+    public static CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node) {
+        return resolve(node, new DNSQueryBudget());
+    }
+
+    /**
+     * Finds all the results for a specific node, within an upstream budget. The lookup runs on
+     * the worker that owns the node, and may use cached results.
+     *
+     * @param node   Host and record type to be used for search.
+     * @param budget Deadline, number of upstream queries and priority allowed for the lookup.
+     * @return A future completed with the set of resource records corresponding to the query.
+     */
+    public static CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node, DNSQueryBudget budget) {
+        return DNSResolverWorker.forNode(node).submitAsync(
+                () -> getResults(node, 0, budget).thenApply(DNSLookupService::copyOf));
+    }
+
+    /**
+     * Returns the nodes the results of a node were resolved from, besides the node itself: the
+     * CNAME nodes of the cached chains leading from the node to its canonical name, and the
+     * canonical name's node. Each chain is read on the worker that owns its alias.
+     *
+     * @param node Host and record type of a query already resolved.
+     * @return A future completed with the nodes, empty if the node is not an alias.
+     */
+    public static CompletableFuture<Set<DNSNode>> getSourceNodes(DNSNode node) {
+        return addSourceNodes(node, new HashSet<>(), 0);
+    }
+
+    // adds the nodes of the chain cached for an alias, and of the chains following it
+    private static CompletableFuture<Set<DNSNode>> addSourceNodes(DNSNode alias, Set<DNSNode> nodes,
+                                                                 int indirectionLevel) {
+        return DNSResolverWorker.forNode(alias).submitAsync(() -> {
+            CNameChain chain = cache().getCachedChain(alias);
+            if (chain == null || indirectionLevel > MAX_INDIRECTION_LEVEL) return done(nodes);
+            for (ResourceRecord cname : chain.getCNames())
+                nodes.add(cname.getNode());
+            DNSNode target = new DNSNode(chain.getTarget(), alias.getType());
+            if (!nodes.add(target)) return done(nodes);
+            return addSourceNodes(target, nodes, indirectionLevel + chain.getCNames().size());
+        });
+    }
+
+    // copies results out of a worker's cache shard, so they can be handed to another thread
+    private static Set<ResourceRecord> copyOf(Set<ResourceRecord> results) {
+        return results.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(new HashSet<>(results));
+    }
+
+    // returns the cache shard of the current worker
+    private static DNSCache cache() {
+        DNSResolverWorker worker = DNSResolverWorker.current();
+        return worker != null ? worker.getCache() : DNSCache.getInstance();
+    }
+
+    // returns the executor of the current lookup's continuations: the current worker, so they
+    // can use its cache shard, or the completing thread outside of a worker
+    private static Executor executor() {
+        DNSResolverWorker worker = DNSResolverWorker.current();
+        return worker != null ? worker : Runnable::run;
+    }
+
+    /**
+     * Hands the result of a future completed elsewhere (by a socket, a timer or another worker)
+     * back to the current worker. Every lookup function returns a future completed on the worker
+     * that called it, so its callers can chain continuations that use the cache shard.
+     *
+     * @param future Future completed on any thread.
+     * @return A future completed with the same result, by a task in the current worker's mailbox.
+     */
+    private static <T> CompletableFuture<T> onWorker(CompletableFuture<T> future) {
+        Executor executor = executor();
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, ex) -> executor.execute(() -> {
+            if (ex != null)
+                result.completeExceptionally(ex);
+            else
+                result.complete(value);
+        }));
+        return result;
+    }
+
+    // sends a query to a name server of a zone, and returns its response on the current worker
+    private static CompletableFuture<DNSServerResponse> query(InetAddress server, String zone, DNSNode node,
+                                                              DNSQueryBudget budget, long deadline) {
+        return onWorker(DNSQueryHandler.sendQuery(server, node, budget).getResponse(deadline))
+                .thenApply(response -> response.fromZone(zone));
+    }
+
+    // continues with a fallback if a query times out, as long as the budget allows it
+    private static <T> CompletableFuture<T> orElseOnTimeout(CompletableFuture<T> query, DNSQueryBudget budget,
+                                                            Supplier<CompletableFuture<T>> fallback) {
+        return query.handle((result, ex) -> {
+            if (ex == null)
+                return CompletableFuture.completedFuture(result);
+            Throwable cause = unwrap(ex);
+            if (cause instanceof SocketTimeoutException && !budget.isExhausted())
+                return fallback.get();
+            return CompletableFuture.<T>failedFuture(cause);
+        }).thenCompose(Function.identity());
+    }
+
+    // completes once a retrieval ends, whether or not it found anything: a server that cannot
+    // be reached or understood only means that no results were cached
+    private static CompletableFuture<Void> ignoringFailures(CompletableFuture<?> retrieval) {
+        return retrieval.handle((result, ex) -> {
+            Throwable cause = unwrap(ex);
+            if (cause == null || cause instanceof IOException || cause instanceof CancellationException
+                    || cause instanceof NullPointerException || cause instanceof BufferUnderflowException)
+                return null;
+            throw new CompletionException(cause);
+        });
+    }
+
+    private static Throwable unwrap(Throwable ex) {
+        return ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+    }
+
+    private static <T> CompletableFuture<T> done(T result) {
+        return CompletableFuture.completedFuture(result);
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -148,7 +626,30 @@ public class DNSLookupService {
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        DNSLookupStatistics.getInstance().record(node);
+        DNSQueryBudget budget = new DNSQueryBudget();
+        Set<ResourceRecord> results = getResults(node, 0, budget).join();
+        if (results.isEmpty() && budget.isExhausted())
+            System.err.println("Lookup stopped: time or query budget exhausted.");
+        printResults(node, results);
+    }
+
+    /**
+     * Finds the IPv4 and IPv6 addresses of a host and prints them on the standard output, in the
+     * order in which clients should try them.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     */
+    private static void findAndPrintAddresses(String hostName) {
+        DNSLookupStatistics.getInstance().record(new DNSNode(hostName, RecordType.A));
+        DNSLookupStatistics.getInstance().record(new DNSNode(hostName, RecordType.AAAA));
+        List<ResourceRecord> addresses = resolveAddresses(hostName, ADDRESS_LOOKUP_TIMEOUT).join();
+        if (addresses.isEmpty())
+            System.out.printf("%-30s %-5s %-8d %s\n", hostName, "ADDR", -1, "0.0.0.0");
+        for (ResourceRecord record : addresses) {
+            System.out.printf("%-30s %-5s %-8d %s\n", hostName,
+                    record.getType(), record.getTTL(), record.getTextResult());
+        }
     }
 
     /**
@@ -160,52 +661,271 @@ public class DNSLookupService {
      *                         regarding CNAME results should increment this value by 1. Once this value
      *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
      *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @param budget           Upstream budget of the lookup, shared with every lookup it triggers.
+     * @return A future completed, on the calling worker, with the set of resource records
+     *         corresponding to the specific query requested.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+    private static CompletableFuture<Set<ResourceRecord>> getResults(DNSNode node, int indirectionLevel,
+                                                                     DNSQueryBudget budget) {
+
+        // hand the lookup over to the worker owning the node, and continue here with its results
+        DNSResolverWorker owner = DNSResolverWorker.forNode(node);
+        if (owner != null && owner != DNSResolverWorker.current())
+            return onWorker(owner.submitAsync(
+                    () -> getResults(node, indirectionLevel, budget).thenApply(DNSLookupService::copyOf)));
 
         if (p1Flag) { // For isolating part 1 testing only
-            retrieveResultsFromServer(node, rootServer);
-            return Collections.emptySet();
+            return retrieveResultsFromClosestServer(node, budget).thenApply(done -> Collections.emptySet());
         } else if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
             System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
+            return done(Collections.emptySet());
         }
 
-        Set <ResourceRecord> results = parseCName(node, indirectionLevel);
-        if (!results.isEmpty()) return results;
+        return parseCName(node, indirectionLevel, budget).thenCompose(results -> {
+            if (!results.isEmpty()) return done(results);
+
+            // reverse lookups for addresses resolved recently are answered from the address index
+            if (node.getType() == RecordType.PTR) {
+                Set<ResourceRecord> indexed = getIndexedReverseResults(node);
+                if (!indexed.isEmpty()) return done(indexed);
+            }
+
+            // The query was not cached so start query at rootserver, unless cached NSEC or NSEC3
+            // ranges show that the name does not exist
+            if (budget.isExhausted() || DNSDenialIndex.getInstance().isDenied(node.getHostName()))
+                return done(Collections.emptySet());
+            DNSForwarders.Pool forwarders = DNSForwarders.getInstance().findPool(node.getHostName());
+            CompletableFuture<Void> retrieval = forwarders != null
+                    ? retrieveResultsFromForwarders(node, forwarders, budget)
+                    : retrieveResultsFromClosestServer(node, budget);
+            return retrieval.thenCompose(retrieved -> parseCName(node, indirectionLevel, budget));
+        });
+    }
 
-        //System.out.println(results.size());
+    /**
+     * Builds PTR records for a reverse lookup name from the owner names of the cached A and AAAA
+     * records holding the address. The records expire along with the address records.
+     *
+     * @param node Reverse lookup name and PTR type.
+     * @return A potentially empty set of PTR records.
+     */
+    private static Set<ResourceRecord> getIndexedReverseResults(DNSNode node) {
+        InetAddress address = ReverseName.toAddress(node.getHostName());
+        if (address == null) return Collections.emptySet();
 
-        // The query was not cached so start query at rootserver
-        retrieveResultsFromServer(node, rootServer);
-        results = parseCName(node, indirectionLevel);
-        if (!results.isEmpty()) return results;
-        return Collections.emptySet();
+        Set<ResourceRecord> results = new HashSet<>();
+        long now = System.currentTimeMillis();
+        cache().getNamesForAddress(address).forEach((hostName, expirationTime) -> {
+            // rounded down, so the record never outlives the address record
+            long ttl = (expirationTime - now) / 1000;
+            if (ttl > 0)
+                results.add(new ResourceRecord(node.getHostName(), RecordType.PTR, ttl, hostName));
+        });
+        return results;
     }
 
-    private static Set<ResourceRecord> parseCName(DNSNode node, int indirectionLevel) {
+    private static CompletableFuture<Set<ResourceRecord>> parseCName(DNSNode node, int indirectionLevel,
+                                                                     DNSQueryBudget budget) {
         // check if cache contains query
-        Set<ResourceRecord> cacheContents =  cache.getCachedResults(node);
-        if (!cacheContents.isEmpty()) return cacheContents;
-        // find cname of the alias
-        Set<ResourceRecord> cnames = cache.getCachedResults(new DNSNode(node.getHostName(), RecordType.CNAME));
-        if (!cnames.isEmpty()) {
-            for (ResourceRecord cname : cnames) {
-                Set<ResourceRecord> results = getResults(new DNSNode(cname.getTextResult(),node.getType()), ++indirectionLevel);
-                addToCache(node, results);
+        Set<ResourceRecord> cacheContents =  cache().getCachedResults(node);
+        if (!cacheContents.isEmpty()) return done(cacheContents);
+        if (node.getType() == RecordType.CNAME) return done(Collections.emptySet());
+
+        // find the chain of cnames of the alias, resolving it from cached cnames if needed
+        CNameChain cachedChain = cache().getCachedChain(node);
+        CNameChain chain = cachedChain != null ? cachedChain : buildCNameChain(node);
+        if (chain == null) return done(Collections.emptySet());
+
+        // the canonical name's results usually arrive in the same answer section as the cnames
+        DNSNode targetNode = new DNSNode(chain.getTarget(), node.getType());
+        Set<ResourceRecord> targetResults = cache().getCachedResults(targetNode);
+        if (!targetResults.isEmpty())
+            return done(chain.flatten(targetResults));
+        return getResults(targetNode, indirectionLevel + chain.getCNames().size(), budget).thenApply(chain::flatten);
+    }
+
+    /**
+     * Follows the cnames cached for the host name of a node, and caches the resulting chain. The
+     * chain ends at the first name with cached results for the node's type, or at the last name
+     * with a cached cname. Cnames that arrived together in a single answer section are all
+     * followed here, without further lookups.
+     *
+     * @param node Alias and record type of the query.
+     * @return The chain of cnames, or null if the alias has no cached cname, its cnames loop, or
+     *         the chain is longer than MAX_INDIRECTION_LEVEL.
+     */
+    private static CNameChain buildCNameChain(DNSNode node) {
+        List<ResourceRecord> cnames = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        String hostName = node.getHostName();
+        visited.add(hostName.toLowerCase(Locale.ROOT));
+
+        while (cache().getCachedResults(new DNSNode(hostName, node.getType())).isEmpty()) {
+            Set<ResourceRecord> records = cache().getCachedResults(new DNSNode(hostName, RecordType.CNAME));
+            if (records.isEmpty()) break;
+
+            ResourceRecord cname = records.iterator().next();
+            hostName = cname.getTextResult();
+            if (!visited.add(hostName.toLowerCase(Locale.ROOT))) {
+                System.err.println("CNAME loop detected for " + node.getHostName() + ".");
+                return null;
+            }
+            if (cnames.size() >= MAX_INDIRECTION_LEVEL) {
+                System.err.println("CNAME chain too long for " + node.getHostName() + ".");
+                return null;
             }
-            return cache.getCachedResults(node);
+            cnames.add(cname);
         }
-        return Collections.emptySet();
+        if (cnames.isEmpty()) return null;
+
+        CNameChain chain = new CNameChain(node, cnames);
+        cache().addChain(chain);
+        return chain;
     }
 
-    // adds new resorce records to cache
-    private static void addToCache(DNSNode node, Set<ResourceRecord> results) {
-        for (ResourceRecord name : results) {
-            cache.addResult(new ResourceRecord(node.getHostName(), node.getType(), name.getTTL(), name.getInetResult()));
+    /**
+     * Retrieves DNS results starting at the closest server known (see queryClosestServer), and
+     * follows referrals from there. Results are stored in the cache.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param budget Upstream budget of the lookup. No query is sent once it is exhausted.
+     * @return A future completed once the lookup has ended, whether or not it found results.
+     */
+    private static CompletableFuture<Void> retrieveResultsFromClosestServer(DNSNode node, DNSQueryBudget budget) {
+        return ignoringFailures(queryClosestServer(node, budget).thenCompose(response -> {
+            Set<ResourceRecord> nameservers = decodeAndCache(response);
+
+            if (p1Flag) return done(null); // For testing part 1 only
+
+            return queryNextLevel(node, nameservers, response.getServerZone(), budget);
+        }));
+    }
+
+    /**
+     * Retrieves DNS results from the forwarders of a zone, which resolve the query recursively.
+     * Results are stored in the cache.
+     *
+     * @param node       Host name and record type to be used for the query.
+     * @param forwarders Forwarders of the zone the host name belongs to.
+     * @param budget     Upstream budget of the lookup. No query is sent once it is exhausted.
+     * @return A future completed once the lookup has ended, whether or not it found results.
+     */
+    private static CompletableFuture<Void> retrieveResultsFromForwarders(DNSNode node, DNSForwarders.Pool forwarders,
+                                                                        DNSQueryBudget budget) {
+        return ignoringFailures(queryForwarders(forwarders, budget, node)
+                .thenAccept(responses -> responses.forEach(DNSLookupService::decodeAndCache)));
+    }
+
+    /**
+     * Sends queries (recursion desired) to one of the forwarders of a zone, all to the same
+     * forwarder. If the forwarder does not respond to all of them within FORWARD_QUERY_TIMEOUT,
+     * or responds with a server failure or refusal, the queries are sent to another forwarder.
+     *
+     * @param forwarders Forwarders of the zone the queried names belong to.
+     * @param budget     Upstream budget of the lookup.
+     * @param nodes      Host names and record types of the queries.
+     * @return A future completed with the responses of the first forwarder to answer every
+     *         query, in query order, or completed exceptionally with an IOException if the
+     *         budget is exhausted or every forwarder fails.
+     */
+    private static CompletableFuture<List<DNSServerResponse>> queryForwarders(DNSForwarders.Pool forwarders,
+                                                                              DNSQueryBudget budget,
+                                                                              DNSNode... nodes) {
+        return queryForwarders(forwarders, budget, new HashSet<>(), nodes);
+    }
+
+    // sends the queries to a forwarder that has not failed yet, and to the next one if it fails
+    private static CompletableFuture<List<DNSServerResponse>> queryForwarders(DNSForwarders.Pool forwarders,
+                                                                              DNSQueryBudget budget,
+                                                                              Set<InetAddress> failed,
+                                                                              DNSNode... nodes) {
+        InetAddress server = forwarders.select(failed);
+        if (server == null)
+            return CompletableFuture.failedFuture(
+                    new IOException("No forwarder of zone " + forwarders.getZone() + " answered"));
+        failed.add(server);
+
+        long deadline = Math.min(budget.getDeadline(), System.currentTimeMillis() + FORWARD_QUERY_TIMEOUT);
+        List<DNSQueryHandler.PendingQuery> queries = new ArrayList<>();
+        DNSServerResponse[] responses = new DNSServerResponse[nodes.length];
+        AtomicInteger remaining = new AtomicInteger(nodes.length);
+        CompletableFuture<List<DNSServerResponse>> answered = new CompletableFuture<>();
+        for (int i = 0; i < nodes.length; i++) {
+            DNSQueryHandler.PendingQuery query = DNSQueryHandler.sendQuery(server, nodes[i], budget);
+            queries.add(query);
+            int index = i;
+            query.getResponse(deadline).whenComplete((response, ex) -> {
+                if (ex != null) {
+                    answered.completeExceptionally(ex);
+                } else if (response.getRCode() == RCODE_SERVFAIL || response.getRCode() == RCODE_REFUSED) {
+                    // a forwarder that cannot answer is avoided like one that does not respond
+                    DNSServerLatency.getInstance().recordTimeout(server, FORWARD_QUERY_TIMEOUT);
+                    answered.completeExceptionally(new IOException("Forwarder " + server + " failed"));
+                } else {
+                    responses[index] = response.fromZone(forwarders.getZone());
+                    if (remaining.decrementAndGet() == 0)
+                        answered.complete(Arrays.asList(responses));
+                }
+            });
         }
+
+        return onWorker(answered).handle((result, ex) -> {
+            for (DNSQueryHandler.PendingQuery query : queries)
+                query.cancel();
+            forwarders.release(server);
+            if (ex == null)
+                return done(result);
+            Throwable cause = unwrap(ex);
+            if (cause instanceof IOException && !budget.isExhausted())
+                return queryForwarders(forwarders, budget, failed, nodes);
+            return CompletableFuture.<List<DNSServerResponse>>failedFuture(cause);
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Sends the first query of an iterative lookup: to a name server of the closest enclosing
+     * zone whose delegation is cached, or to a root server if there is none, or if that name
+     * server does not respond within ROOT_QUERY_TIMEOUT.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param budget Upstream budget of the lookup.
+     * @return A future completed with the response to the query, or completed exceptionally
+     *         with an IOException if the budget is exhausted before a server responds.
+     */
+    private static CompletableFuture<DNSServerResponse> queryClosestServer(DNSNode node, DNSQueryBudget budget) {
+        DNSDelegations.Delegation delegation = p1Flag ? null : DNSDelegations.getInstance().find(node.getHostName());
+        if (delegation == null)
+            return queryRootServer(node, budget);
+        InetAddress server = DNSServerLatency.getInstance().choose(delegation.getServers());
+        long deadline = Math.min(budget.getDeadline(), System.currentTimeMillis() + ROOT_QUERY_TIMEOUT);
+        return orElseOnTimeout(query(server, delegation.getZone(), node, budget, deadline), budget,
+                () -> queryRootServer(node, budget));
     }
+
+    /**
+     * Sends a query to a root server chosen by latency, moving on to another root server each
+     * time one does not respond within ROOT_QUERY_TIMEOUT. Once the root servers of the last
+     * priming query expire, a new priming query is started in the background.
+     *
+     * @param node   Host name and record type to be used for the query.
+     * @param budget Upstream budget of the lookup.
+     * @return A future completed with the response of the first root server to respond, or
+     *         completed exceptionally with an IOException if the budget is exhausted first.
+     */
+    private static CompletableFuture<DNSServerResponse> queryRootServer(DNSNode node, DNSQueryBudget budget) {
+        DNSNode rootNode = new DNSNode(DNSRootServers.ROOT_NAME, RecordType.NS);
+        if (rootServers.isPrimingDue() && rootServers.startPriming())
+            DNSResolverWorker.forNode(rootNode).submitAsync(DNSLookupService::prime)
+                    .whenComplete((count, ex) -> rootServers.endPriming());
+
+        InetAddress server = rootServers.select();
+        if (server == null)
+            return CompletableFuture.failedFuture(new IOException("No root server to query"));
+        long deadline = Math.min(budget.getDeadline(), System.currentTimeMillis() + ROOT_QUERY_TIMEOUT);
+        return orElseOnTimeout(query(server, DNSRootServers.ROOT_NAME, node, budget, deadline), budget,
+                () -> queryRootServer(node, budget));
+    }
+
     /**
      * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
      * and the query is repeated with a new server if the provided one is non-authoritative.
@@ -213,24 +933,21 @@ public class DNSLookupService {
      *
      * @param node   Host name and record type to be used for the query.
      * @param server Address of the server to be used for the query.
+     * @param zone   Zone the server was referred to as a name server of, or null if not known.
+     * @param budget Upstream budget of the lookup. No query is sent once it is exhausted.
+     * @return A future completed once the lookup has ended, whether or not it found results.
      */
 
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        byte[] message = new byte[512]; // query is no longer than 512 bytes
+    private static CompletableFuture<Void> retrieveResultsFromServer(DNSNode node, InetAddress server, String zone,
+                                                                    DNSQueryBudget budget) {
 
-        try {
-            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
-            Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
-                    serverResponse.getResponse(),
-                    cache);
-            if (nameservers == null) nameservers = Collections.emptySet();
+        return ignoringFailures(query(server, zone, node, budget, budget.getDeadline()).thenCompose(serverResponse -> {
+            Set<ResourceRecord> nameservers = decodeAndCache(serverResponse);
 
-            if (p1Flag) return; // For testing part 1 only
+            if (p1Flag) return done(null); // For testing part 1 only
 
-            queryNextLevel(node, nameservers);
-
-        } catch (IOException | NullPointerException ignored){
-        }
+            return queryNextLevel(node, nameservers, zone, budget);
+        }));
     }
 
     /**
@@ -238,36 +955,220 @@ public class DNSLookupService {
      *
      * @param node        Host name and record type of the query.
      * @param nameservers List of name servers returned from the previous level to query the next level.
+     * @param zone        Zone of the server that returned them, or null if not known.
+     * @param budget      Upstream budget of the lookup, also used to find the address of a name server.
+     * @return A future completed once the lookup has ended.
      */
-    private static void queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers) {
+    private static CompletableFuture<Void> queryNextLevel(DNSNode node, Set<ResourceRecord> nameservers, String zone,
+                                                         DNSQueryBudget budget) {
 
         // if the nameserver contains the answer we do not need to query next level
+        if (answersQuery(node, nameservers)) return done(null);
+        DNSDelegations.getInstance().addReferral(node.getHostName(), zone, nameservers);
+
+        String nextZone = referralZone(node.getHostName(), nameservers, zone);
+        return findNextServer(nameservers, budget).thenCompose(nextServer ->
+                nextServer != null ? retrieveResultsFromServer(node, nextServer, nextZone, budget) : done(null));
+    }
+
+    // returns the zone a referral delegates: the closest zone enclosing the queried name whose NS
+    // records it holds, if that zone is at or below the zone of the server that sent it, or null
+    private static String referralZone(String hostName, Set<ResourceRecord> nameservers, String serverZone) {
+        if (serverZone == null) return null;
+        String name = hostName.toLowerCase(Locale.ROOT);
+        String zone = null;
+        for (ResourceRecord rr : nameservers) {
+            if (rr.getType() != RecordType.NS) continue;
+            String owner = rr.getHostName().toLowerCase(Locale.ROOT);
+            if (isWithin(name, owner) && isWithin(owner, serverZone.toLowerCase(Locale.ROOT))
+                    && (zone == null || owner.length() > zone.length()))
+                zone = owner;
+        }
+        return zone;
+    }
+
+    private static boolean isWithin(String name, String zone) {
+        return zone.isEmpty() || name.equals(zone) || name.endsWith("." + zone);
+    }
+
+    // returns true if a response contains the answer to the query (or a cname for it)
+    private static boolean answersQuery(DNSNode node, Set<ResourceRecord> nameservers) {
         for (ResourceRecord rr: nameservers) {
             if (rr.getNode().equals(node) || rr.getType().equals(RecordType.CNAME)) {
-                return;
+                return true;
             }
         }
-        // query nameservers that have ips
+        return false;
+    }
+
+    // returns the address of a name server of a referral, or null if the response is not a referral
+    private static CompletableFuture<InetAddress> findNextServer(Set<ResourceRecord> nameservers,
+                                                                 DNSQueryBudget budget) {
+        // use nameservers that have ips
         for (ResourceRecord rr : nameservers) {
-            if (rr.getInetResult() != null && rr.getType().equals(RecordType.A)) {
-                retrieveResultsFromServer(node, rr.getInetResult());
-                return;
+            if (rr.getType().equals(RecordType.A) && rr.getInetResult() != null) {
+                return done(rr.getInetResult());
             }
         }
-        // find ips of nameservers without ip and send dns query
+        // find ips of nameservers without ip
         for (ResourceRecord rr : nameservers) {
-            if (rr.getInetResult() == null) {
+            if (rr.getType().equals(RecordType.NS)) {
                 DNSNode nextNode = new DNSNode(rr.getTextResult(),RecordType.A);
-                Set<ResourceRecord> nsresult = getResults(nextNode,0);
-                for (ResourceRecord res : nsresult) {
-                    retrieveResultsFromServer(node, res.getInetResult());
-                    break;
-                }
-                
-              // retrieveResultsFromServer(node, nsresult.iterator().next().getInetResult());
-                return;
+                return getResults(nextNode, 0, budget).thenApply(nsresult -> {
+                    for (ResourceRecord res : nsresult) {
+                        return res.getInetResult();
+                    }
+                    return null;
+                });
             }
         }
+        return done(null);
+    }
+
+    /**
+     * Finds the IPv4 and IPv6 addresses of a host. The lookup runs on the worker that owns the
+     * host name, and may use cached results.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     * @param timeout  Time (in milliseconds) after which the lookup returns whatever addresses
+     *                 it has found.
+     * @return A future completed with the A and AAAA records of the host, in the order in which
+     *         clients should try them.
+     */
+    public static CompletableFuture<List<ResourceRecord>> resolveAddresses(String hostName, long timeout) {
+        DNSQueryBudget budget = new DNSQueryBudget(timeout, DNSQueryBudget.DEFAULT_MAX_QUERIES,
+                DNSQueryBudget.PRIORITY_CLIENT);
+        DNSNode node = new DNSNode(hostName, RecordType.A);
+        return DNSResolverWorker.forNode(node).submitAsync(() -> getAddresses(hostName, budget));
+    }
+
+    // finds the A and AAAA records of a host, walking the referrals only once for both types
+    private static CompletableFuture<List<ResourceRecord>> getAddresses(String hostName, DNSQueryBudget budget) {
+        DNSNode nodeA = new DNSNode(hostName, RecordType.A);
+        DNSNode nodeAAAA = new DNSNode(hostName, RecordType.AAAA);
+
+        return parseCName(nodeA, 0, budget).thenCombine(parseCName(nodeAAAA, 0, budget), (resultsA, resultsAAAA) -> {
+            if (resultsA.isEmpty() && resultsAAAA.isEmpty()) {
+                if (DNSDenialIndex.getInstance().isDenied(hostName)) return done(Collections.<ResourceRecord>emptyList());
+                return retrieveAddresses(nodeA, nodeAAAA, budget).thenCompose(retrieved ->
+                        parseCName(nodeA, 0, budget).thenCombine(parseCName(nodeAAAA, 0, budget),
+                                DNSLookupService::mergeAddresses));
+            } else if (resultsA.isEmpty()) {
+                return getResults(nodeA, 0, budget).thenApply(results -> mergeAddresses(results, resultsAAAA));
+            } else if (resultsAAAA.isEmpty()) {
+                return getResults(nodeAAAA, 0, budget).thenApply(results -> mergeAddresses(resultsA, results));
+            }
+            return done(mergeAddresses(resultsA, resultsAAAA));
+        }).thenCompose(Function.identity());
+    }
+
+    /**
+     * Retrieves the A and AAAA records of a host from the DNS servers. The referrals are the
+     * same for both types, so they are walked with the A query alone, and the AAAA query is only
+     * sent to the server that answers it, or that has no A records for the host. Results are
+     * stored in the cache.
+     *
+     * @param nodeA    Host name and A record type.
+     * @param nodeAAAA Host name and AAAA record type.
+     * @param budget   Upstream budget of the lookup. Whatever has arrived by its deadline is kept.
+     * @return A future completed once the lookup has ended, whether or not it found results.
+     */
+    private static CompletableFuture<Void> retrieveAddresses(DNSNode nodeA, DNSNode nodeAAAA, DNSQueryBudget budget) {
+
+        // forwarders resolve both queries recursively; each type is cached as soon as it
+        // arrives, so a forwarder that loses one of them does not cost the other
+        DNSForwarders.Pool forwarders = DNSForwarders.getInstance().findPool(nodeA.getHostName());
+        if (forwarders != null)
+            return CompletableFuture.allOf(retrieveResultsFromForwarders(nodeA, forwarders, budget),
+                    retrieveResultsFromForwarders(nodeAAAA, forwarders, budget));
+
+        return ignoringFailures(queryClosestServer(nodeA, budget).thenCompose(response ->
+                followAddressReferral(nodeA, nodeAAAA, response, budget)));
+    }
+
+    /**
+     * Sends the query of one address type of a host to a server, and follows its referral with
+     * the same type. If the server does not respond within ADDRESS_QUERY_TIMEOUT, it gets the
+     * query of the other type instead, which walks the rest of the referrals on its own.
+     * Results are stored in the cache.
+     *
+     * @param walked Host name and the record type walking the referrals.
+     * @param other  Host name and the other address type, or null if that query has timed out.
+     * @param server Address of the server to be used for the query.
+     * @param zone   Zone the server was referred to as a name server of, or null if not known.
+     * @param budget Upstream budget of the lookup.
+     * @return A future completed once the lookup has ended.
+     */
+    private static CompletableFuture<Void> retrieveAddressesFromServer(DNSNode walked, DNSNode other,
+                                                                      InetAddress server, String zone,
+                                                                      DNSQueryBudget budget) {
+        long deadline = other == null ? budget.getDeadline()
+                : Math.min(budget.getDeadline(), System.currentTimeMillis() + ADDRESS_QUERY_TIMEOUT);
+        return query(server, zone, walked, budget, deadline).handle((response, ex) -> {
+            if (ex == null)
+                return followAddressReferral(walked, other, response, budget);
+            Throwable cause = unwrap(ex);
+            if (other != null && cause instanceof SocketTimeoutException && !budget.isExhausted())
+                return retrieveAddressesFromServer(other, null, server, zone, budget);
+            return CompletableFuture.<Void>failedFuture(cause);
+        }).thenCompose(Function.identity());
+    }
+
+    // follows the referral in a response to the query walking the referrals of an address
+    // lookup; a response that ends the walk comes from the server to send the other type to,
+    // unless the host does not exist
+    private static CompletableFuture<Void> followAddressReferral(DNSNode walked, DNSNode other,
+                                                                 DNSServerResponse response, DNSQueryBudget budget) {
+        Set<ResourceRecord> nameservers = decodeAndCache(response);
+        if (answersQuery(walked, nameservers) || !isReferral(nameservers)) {
+            if (other == null || response.getRCode() == RCODE_NXDOMAIN) return done(null);
+            return query(response.getServer(), response.getServerZone(), other, budget, budget.getDeadline())
+                    .thenAccept(DNSLookupService::decodeAndCache);
+        }
+
+        DNSDelegations.getInstance().addReferral(walked.getHostName(), response.getServerZone(), nameservers);
+        String nextZone = referralZone(walked.getHostName(), nameservers, response.getServerZone());
+        return findNextServer(nameservers, budget).thenCompose(nextServer -> nextServer != null
+                ? retrieveAddressesFromServer(walked, other, nextServer, nextZone, budget) : done(null));
+    }
+
+    // returns true if a response refers the query to the name servers of another zone
+    private static boolean isReferral(Set<ResourceRecord> nameservers) {
+        for (ResourceRecord rr : nameservers) {
+            if (rr.getType() == RecordType.NS) return true;
+        }
+        return false;
+    }
+
+    // decodes a response into the current worker's cache shard, returning its records; a
+    // response that cannot be decoded gives no records
+    private static Set<ResourceRecord> decodeAndCache(DNSServerResponse serverResponse) {
+        try {
+            Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
+                    serverResponse.getResponse(),
+                    serverResponse.getServerZone(),
+                    cache());
+            return nameservers == null ? Collections.emptySet() : nameservers;
+        } catch (IOException | NullPointerException | BufferUnderflowException e) {
+            return Collections.emptySet();
+        }
+    }
+
+    // orders addresses the way dual-stack clients try them: alternating between families,
+    // starting with IPv6 (RFC 8305)
+    private static List<ResourceRecord> mergeAddresses(Set<ResourceRecord> resultsA, Set<ResourceRecord> resultsAAAA) {
+        Comparator<ResourceRecord> byAddress = Comparator.comparing(ResourceRecord::getTextResult);
+        List<ResourceRecord> addressesA = new ArrayList<>(resultsA);
+        List<ResourceRecord> addressesAAAA = new ArrayList<>(resultsAAAA);
+        addressesA.sort(byAddress);
+        addressesAAAA.sort(byAddress);
+
+        List<ResourceRecord> merged = new ArrayList<>();
+        for (int i = 0; i < Math.max(addressesA.size(), addressesAAAA.size()); i++) {
+            if (i < addressesAAAA.size()) merged.add(addressesAAAA.get(i));
+            if (i < addressesA.size()) merged.add(addressesA.get(i));
+        }
+        return merged;
     }
 
     /**
@@ -277,7 +1178,10 @@ public class DNSLookupService {
      * @param results Set of results to be printed for the node.
      */
     private static void printResults(DNSNode node, Set<ResourceRecord> results) {
-        if (results.isEmpty())
+        if (results.isEmpty() && DNSDenialIndex.getInstance().isDenied(node.getHostName()))
+            System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
+                    node.getType(), -1, "NXDOMAIN");
+        else if (results.isEmpty())
             System.out.printf("%-30s %-5s %-8d %s\n", node.getHostName(),
                     node.getType(), -1, "0.0.0.0");
         for (ResourceRecord record : results) {
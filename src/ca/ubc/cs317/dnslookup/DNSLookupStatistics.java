@@ -0,0 +1,73 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Counts client lookups per host name and record type, so the most popular names can be saved
+ * on exit and used to warm up the cache on the next start (see DNSWarmUp). Lookups are only
+ * counted once counting is enabled, and at most MAX_TRACKED_NODES distinct queries are tracked.
+ */
+public class DNSLookupStatistics {
+
+    public static final int MAX_TRACKED_NODES = 100000;
+
+    private static DNSLookupStatistics instance = new DNSLookupStatistics();
+
+    private final Map<DNSNode, LongAdder> lookups = new ConcurrentHashMap<>();
+    private volatile boolean enabled = false;
+
+    /** Singleton retrieval method. This method returns the single statistics instance.
+     *
+     * @return Instance of the lookup statistics.
+     */
+    public static DNSLookupStatistics getInstance() {
+        return instance;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Counts a client lookup.
+     *
+     * @param node Host name and record type of the lookup.
+     */
+    public void record(DNSNode node) {
+        if (!enabled) return;
+        DNSNode key = new DNSNode(node.getHostName().toLowerCase(Locale.ROOT), node.getType());
+        LongAdder count = lookups.get(key);
+        if (count == null) {
+            if (lookups.size() >= MAX_TRACKED_NODES) return;
+            count = lookups.computeIfAbsent(key, k -> new LongAdder());
+        }
+        count.increment();
+    }
+
+    /**
+     * Writes the most looked up queries to a file, most popular first, as "name type count"
+     * lines that can be read back as a warm-up list.
+     *
+     * @param fileName Name of the file to write.
+     * @param limit    Maximum number of queries to write.
+     * @return The number of queries written.
+     * @throws IOException if the file could not be written.
+     */
+    public int saveTop(String fileName, int limit) throws IOException {
+        List<Map.Entry<DNSNode, Long>> ranked = new ArrayList<>();
+        lookups.forEach((node, count) -> ranked.add(new AbstractMap.SimpleEntry<>(node, count.sum())));
+        ranked.sort(Map.Entry.<DNSNode, Long>comparingByValue().reversed());
+
+        int written = Math.min(limit, ranked.size());
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            out.println("# most looked up names, most popular first: name type lookups");
+            for (Map.Entry<DNSNode, Long> entry : ranked.subList(0, written))
+                out.println(entry.getKey().getHostName() + " " + entry.getKey().getType() + " " + entry.getValue());
+        }
+        return written;
+    }
+}
@@ -0,0 +1,414 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** This class handles a cache of encoded DNS responses, used next to the DNS cache when
+ * answering clients in server mode. Each entry holds a complete response message for a query
+ * (host name, record type and class). A repeat query is answered by copying the message into
+ * the outgoing buffer, rewriting the transaction ID and patching the TTL fields at positions
+ * computed when the entry was stored. An entry is dropped as soon as one of its records
+ * expires, or when a record of one of the nodes it was resolved from (including every node of
+ * a CNAME chain) is added to or replaced in the DNS cache.
+ *
+ * Responses are stored up to the largest EDNS payload size the server accepts. A response
+ * longer than the client can receive (512 bytes, or the payload size of the query's OPT
+ * record) is cut at a record boundary and sent with the TC flag set.
+ *
+ * Like the DNS cache, the packet cache is sharded by worker: each worker owns a shard (see
+ * forNode), holding the responses to the questions it owns, and the invalidations of the nodes
+ * it owns along with the responses resolved from them. Shards are still thread-safe, since
+ * cached responses are answered on the server's receiving thread and a record may be cached
+ * (and invalidated) by a worker other than the owner of its node; but each invalidation only
+ * touches the shards of the node and of the responses holding it. Since the records of a
+ * response are read from the DNS cache before it is stored, a response is only kept if none of
+ * its nodes was invalidated since the records were read (see getGeneration).
+ */
+public class DNSPacketCache {
+
+    public static final int MAX_UDP_MESSAGE_SIZE = 512;
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int RESPONSE_FLAGS = 0x8180; // QR, RD and RA set, RCODE 0
+    private static final int OPT_RECORD_LENGTH = 11;
+    private static final int GENERATION_STRIPES = 256;
+
+    private static DNSPacketCache instance = new DNSPacketCache();
+
+    // a worker's shard hands the nodes owned by other workers to their shards; any other cache
+    // keeps every node itself
+    private final boolean workerShard;
+    private final Map<Key, Entry> entries = new ConcurrentHashMap<>();
+    // the responses resolved from each node, along with the shard holding each of them
+    private final Map<DNSNode, Map<Key, DNSPacketCache>> keysByRecordNode = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // the generation (see getGeneration) of the last invalidation of any node hashing to each stripe
+    private final AtomicLongArray invalidatedAt = new AtomicLongArray(GENERATION_STRIPES);
+
+    public DNSPacketCache() {
+        this(false);
+    }
+
+    private DNSPacketCache(boolean workerShard) {
+        this.workerShard = workerShard;
+    }
+
+    /**
+     * Creates the packet cache shard of a resolver worker.
+     */
+    static DNSPacketCache newShard() {
+        return new DNSPacketCache(true);
+    }
+
+    /** Default instance retrieval method. This method returns the packet cache used when no
+     * resolver workers are running.
+     *
+     * @return Instance of the packet cache.
+     */
+    public static DNSPacketCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Returns the shard of the worker owning a node, which holds the responses to questions
+     * about the node, or the default instance if no workers are running.
+     *
+     * @param node Host name and record type.
+     * @return The packet cache shard.
+     */
+    public static DNSPacketCache forNode(DNSNode node) {
+        DNSResolverWorker owner = DNSResolverWorker.forNode(node);
+        return owner != null ? owner.getPacketCache() : instance;
+    }
+
+    /**
+     * Returns the current generation of the cache. A caller reads it before reading the records
+     * of a response from the DNS cache, and passes it along with the records when storing the
+     * response. Generations are read from the monotonic clock, so they can be compared across
+     * shards.
+     */
+    public long getGeneration() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Returns the number of queries answered from every shard (those of the running workers and
+     * the default instance).
+     */
+    public static long getTotalHits() {
+        long total = 0;
+        for (DNSPacketCache shard : shards())
+            total += shard.getHits();
+        return total;
+    }
+
+    public static long getTotalMisses() {
+        long total = 0;
+        for (DNSPacketCache shard : shards())
+            total += shard.getMisses();
+        return total;
+    }
+
+    public static int getTotalSize() {
+        int total = 0;
+        for (DNSPacketCache shard : shards())
+            total += shard.size();
+        return total;
+    }
+
+    private static List<DNSPacketCache> shards() {
+        List<DNSPacketCache> shards = new ArrayList<>();
+        shards.add(instance);
+        for (int i = 0; i < DNSResolverWorker.getWorkerCount(); i++)
+            shards.add(DNSResolverWorker.getWorker(i).getPacketCache());
+        return shards;
+    }
+
+    // returns the shard owning a node: that of the worker owning it if this is a worker's shard,
+    // or else this cache
+    private DNSPacketCache shardOf(DNSNode node) {
+        if (!workerShard) return this;
+        DNSResolverWorker owner = DNSResolverWorker.forNode(node);
+        return owner != null ? owner.getPacketCache() : this;
+    }
+
+    /**
+     * Answers a query from a cached response, if there is one. Called on the shard owning the
+     * question (see forNode).
+     *
+     * @param query         Array holding the query message.
+     * @param questionEnd   Position right after the question section of the query.
+     * @param node          Host name and record type of the question.
+     * @param questionClass Class of the question.
+     * @param payloadSize   EDNS payload size of the query, or 0 if the query has no OPT record.
+     * @param out           Buffer the response is written to.
+     * @return The length of the response, or -1 if no valid response is cached.
+     */
+    public int answer(byte[] query, int questionEnd, DNSNode node, int questionClass, int payloadSize, byte[] out) {
+        Key key = new Key(node, questionClass);
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+            remove(key, entry);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return -1;
+        }
+        hits.incrementAndGet();
+        return copyResponse(entry, query, questionEnd, payloadSize, out);
+    }
+
+    /**
+     * Encodes the response to a query, stores it in the cache and writes it to a buffer. The
+     * response is not stored if one of its records cannot be encoded, or if one of the nodes it
+     * was resolved from was invalidated after the given generation.
+     *
+     * @param query         Array holding the query message.
+     * @param questionEnd   Position right after the question section of the query.
+     * @param node          Host name and record type of the question.
+     * @param questionClass Class of the question.
+     * @param answers       Records of the answer section.
+     * @param sourceNodes   Nodes the answers were resolved from besides their own, such as the
+     *                      nodes of a CNAME chain leading to them.
+     * @param generation    Generation of the cache (see getGeneration) read before the answers
+     *                      were read from the DNS cache.
+     * @param payloadSize   EDNS payload size of the query, or 0 if the query has no OPT record.
+     * @param out           Buffer the response is written to.
+     * @return The length of the response, or -1 if the response could not be encoded.
+     */
+    public int answer(byte[] query, int questionEnd, DNSNode node, int questionClass,
+                      Collection<ResourceRecord> answers, Collection<DNSNode> sourceNodes, long generation,
+                      int payloadSize, byte[] out) {
+        Entry entry = encode(node, questionClass, answers, sourceNodes);
+        if (entry == null)
+            return -1;
+
+        // the entry is registered under its nodes (in the shards owning them) before it is
+        // published, and only then checked against invalidations since the answers were read: an
+        // invalidation either happened before the check, which drops the entry, or finds the
+        // entry once registered
+        Key key = new Key(node, questionClass);
+        for (DNSNode recordNode : entry.recordNodes)
+            shardOf(recordNode).keysByRecordNode.compute(recordNode, (n, keys) -> {
+                Map<Key, DNSPacketCache> registered = keys != null ? keys : new ConcurrentHashMap<>();
+                registered.put(key, this);
+                return registered;
+            });
+        entries.put(key, entry);
+        for (DNSNode recordNode : entry.recordNodes) {
+            if (shardOf(recordNode).invalidatedAt.get(stripe(recordNode)) >= generation) {
+                remove(key, entry);
+                break;
+            }
+        }
+        return copyResponse(entry, query, questionEnd, payloadSize, out);
+    }
+
+    /**
+     * Drops every cached response holding a record of a node, or resolved through it. Called by
+     * the DNS cache whenever a record is added or replaced, on the shard owning the node (see
+     * forNode).
+     *
+     * @param recordNode Host name and record type of the record.
+     */
+    public void invalidate(DNSNode recordNode) {
+        DNSNode node = normalize(recordNode);
+        DNSPacketCache owner = shardOf(node);
+        owner.invalidatedAt.accumulateAndGet(stripe(node), getGeneration(), Math::max);
+        Map<Key, DNSPacketCache> keys = owner.keysByRecordNode.remove(node);
+        if (keys == null) return;
+        for (Map.Entry<Key, DNSPacketCache> key : keys.entrySet()) {
+            Entry entry = key.getValue().entries.get(key.getKey());
+            if (entry != null)
+                key.getValue().remove(key.getKey(), entry);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void remove(Key key, Entry entry) {
+        if (!entries.remove(key, entry)) return;
+        for (DNSNode recordNode : entry.recordNodes)
+            shardOf(recordNode).keysByRecordNode.computeIfPresent(recordNode, (n, keys) -> {
+                keys.remove(key);
+                return keys.isEmpty() ? null : keys;
+            });
+    }
+
+    private static int stripe(DNSNode node) {
+        return Math.floorMod(node.hashCode(), GENERATION_STRIPES);
+    }
+
+    // copies a cached response into the outgoing buffer, with the transaction ID, RD flag and
+    // question of the query, and with TTLs counted down to the current time; the answers are
+    // cut at the last record that fits in the client's payload size, leaving room for an OPT
+    // record if the query has one
+    private static int copyResponse(Entry entry, byte[] query, int questionEnd, int payloadSize, byte[] out) {
+        int limit = Math.min(out.length, payloadSize > 0 ? payloadSize - OPT_RECORD_LENGTH : MAX_UDP_MESSAGE_SIZE);
+        if (entry.questionEnd != questionEnd || questionEnd > limit)
+            return -1;
+
+        int count = entry.recordEnds.length;
+        while (count > 0 && entry.recordEnds[count - 1] > limit)
+            count--;
+        int length = count > 0 ? entry.recordEnds[count - 1] : questionEnd;
+        boolean truncated = count < entry.recordEnds.length || entry.truncated;
+
+        System.arraycopy(entry.packet, 0, out, 0, length);
+        out[0] = query[0];
+        out[1] = query[1];
+        out[2] = (byte) ((out[2] & ~0x03) | (query[2] & 0x01) | (truncated ? 0x02 : 0));
+        out[6] = (byte) (count >> 8);
+        out[7] = (byte) count;
+        System.arraycopy(query, HEADER_LENGTH, out, HEADER_LENGTH, questionEnd - HEADER_LENGTH);
+        if (payloadSize > 0) {
+            out[11] = 1;
+            length = writeOptRecord(out, length);
+        }
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            long ttl = Math.max(0, (entry.expirations[i] - now + 999) / 1000);
+            int position = entry.ttlPositions[i];
+            out[position] = (byte) (ttl >> 24);
+            out[position + 1] = (byte) (ttl >> 16);
+            out[position + 2] = (byte) (ttl >> 8);
+            out[position + 3] = (byte) ttl;
+        }
+        return length;
+    }
+
+    // writes an OPT record advertising the largest payload size the server accepts
+    private static int writeOptRecord(byte[] out, int position) {
+        ByteBuffer buffer = ByteBuffer.wrap(out, position, OPT_RECORD_LENGTH);
+        buffer.put((byte) 0);
+        buffer.putShort((short) RecordType.OPT.getCode());
+        buffer.putShort((short) DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE);
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+        return buffer.position();
+    }
+
+    // encodes a response with a zero transaction ID, or returns null if it cannot be encoded;
+    // answers that do not fit in the largest payload size are left out, and the entry marked
+    // as truncated
+    private static Entry encode(DNSNode node, int questionClass, Collection<ResourceRecord> answers,
+                                Collection<DNSNode> sourceNodes) {
+        ByteBuffer buffer = ByteBuffer.allocate(DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE);
+        int[] ttlPositions = new int[answers.size()];
+        int[] recordEnds = new int[answers.size()];
+        long[] expirations = new long[answers.size()];
+        long expiresAt = Long.MAX_VALUE;
+        boolean truncated = false;
+        Set<DNSNode> recordNodes = new HashSet<>();
+        for (DNSNode sourceNode : sourceNodes)
+            recordNodes.add(normalize(sourceNode));
+
+        try {
+            buffer.putShort((short) 0);
+            buffer.putShort((short) RESPONSE_FLAGS);
+            buffer.putShort((short) 1);
+            buffer.putShort((short) answers.size());
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+
+            DNSQueryHandler.encodeDomainName(buffer, node.getHostName());
+            buffer.putShort((short) node.getType().getCode());
+            buffer.putShort((short) questionClass);
+            int questionEnd = buffer.position();
+
+            int i = 0;
+            for (ResourceRecord record : answers) {
+                // the nodes of answers left out are registered too, since they may fit once replaced
+                recordNodes.add(normalize(record.getNode()));
+                boolean ownerIsQuestion = record.getHostName().equalsIgnoreCase(node.getHostName());
+                int recordStart = buffer.position();
+                try {
+                    ttlPositions[i] = DNSQueryHandler.encodeRecord(buffer, record, ownerIsQuestion ? HEADER_LENGTH : -1);
+                } catch (BufferOverflowException ex) {
+                    buffer.position(recordStart);
+                    truncated = true;
+                    continue;
+                }
+                recordEnds[i] = buffer.position();
+                expirations[i] = record.getExpirationTime().getTime();
+                expiresAt = Math.min(expiresAt, expirations[i]);
+                i++;
+            }
+            if (expiresAt <= System.currentTimeMillis())
+                return null;
+            return new Entry(Arrays.copyOf(buffer.array(), buffer.position()), questionEnd,
+                    Arrays.copyOf(ttlPositions, i), Arrays.copyOf(recordEnds, i), Arrays.copyOf(expirations, i),
+                    expiresAt, truncated, recordNodes);
+        } catch (BufferOverflowException | IllegalArgumentException | NullPointerException ex) {
+            return null;
+        }
+    }
+
+    private static DNSNode normalize(DNSNode node) {
+        return new DNSNode(node.getHostName().toLowerCase(Locale.ROOT), node.getType());
+    }
+
+    private static class Key {
+        private final DNSNode node;
+        private final int questionClass;
+
+        private Key(DNSNode node, int questionClass) {
+            this.node = normalize(node);
+            this.questionClass = questionClass;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+            return questionClass == key.questionClass && node.equals(key.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * node.hashCode() + questionClass;
+        }
+    }
+
+    private static class Entry {
+        private final byte[] packet;
+        private final int questionEnd;
+        private final int[] ttlPositions;
+        private final int[] recordEnds;
+        private final long[] expirations;
+        private final long expiresAt;
+        private final boolean truncated;
+        private final Set<DNSNode> recordNodes;
+
+        private Entry(byte[] packet, int questionEnd, int[] ttlPositions, int[] recordEnds, long[] expirations,
+                      long expiresAt, boolean truncated, Set<DNSNode> recordNodes) {
+            this.packet = packet;
+            this.questionEnd = questionEnd;
+            this.ttlPositions = ttlPositions;
+            this.recordEnds = recordEnds;
+            this.expirations = expirations;
+            this.expiresAt = expiresAt;
+            this.truncated = truncated;
+            this.recordNodes = recordNodes;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The upstream budget of a single lookup: a deadline after which no more queries are sent or
+ * waited for, and a maximum number of queries. The budget is shared by everything the lookup
+ * triggers, including CNAME targets and nameserver addresses resolved on other workers, so no
+ * single lookup can consume unbounded upstream capacity. It also carries the priority the
+ * lookup's queries are scheduled with (lower values are more urgent).
+ */
+public class DNSQueryBudget {
+
+    public static final long DEFAULT_TIMEOUT = 15000;
+    public static final int DEFAULT_MAX_QUERIES = 64;
+
+    public static final int PRIORITY_CLIENT = 0;
+    public static final int PRIORITY_BACKGROUND = 10;
+
+    private final long deadline;
+    private final int maxQueries;
+    private final int priority;
+    private final AtomicInteger queriesUsed = new AtomicInteger();
+    private volatile boolean exhausted = false;
+
+    /**
+     * Creates a budget with the default timeout and number of queries, for a client lookup.
+     */
+    public DNSQueryBudget() {
+        this(DEFAULT_TIMEOUT, DEFAULT_MAX_QUERIES, PRIORITY_CLIENT);
+    }
+
+    /**
+     * @param timeout    Time (in milliseconds) the lookup may take, starting now.
+     * @param maxQueries Maximum number of upstream queries the lookup may send.
+     * @param priority   Priority of the lookup's queries; lower values are more urgent.
+     */
+    public DNSQueryBudget(long timeout, int maxQueries, int priority) {
+        this.deadline = System.currentTimeMillis() + timeout;
+        this.maxQueries = maxQueries;
+        this.priority = priority;
+    }
+
+    /**
+     * Takes one query out of the budget.
+     *
+     * @return true if the query may be sent, or false if the budget is exhausted.
+     */
+    public boolean tryConsumeQuery() {
+        if (hasExpired() || queriesUsed.incrementAndGet() > maxQueries) {
+            exhausted = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the deadline has passed.
+     */
+    public boolean hasExpired() {
+        return System.currentTimeMillis() >= deadline;
+    }
+
+    /**
+     * Returns true if the lookup was refused a query, or if its deadline has passed.
+     */
+    public boolean isExhausted() {
+        return exhausted || hasExpired();
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getQueriesUsed() {
+        return Math.min(queriesUsed.get(), maxQueries);
+    }
+}
@@ -2,39 +2,72 @@ package ca.ubc.cs317.dnslookup;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.Random;
+import java.util.List;
 import java.util.Set;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 
 
 public class DNSQueryHandler {
 
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
+    public static final int DEFAULT_DNS_PORT = 53;
+    private static int serverPort = DEFAULT_DNS_PORT;
+    private static final int RETRANSMIT_TIMEOUT = 5000;
+    // largest response that fits in a single packet on common paths, without IP fragmentation
+    public static final int EDNS_UDP_PAYLOAD_SIZE = 1232;
+    private static final int EDNS_FLAG_DO = 0x8000;
+    private static DNSSocketPool socketPool;
     private static boolean verboseTracing = false;
 
-    private static final Random random = new Random();
-    private static ByteBuffer globalResponseBuffer;
-
     /**
-     * Sets up the socket and set the timeout to 5 seconds
+     * Sets up a pool with the default number of sockets
      *
      * @throws SocketException if the socket could not be opened, or if there was an
      *                         error with the underlying protocol
      */
     public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+        openSocket(DNSSocketPool.DEFAULT_POOL_SIZE);
     }
 
     /**
-     * Closes the socket
+     * Sets up a pool of sockets, each bound to a random ephemeral port
+     *
+     * @param poolSize Number of sockets in the pool.
+     * @throws SocketException if a socket could not be opened, or if there was an
+     *                         error with the underlying protocol
+     */
+    public static void openSocket(int poolSize) throws SocketException {
+        socketPool = new DNSSocketPool(poolSize);
+    }
+
+    /**
+     * Closes the sockets
      */
     public static void closeSocket() {
-        socket.close();
+        socketPool.close();
+    }
+
+    /**
+     * Returns the pool of sockets used for upstream queries
+     */
+    public static DNSSocketPool getSocketPool() {
+        return socketPool;
+    }
+
+    /**
+     * Sets the UDP port queries are sent to, for testing against servers that do not listen on
+     * the standard DNS port
+     */
+    public static void setServerPort(int port) {
+        serverPort = port;
     }
 
     /**
@@ -71,33 +104,69 @@ public class DNSQueryHandler {
 
 
     /**
-     * Builds the query, sends it to the server, and returns the response.
+     * Builds the query, sends it to the server, and waits for the response. This blocks the
+     * calling thread, so it must not be called from a resolver worker.
      *
-     * @param message Byte array used to store the query to DNS servers.
      * @param server  The IP address of the server to which the query is being sent.
      * @param node    Host and record type to be used for search.
      * @return A DNSServerResponse Object containing the response buffer and the
      *         transaction ID.
      * @throws IOException if an IO Exception occurs
      */
-    public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server, DNSNode node)
+    public static DNSServerResponse buildAndSendQuery(InetAddress server, DNSNode node)
             throws IOException {
+        DNSQueryBudget budget = new DNSQueryBudget();
+        try {
+            return sendQuery(server, node, budget).getResponse(budget.getDeadline()).join();
+        } catch (CompletionException | CancellationException e) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("No response from " + server, cause);
+        }
+    }
 
-        // encode header section
-        ByteBuffer header = ByteBuffer.allocate(12);
+    /**
+     * Builds the query and sends it to the server, without waiting for the response. Several
+     * queries can be sent this way before waiting for any of their responses. The query is
+     * taken out of the lookup's budget, and is sent once the scheduler admits it, which may be
+     * later if the server already has too many outstanding queries. Nothing waits for the
+     * admission: it completes on whichever thread releases the slot.
+     *
+     * @param server The IP address of the server to which the query is being sent.
+     * @param node   Host and record type to be used for search.
+     * @param budget Budget of the lookup the query is sent for.
+     * @return The query, to be used to get its response. If the budget is exhausted, the query
+     *         is never sent and its response fails with a SocketTimeoutException.
+     */
+    public static PendingQuery sendQuery(InetAddress server, DNSNode node, DNSQueryBudget budget) {
 
-        // set up queryID and get string and int forms of it
-        int rnd = random.nextInt(65535);
-        byte[] queryID = new byte[] { (byte) ((rnd >> 8) & 0x7F), (byte) (rnd & 0x7F)};
-        int qID = decodeTwoOctets(queryID[0], queryID[1]);
-        String qIDString = Integer.toString(qID);
+        // use the current worker's socket (or any pooled socket outside of a worker)
+        DNSResolverWorker worker = DNSResolverWorker.current();
+        DNSSocketPool.PooledSocket socket = worker != null ? socketPool.get(worker.getIndex()) : socketPool.next();
+        PendingQuery query = new PendingQuery(socket, server, node, budget.getDeadline());
+
+        if (!budget.tryConsumeQuery()) {
+            query.fail(new SocketTimeoutException("Query budget exhausted before querying " + server));
+            return query;
+        }
+
+        query.admit(DNSQueryScheduler.getInstance().acquire(server, budget.getPriority(), budget.getDeadline()));
+        return query;
+    }
 
+    // builds the query message for a node, with the given transaction ID
+    private static byte[] buildQuery(int qID, DNSNode node) {
 
+        // encode header section
+        ByteBuffer header = ByteBuffer.allocate(12);
+
+        byte[] queryID = new byte[] { (byte) ((qID >> 8) & 0xFF), (byte) (qID & 0xFF)};
         byte[] flags = new byte[] { (byte) 0x01, (byte) 0x00 };
         byte[] qdCount = new byte[] { (byte) 0x00, (byte) 0x01 };
         byte[] anCount = new byte[] { (byte) 0x00, (byte) 0x00 };
         byte[] nsCount = new byte[] { (byte) 0x00, (byte) 0x00 };
-        byte[] arCount = new byte[] { (byte) 0x00, (byte) 0x00 };
+        byte[] arCount = new byte[] { (byte) 0x00, (byte) 0x01 };
         header.put(queryID);
         header.put(flags);
         header.put(qdCount);
@@ -105,30 +174,11 @@ public class DNSQueryHandler {
         header.put(nsCount);
         header.put(arCount);
 
-        // encode question section
-        ByteBuffer question = ByteBuffer.allocate(70);
+        // encode question section (names are at most 255 bytes long)
+        ByteBuffer question = ByteBuffer.allocate(260);
 
         //encode QNAME
-        String domainName = node.getHostName();
-        String[] sections = domainName.split("\\.");
-
-        for (int i = 0; i < sections.length; i++) {
-
-            String part = sections[i];
-
-            byte[] lengthAndLabel = new byte[part.length() + 1];
-            lengthAndLabel[0] = (byte) part.length();
-            byte[] stringBytes = part.getBytes(StandardCharsets.UTF_8);
-
-            for (int j = 1; j < part.length() + 1; j++) {
-                lengthAndLabel[j] = stringBytes[j - 1];
-            }
-
-            question.put(lengthAndLabel);
-        }
-
-        // signal end of QNAME
-        question.put((byte) 0x00);
+        encodeDomainName(question, node.getHostName());
 
         //encode QTYPE, QCLASS
         int recordType = node.getType().getCode();
@@ -137,104 +187,369 @@ public class DNSQueryHandler {
         question.put(qType);
         question.put(qClass);
 
-        // prepping transfer of header and question sections into byte[] message
+        // encode additional section: an OPT record (EDNS) advertising a larger UDP payload and
+        // setting the DO bit, so signed zones include their NSEC and NSEC3 records in negative
+        // responses
+        ByteBuffer additional = ByteBuffer.allocate(11);
+        additional.put((byte) 0x00);
+        additional.putShort((short) RecordType.OPT.getCode());
+        additional.putShort((short) EDNS_UDP_PAYLOAD_SIZE);
+        additional.putInt(EDNS_FLAG_DO);
+        additional.putShort((short) 0);
+
+        // prepping transfer of header, question and additional sections into byte[] message
         byte[] headerSection = header.array();
         byte[] questionSection = question.array();
         questionSection = removeTrailingZeroes(questionSection);
+        byte[] additionalSection = additional.array();
 
         // copying sections into message
-        message = new byte[headerSection.length + questionSection.length];
+        byte[] message = new byte[headerSection.length + questionSection.length + additionalSection.length];
         System.arraycopy(headerSection,0,message,0,headerSection.length);
         System.arraycopy(questionSection,0,message,headerSection.length,questionSection.length);
+        System.arraycopy(additionalSection,0,message,headerSection.length + questionSection.length,
+                additionalSection.length);
+        return message;
+    }
 
-        // send the query through the socket
-        int messageLength = message.length;
-        DatagramPacket dnsPacket = new DatagramPacket(message, messageLength, server, DEFAULT_DNS_PORT);
-        socket.send(dnsPacket);
+    /** A query to a DNS server, from its admission by the scheduler to its response. Once sent,
+     * the query is retransmitted every RETRANSMIT_TIMEOUT milliseconds until the response
+     * arrives or the caller stops waiting. Whichever way the query ends (response, timeout,
+     * cancellation or send failure), its scheduler slot and transaction ID are released exactly
+     * once.
+     */
+    public static class PendingQuery {
+        private final DNSSocketPool.PooledSocket socket;
+        private final InetAddress server;
+        private final DNSNode node;
+        private final CompletableFuture<DNSServerResponse> response = new CompletableFuture<>();
+        private CompletableFuture<Void> admission;
+        private DatagramPacket packet;
+        private int transactionID = -1;
+        private boolean admitted = false;
+        private boolean released = false;
+        private volatile long deadline;
+        private long sentAt = 0;
+        private long lastSentAt = 0;
+        private boolean retransmitted = false;
+
+        private PendingQuery(DNSSocketPool.PooledSocket socket, InetAddress server, DNSNode node, long deadline) {
+            this.socket = socket;
+            this.server = server;
+            this.node = node;
+            this.deadline = deadline;
+            response.whenComplete((result, ex) -> release());
+        }
 
-        // prepping response buffer
-        byte[] buffer = new byte[1024];
-        socket.setSoTimeout(5000);
+        /**
+         * Returns the transaction ID of the query, or -1 if it has not been sent yet.
+         */
+        public synchronized int getTransactionID() {
+            return transactionID;
+        }
 
-        while (true) {
-            // construct DataPacket to recieve response from DNS
-            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+        /**
+         * Returns the response of the query, failing with a SocketTimeoutException (and
+         * cancelling the query) if it has not arrived by the deadline.
+         *
+         * @param deadline Time (in milliseconds since the epoch) after which to stop waiting.
+         * @return A future completed with the DNSServerResponse, containing the response buffer
+         *         and the transaction ID.
+         */
+        public CompletableFuture<DNSServerResponse> getResponse(long deadline) {
+            this.deadline = Math.min(this.deadline, deadline);
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                expire();
+            else
+                CompletableFuture.delayedExecutor(remaining, TimeUnit.MILLISECONDS).execute(this::expire);
+            return response;
+        }
 
-            try {
+        /**
+         * Stops waiting for the response, releasing the scheduler slot and the transaction ID.
+         * Safe to call in any state, including after the response has arrived.
+         */
+        public void cancel() {
+            response.cancel(false);
+        }
+
+        // fails the query without sending it
+        private void fail(IOException e) {
+            response.completeExceptionally(e);
+        }
+
+        // sends the query once the scheduler admits it
+        private void admit(CompletableFuture<Void> admission) {
+            synchronized (this) {
+                this.admission = admission;
+            }
+            admission.whenComplete((result, ex) -> {
+                if (ex != null)
+                    response.completeExceptionally(ex instanceof CompletionException ? ex.getCause() : ex);
+                else
+                    start();
+            });
+        }
+
+        // registers the transaction ID and sends the first packet, unless the query has ended
+        // while it was waiting for admission, in which case the slot is handed back; a socket
+        // without a free transaction ID fails the query, so the caller moves on to another server
+        private void start() {
+            CompletableFuture<ByteBuffer> pendingResponse = new CompletableFuture<>();
+            synchronized (this) {
+                admitted = true;
+                if (response.isDone()) {
+                    releaseSlot();
+                    return;
+                }
+                try {
+                    transactionID = socket.register(server, serverPort, pendingResponse);
+                } catch (IOException e) {
+                    response.completeExceptionally(e);
+                    return;
+                }
+                byte[] message = buildQuery(transactionID, node);
+                packet = new DatagramPacket(message, message.length, server, serverPort);
+            }
+
+            // hand over the response once the socket's receiver thread matches it
+            pendingResponse.whenComplete((buffer, ex) -> {
+                if (ex != null) {
+                    response.completeExceptionally(ex);
+                    return;
+                }
+                // the round-trip time of a retransmitted query is ambiguous, so it is not recorded
+                if (!retransmitted)
+                    DNSServerLatency.getInstance().recordResponse(server, System.currentTimeMillis() - sentAt);
+                response.complete(new DNSServerResponse(buffer, transactionID, server));
+            });
+            send();
+        }
 
+        // retransmits the query if no response has arrived within RETRANSMIT_TIMEOUT, and there
+        // is enough time left for another attempt
+        private void retransmit() {
+            if (response.isDone()) return;
+            DNSServerLatency.getInstance().recordTimeout(server, RETRANSMIT_TIMEOUT);
+            if (deadline - System.currentTimeMillis() > RETRANSMIT_TIMEOUT) {
+                socket.recordTimeout();
+                send();
+            }
+        }
+
+        private void expire() {
+            if (response.isDone()) return;
+            long lastSent;
+            synchronized (this) {
+                lastSent = lastSentAt;
+            }
+            if (lastSent != 0)
+                DNSServerLatency.getInstance().recordTimeout(server,
+                        Math.min(RETRANSMIT_TIMEOUT, System.currentTimeMillis() - lastSent));
+            response.completeExceptionally(new SocketTimeoutException("No response for query " + transactionID));
+        }
+
+        private void send() {
+            DatagramPacket toSend;
+            synchronized (this) {
+                if (response.isDone()) return;
                 // print query we are sending to DNS
                 if (verboseTracing) {
                     System.out.println("\n\n");
-                    System.out.println("Query ID     " + qIDString + " " + node.getHostName()
+                    System.out.println("Query ID     " + transactionID + " " + node.getHostName()
                             + "  " + node.getType() + " --> " + server);
                 }
+                lastSentAt = System.currentTimeMillis();
+                if (sentAt == 0)
+                    sentAt = lastSentAt;
+                else
+                    retransmitted = true;
+                toSend = packet;
+            }
+            try {
+                socket.send(toSend);
+            } catch (IOException e) {
+                response.completeExceptionally(e);
+                return;
+            }
+            CompletableFuture.delayedExecutor(RETRANSMIT_TIMEOUT, TimeUnit.MILLISECONDS).execute(this::retransmit);
+        }
 
-                socket.receive(response);
-
-            // if socket times out, send the packet again
-            } catch (SocketTimeoutException e) {
-                socket.send(dnsPacket);
-                continue;
+        // releases the transaction ID and scheduler slot once the query has ended; a query still
+        // queued for admission gives up its place instead
+        private void release() {
+            CompletableFuture<Void> queued;
+            synchronized (this) {
+                if (transactionID >= 0)
+                    socket.cancel(transactionID);
+                releaseSlot();
+                queued = admitted ? null : admission;
             }
+            if (queued != null)
+                queued.cancel(false);
+        }
 
-            // get the data from the response and put it into a response and return it
-            byte[] socketResponse = response.getData();
-            ByteBuffer dnsResponse = ByteBuffer.wrap(socketResponse);
-            return new DNSServerResponse(dnsResponse, qID);
+        private synchronized void releaseSlot() {
+            if (admitted && !released) {
+                released = true;
+                DNSQueryScheduler.getInstance().release(server);
+            }
         }
     }
 
 
-    // resolves a FQDN name and returns it as a String, setting position of globalResponse buffer to correct index
-    private static String decodeDomainName(ByteBuffer responseBuffer, String domainName) {
-
-        byte partLength = (responseBuffer.get());
+    /**
+     * Encodes a domain name, without compression, at the current position of a buffer.
+     *
+     * @param buffer     Buffer the name is written to.
+     * @param domainName Domain name to be encoded, with or without the trailing dot.
+     */
+    public static void encodeDomainName(ByteBuffer buffer, String domainName) {
+        for (String part : domainName.split("\\.")) {
+            if (part.isEmpty()) continue;
+            byte[] label = part.getBytes(StandardCharsets.ISO_8859_1);
+            buffer.put((byte) label.length);
+            buffer.put(label);
+        }
+        // signal end of name
+        buffer.put((byte) 0x00);
+    }
 
-        if(partLength == 0) {
-            if(domainName.length() > 0){
-            domainName = domainName.substring(0, domainName.length()-1);
-            }
-            return domainName;
+    /**
+     * Encodes a resource record (class IN) at the current position of a buffer.
+     *
+     * @param buffer       Buffer the record is written to.
+     * @param record       Record to be encoded.
+     * @param ownerPointer Position in the message of a name equal to the record's owner name,
+     *                     to be used as a compression pointer, or -1 to encode the owner name.
+     * @return The position of the record's TTL field in the buffer.
+     */
+    public static int encodeRecord(ByteBuffer buffer, ResourceRecord record, int ownerPointer) {
+        if (ownerPointer >= 0)
+            buffer.putShort((short) (0xC000 | ownerPointer));
+        else
+            encodeDomainName(buffer, record.getHostName());
+
+        buffer.putShort((short) record.getType().getCode());
+        buffer.putShort((short) 1);
+        int ttlPosition = buffer.position();
+        buffer.putInt((int) Math.max(0, record.getTTL()));
+
+        // leave room for RDLENGTH, and fill it in once RDATA is written
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                buffer.put(record.getInetResult().getAddress());
+                break;
+            case NS:
+            case CNAME:
+            case PTR:
+                encodeDomainName(buffer, record.getTextResult());
+                break;
+            case MX:
+                RecordData.MX mx = requireStructured(record.getMXResult(), record);
+                buffer.putShort((short) mx.getPreference());
+                encodeDomainName(buffer, mx.getExchange());
+                break;
+            case SRV:
+                RecordData.SRV srv = requireStructured(record.getSRVResult(), record);
+                buffer.putShort((short) srv.getPriority());
+                buffer.putShort((short) srv.getWeight());
+                buffer.putShort((short) srv.getPort());
+                encodeDomainName(buffer, srv.getTarget());
+                break;
+            case SOA:
+                RecordData.SOA soa = requireStructured(record.getSOAResult(), record);
+                encodeDomainName(buffer, soa.getPrimaryNameServer());
+                encodeDomainName(buffer, soa.getResponsibleMailbox());
+                buffer.putInt((int) soa.getSerial());
+                buffer.putInt((int) soa.getRefresh());
+                buffer.putInt((int) soa.getRetry());
+                buffer.putInt((int) soa.getExpire());
+                buffer.putInt((int) soa.getMinimum());
+                break;
+            case TXT:
+                for (String string : requireStructured(record.getTXTResult(), record).getStrings()) {
+                    byte[] bytes = string.getBytes(StandardCharsets.ISO_8859_1);
+                    buffer.put((byte) bytes.length);
+                    buffer.put(bytes);
+                }
+                break;
+            default:
+                // the type code of records of unknown types is not kept
+                throw new IllegalArgumentException("Cannot encode record of unknown type " + record.getNode());
+        }
+        buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+        return ttlPosition;
+    }
 
-        } else if (partLength <= -64 && partLength > -255) {
-            int offset = (responseBuffer.get() & 0xFF);
-            int returnIndex = responseBuffer.position();
-            responseBuffer.position(offset);
-            domainName = decodeDomainName(responseBuffer, domainName);
-            responseBuffer.position(returnIndex);
-            return domainName;
+    private static <T> T requireStructured(T result, ResourceRecord record) {
+        if (result == null)
+            throw new IllegalArgumentException("No RDATA available for " + record.getNode());
+        return result;
+    }
 
-        } else {
+    // resolves a FQDN name and returns it as a String, setting position of the response buffer to correct index
+    private static String decodeDomainName(ByteBuffer responseBuffer) {
+        byte[] message = responseBuffer.array();
+        int messageEnd = responseBuffer.arrayOffset() + responseBuffer.limit();
+        int position = responseBuffer.arrayOffset() + responseBuffer.position();
 
-            int max = responseBuffer.position() + partLength;
+        String domainName = RecordData.decodeName(message, responseBuffer.arrayOffset(), messageEnd, position);
+        responseBuffer.position(RecordData.skipName(message, messageEnd, position) - responseBuffer.arrayOffset());
+        return domainName;
+    }
 
-            while(responseBuffer.position() < max) {
-                char c = (char) responseBuffer.get();
-                domainName += c;
 
-            }
-            domainName += '.';
-            return decodeDomainName(responseBuffer, domainName);
-        }
 
+    /**
+     * Decodes the DNS server response and caches it, from a server whose zone is not known.
+     * The NSEC and NSEC3 records of such a response are not added to the denial index.
+     *
+     * @param transactionID  Transaction ID of the current communication with the
+     *                       DNS server
+     * @param responseBuffer DNS server's response
+     * @param cache          To store the decoded server's response
+     * @return A set of resource records corresponding to the name servers of the
+     *         response.
+     * @throws IOException if the response is malformed. Nothing of a malformed response
+     *                     is cached.
+     */
+    public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer, DNSCache cache) throws IOException {
+        return decodeAndCacheResponse(transactionID, responseBuffer, null, cache);
     }
 
-
-
     /**
      * Decodes the DNS server response and caches it.
      *
      * @param transactionID  Transaction ID of the current communication with the
      *                       DNS server
      * @param responseBuffer DNS server's response
+     * @param serverZone     Zone the server was queried as a name server of ("" for the root
+     *                       zone), or null if it is not known
      * @param cache          To store the decoded server's response
      * @return A set of resource records corresponding to the name servers of the
-     *         response.
+     *         response. The NSEC and NSEC3 records of the authority section are added
+     *         to the denial index instead (see DNSDenialIndex), and are not returned.
+     * @throws IOException if the response is malformed. Nothing of a malformed response
+     *                     is cached.
      */
-    public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer, DNSCache cache) throws UnknownHostException {
+    public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
+                                                             String serverZone, DNSCache cache) throws IOException {
+        try {
+            return decodeResponse(transactionID, responseBuffer, serverZone, cache);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Malformed response to query " + transactionID, e);
+        }
+    }
+
+    private static Set<ResourceRecord> decodeResponse(int transactionID, ByteBuffer responseBuffer, String serverZone,
+                                                      DNSCache cache) {
 
         Set<ResourceRecord> resourceRecordSet = new HashSet<>();
-        globalResponseBuffer = responseBuffer;
 
         int queryID = decodeTwoOctets(responseBuffer.get(), responseBuffer.get());
 
@@ -253,10 +568,10 @@ public class DNSQueryHandler {
         int Z = ((flagsTwo & 0x70) >> 4);
         int RCODE = (flagsTwo & 0x0F);
 
+        // NXDOMAIN responses are decoded for their cnames and denial records
         switch(RCODE){
 			      case 1:
             case 2:
-            case 3:
             case 4:
             case 5:
                 return null;
@@ -273,101 +588,92 @@ public class DNSQueryHandler {
             System.out.println("Response ID: " + queryID + " Authoritative = " + ((AA == 1) ? "true" : "false"));
 
         // decode FQDN from response
-        String FQDN = "";
-        FQDN = decodeDomainName(globalResponseBuffer, FQDN);
+        String FQDN = decodeDomainName(responseBuffer);
 
-        int QTYPE = decodeTwoOctets(globalResponseBuffer.get(), globalResponseBuffer.get());
-        int QCODE = decodeTwoOctets(globalResponseBuffer.get(), globalResponseBuffer.get());
+        int QTYPE = decodeTwoOctets(responseBuffer.get(), responseBuffer.get());
+        int QCODE = decodeTwoOctets(responseBuffer.get(), responseBuffer.get());
 
 
         if (verboseTracing)
             System.out.println("  Answers (" + ANCOUNT + ")");
 
-        for (int i = 0; i < ANCOUNT; i++) {
-            ResourceRecord rr = parseRecord(responseBuffer);
-            verbosePrintResourceRecord(rr, rr.getType().getCode());
-            cache.addResult(rr);
-            resourceRecordSet.add(rr);
-        }
+        // every record is parsed before any is cached, so a malformed record drops the whole response
+        List<ResourceRecord> answers = parseRecords(responseBuffer, ANCOUNT);
 
         if (verboseTracing)
             System.out.println("  Nameservers (" + NSCOUNT + ")");
 
-        for (int i = 0; i < NSCOUNT; i++) {
-            ResourceRecord rr = parseRecord(responseBuffer);
-            verbosePrintResourceRecord(rr, rr.getType().getCode());
-            cache.addResult(rr);
-            resourceRecordSet.add(rr);
-        }
+        List<ResourceRecord> authority = parseRecords(responseBuffer, NSCOUNT);
 
         if (verboseTracing)
             System.out.println("  Additional Information (" + ARCOUNT + ")");
 
-        for (int i = 0; i < ARCOUNT; i++) {
+        List<ResourceRecord> additional = parseRecords(responseBuffer, ARCOUNT);
+
+        boolean hasDenial = false;
+        // only the addresses of answers are added to the address index, which decodes them
+        for (ResourceRecord rr : answers)
+            addRecord(rr, cache, true, resourceRecordSet);
+        for (ResourceRecord rr : authority) {
+            addRecord(rr, cache, false, resourceRecordSet);
+            hasDenial |= rr.getType() == RecordType.NSEC || rr.getType() == RecordType.NSEC3;
+        }
+        if (hasDenial)
+            DNSDenialIndex.getInstance().addAuthority(FQDN, serverZone, AA == 1, RCODE, answers.size(), authority);
+        for (ResourceRecord rr : additional)
+            addRecord(rr, cache, false, resourceRecordSet);
+
+        return resourceRecordSet;
+    }
+
+    // parses the records of a section of the response
+    private static List<ResourceRecord> parseRecords(ByteBuffer responseBuffer, int count) {
+        List<ResourceRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
             ResourceRecord rr = parseRecord(responseBuffer);
             verbosePrintResourceRecord(rr, rr.getType().getCode());
-            cache.addResult(rr);
-            resourceRecordSet.add(rr);
+            records.add(rr);
         }
+        return records;
+    }
 
-        return resourceRecordSet;
+    // caches a record and adds it to the records of the response, unless it is an OPT
+    // pseudo-record or a DNSSEC record, whose signatures are not validated
+    private static void addRecord(ResourceRecord rr, DNSCache cache, boolean answer,
+                                  Set<ResourceRecord> resourceRecordSet) {
+        switch (rr.getType()) {
+            case OPT:
+            case RRSIG:
+            case NSEC:
+            case NSEC3:
+                return;
+            default:
+                cache.addResult(rr, answer);
+                resourceRecordSet.add(rr);
+        }
     }
 
-    //parses a single ResourceRecord and returns it to decodeAndCacheResponse
+    //parses a single ResourceRecord and returns it to decodeAndCacheResponse. The RDATA is copied and only decoded
+    //when the record's result is first accessed, except for RDATA with compressed names, which is decoded here
     private static ResourceRecord parseRecord(ByteBuffer responseBuffer) {
 
         // decode resource record name
-        String NAME = "";
-        NAME = decodeDomainName(responseBuffer, NAME);
+        String NAME = decodeDomainName(responseBuffer);
 
         int TYPE = decodeTwoOctets(responseBuffer.get(), responseBuffer.get());
         int CLASS = decodeTwoOctets(responseBuffer.get(), responseBuffer.get());
         long TTL = decodeTTL(responseBuffer.get(), responseBuffer.get(), responseBuffer.get(), responseBuffer.get());
         int RDLENGTH = decodeTwoOctets(responseBuffer.get(), responseBuffer.get());
 
-        String value = "";
+        if (RDLENGTH > responseBuffer.remaining())
+            throw new BufferUnderflowException();
 
-        switch (TYPE) {
-            case 1: // A
-                value = "";
-                for (int i = 0; i < RDLENGTH; i++) {
-                    int decimalVal = (int) (responseBuffer.get() & 0xFF);
-                    value += Integer.toString(decimalVal);
-                    value += '.';
-                }
-                value = value.substring(0, value.length() - 1);
-                break;
-            case 28: // AAAA
-                value = "";
-                for (int i = 0; i < RDLENGTH / 2; i++) {
-                    int decimalVal = decodeTwoOctets(responseBuffer.get(), responseBuffer.get());
-                    value += Integer.toHexString(decimalVal);
-                    value += ':';
-                }
-                value = value.substring(0, value.length() - 1);
-                break;
-            case 15: // MX
-                responseBuffer.position(responseBuffer.position() + 2);
-                value = decodeDomainName(responseBuffer, value);
-                break;
-            case 6: //SOA
-                 value = decodeDomainName(responseBuffer, value);
-                 break;
-            default: // NS, CNAME
-                value = decodeDomainName(responseBuffer, value);
-        }
-
-        if (TYPE == 1 || TYPE == 28) {
-            try {
-                InetAddress address = InetAddress.getByName(value);
-                return new ResourceRecord(NAME, RecordType.getByCode(TYPE), TTL, address);
+        RecordData data = RecordData.fromMessage(TYPE, responseBuffer.array(), responseBuffer.arrayOffset(),
+                responseBuffer.arrayOffset() + responseBuffer.limit(),
+                responseBuffer.arrayOffset() + responseBuffer.position(), RDLENGTH);
+        responseBuffer.position(responseBuffer.position() + RDLENGTH);
 
-            } catch (UnknownHostException e) {
-                //System.err.println("UnknownHostException");
-            }
-        }
-
-        return new ResourceRecord(NAME, RecordType.getByCode(TYPE), TTL, value);
+        return new ResourceRecord(NAME, RecordType.getByCode(TYPE), TTL, data);
 
     }
 
@@ -378,7 +684,7 @@ public class DNSQueryHandler {
      * @param rtype  The type of the record to be printed
      */
     private static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
+        if (verboseTracing && record.getType() != RecordType.OPT)
             System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(), record.getTTL(),
                     record.getType() == RecordType.OTHER ? rtype : record.getType(), record.getTextResult());
     }
@@ -0,0 +1,182 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Admission control for upstream queries. The number of queries outstanding at any upstream
+ * server is capped; queries over the cap wait in a queue ordered by priority and then deadline,
+ * and are admitted one by one as earlier queries complete. Queries whose deadline passes while
+ * waiting are dropped without being sent. Queued queries are continuations, not parked threads.
+ */
+public class DNSQueryScheduler {
+
+    public static final int DEFAULT_MAX_OUTSTANDING = 32;
+
+    private static DNSQueryScheduler instance = new DNSQueryScheduler();
+
+    private final Map<InetAddress, Upstream> upstreams = new ConcurrentSkipListMap<>(
+            Comparator.comparing(InetAddress::getHostAddress));
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile int maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+
+    /** Singleton retrieval method. This method returns the single scheduler instance.
+     *
+     * @return Instance of the query scheduler.
+     */
+    public static DNSQueryScheduler getInstance() {
+        return instance;
+    }
+
+    public void setMaxOutstanding(int maxOutstanding) {
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    /**
+     * Requests admission for a query to a server. No thread waits for the admission: a query
+     * over the cap is queued as a future, which is completed by the release that frees its slot,
+     * or completed exceptionally once its deadline passes. Every admission that completes
+     * normally must be matched by a call to release once the query completes; a caller that no
+     * longer needs a queued admission cancels the future, which removes it from the queue.
+     *
+     * @param server   Address of the server the query is sent to.
+     * @param priority Priority of the query; lower values are more urgent.
+     * @param deadline Time (in milliseconds since the epoch) after which the query is dropped.
+     * @return A future completed when the query may be sent, or completed exceptionally with a
+     *         SocketTimeoutException if the deadline passes first.
+     */
+    public CompletableFuture<Void> acquire(InetAddress server, int priority, long deadline) {
+        Upstream upstream = upstreams.computeIfAbsent(server, address -> new Upstream());
+        Waiter waiter;
+        synchronized (upstream) {
+            if (System.currentTimeMillis() >= deadline) {
+                upstream.dropped++;
+                return CompletableFuture.failedFuture(timeout(server));
+            }
+            if (upstream.outstanding < maxOutstanding) {
+                upstream.outstanding++;
+                upstream.admitted++;
+                return CompletableFuture.completedFuture(null);
+            }
+            waiter = new Waiter(priority, deadline, sequence.incrementAndGet());
+            upstream.queue.add(waiter);
+        }
+
+        // a waiter that expires or is cancelled while queued gives up its place
+        waiter.admission.whenComplete((result, ex) -> {
+            if (ex == null) return;
+            synchronized (upstream) {
+                if (upstream.queue.remove(waiter))
+                    upstream.dropped++;
+            }
+        });
+        CompletableFuture.delayedExecutor(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)
+                .execute(() -> waiter.admission.completeExceptionally(timeout(server)));
+        return waiter.admission;
+    }
+
+    /**
+     * Marks a query to a server as completed, admitting the most urgent waiting query whose
+     * deadline has not passed yet.
+     *
+     * @param server Address of the server the query was sent to.
+     */
+    public void release(InetAddress server) {
+        Upstream upstream = upstreams.get(server);
+        if (upstream == null) return;
+
+        while (true) {
+            Waiter next;
+            synchronized (upstream) {
+                long now = System.currentTimeMillis();
+                while ((next = upstream.queue.poll()) != null && next.deadline <= now) {
+                    upstream.dropped++;
+                    next.admission.completeExceptionally(timeout(server));
+                }
+                if (next == null) {
+                    upstream.outstanding--;
+                    return;
+                }
+                upstream.admitted++;
+            }
+
+            // the slot passes to the waiter outside the lock, since completing the admission
+            // runs its continuation; if the waiter gave up in the meantime, the slot passes on
+            if (next.admission.complete(null))
+                return;
+            synchronized (upstream) {
+                upstream.admitted--;
+                upstream.dropped++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of queries admitted to a server and not released yet.
+     */
+    public int getOutstanding(InetAddress server) {
+        Upstream upstream = upstreams.get(server);
+        if (upstream == null) return 0;
+        synchronized (upstream) {
+            return upstream.outstanding;
+        }
+    }
+
+    /**
+     * Returns the number of queries to a server waiting to be admitted.
+     */
+    public int getQueued(InetAddress server) {
+        Upstream upstream = upstreams.get(server);
+        if (upstream == null) return 0;
+        synchronized (upstream) {
+            return upstream.queue.size();
+        }
+    }
+
+    private static SocketTimeoutException timeout(InetAddress server) {
+        return new SocketTimeoutException("Deadline passed before query to " + server + " was sent");
+    }
+
+    /**
+     * Prints the counters of each upstream server the resolver has sent queries to.
+     */
+    public void printStatistics() {
+        System.out.printf("%-40s %-12s %-8s %-10s %s\n", "Upstream", "Outstanding", "Queued", "Admitted", "Dropped");
+        for (Map.Entry<InetAddress, Upstream> entry : upstreams.entrySet()) {
+            Upstream upstream = entry.getValue();
+            synchronized (upstream) {
+                System.out.printf("%-40s %-12d %-8d %-10d %d\n", entry.getKey().getHostAddress(),
+                        upstream.outstanding, upstream.queue.size(), upstream.admitted, upstream.dropped);
+            }
+        }
+    }
+
+    private static class Upstream {
+        private final PriorityQueue<Waiter> queue = new PriorityQueue<>(Comparator
+                .comparingInt((Waiter waiter) -> waiter.priority)
+                .thenComparingLong(waiter -> waiter.deadline)
+                .thenComparingLong(waiter -> waiter.sequence));
+        private int outstanding = 0;
+        private long admitted = 0;
+        private long dropped = 0;
+    }
+
+    private static class Waiter {
+        private final int priority;
+        private final long deadline;
+        private final long sequence;
+        private final CompletableFuture<Void> admission = new CompletableFuture<>();
+
+        private Waiter(int priority, long deadline, long sequence) {
+            this.priority = priority;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/** A resolver worker owns one shard of the resolver state: a DNS cache shard, a packet cache
+ * shard and a socket of
+ * the pool (and with it, its own query ID space and table of outstanding queries). Each query is
+ * routed to a worker by a hash of its host name, and all work for that name runs on the worker's
+ * thread, so the hot path needs no shared locks. Workers talk to each other only by posting
+ * tasks to each other's mailbox. A lookup waiting for a response holds no thread: it continues
+ * in a task posted to its worker's mailbox once the response arrives.
+ */
+public class DNSResolverWorker implements Executor {
+
+    public static final int DEFAULT_WORKER_COUNT = Runtime.getRuntime().availableProcessors();
+
+    private static final Runnable WAKE_UP = () -> {};
+    private static final BiConsumer<DNSResolverWorker, Throwable> REPORT_FAILURE = (worker, ex) ->
+            System.err.println("Task failed on dns-worker-" + worker.index + ": " + ex);
+    private static final ThreadLocal<DNSResolverWorker> currentWorker = new ThreadLocal<>();
+    private static DNSResolverWorker[] workers = new DNSResolverWorker[0];
+    private static volatile BiConsumer<DNSResolverWorker, Throwable> failureHandler = REPORT_FAILURE;
+
+    private final int index;
+    private final DNSCache cache = new DNSCache();
+    private final DNSPacketCache packetCache = DNSPacketCache.newShard();
+    private final BlockingQueue<Runnable> mailbox = new LinkedBlockingQueue<>();
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    private DNSResolverWorker(int index) {
+        this.index = index;
+        this.thread = newThread();
+    }
+
+    /**
+     * Starts the resolver workers. Workers use the socket of the pool with the same index, so
+     * the socket pool should have at least as many sockets as there are workers.
+     *
+     * @param count Number of workers (shards) to be started.
+     */
+    public static void startWorkers(int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("Worker count must be at least 1");
+
+        DNSResolverWorker[] started = new DNSResolverWorker[count];
+        for (int i = 0; i < count; i++)
+            started[i] = new DNSResolverWorker(i);
+        for (DNSResolverWorker worker : started)
+            worker.thread.start();
+        workers = started;
+    }
+
+    /**
+     * Stops all workers once they are done with the tasks already in their mailbox. Queries are
+     * no longer routed to the stopped workers.
+     */
+    public static void stopWorkers() {
+        DNSResolverWorker[] stopped = workers;
+        workers = new DNSResolverWorker[0];
+        for (DNSResolverWorker worker : stopped) {
+            worker.running = false;
+            worker.mailbox.offer(WAKE_UP);
+        }
+    }
+
+    /**
+     * Sets what is done with a failure that escapes a task posted to a worker's mailbox. By
+     * default, the failure is printed to System.err.
+     *
+     * @param handler Handler called on the failing worker's thread, or null to restore the default.
+     */
+    public static void setFailureHandler(BiConsumer<DNSResolverWorker, Throwable> handler) {
+        failureHandler = handler != null ? handler : REPORT_FAILURE;
+    }
+
+    public static int getWorkerCount() {
+        return workers.length;
+    }
+
+    public static DNSResolverWorker getWorker(int index) {
+        return workers[index];
+    }
+
+    /**
+     * Returns the worker running on the current thread, or null if the current thread is not a
+     * worker thread.
+     */
+    public static DNSResolverWorker current() {
+        return currentWorker.get();
+    }
+
+    /**
+     * Returns the worker that owns a query. All record types of a host name are owned by the
+     * same worker.
+     *
+     * @param node Host name and record type of the query.
+     * @return The owning worker, or null if no workers have been started.
+     */
+    public static DNSResolverWorker forNode(DNSNode node) {
+        DNSResolverWorker[] all = workers;
+        if (all.length == 0) return null;
+        int hash = node.getHostName().toLowerCase(Locale.ROOT).hashCode();
+        return all[Math.floorMod(hash, all.length)];
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Returns this worker's cache shard. The shard must only be used from this worker's thread.
+     */
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Returns this worker's packet cache shard, which holds the responses to the questions the
+     * worker owns. Unlike the cache shard, it may be used from any thread.
+     */
+    public DNSPacketCache getPacketCache() {
+        return packetCache;
+    }
+
+    /**
+     * Runs a task on this worker's thread. Tasks must never block the thread: a task that needs
+     * a result from elsewhere (a response, or another worker) returns a future instead, and
+     * continues in a further task once the result arrives (see submitAsync and execute).
+     *
+     * @param task Task to be run.
+     * @return A future completed with the result of the task, or completed exceptionally with
+     *         whatever the task threw.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                result.complete(task.get());
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Starts an asynchronous task on this worker's thread.
+     *
+     * @param task Task to be run, returning a future of its result.
+     * @return A future completed along with the future returned by the task.
+     */
+    public <T> CompletableFuture<T> submitAsync(Supplier<CompletableFuture<T>> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        execute(() -> {
+            try {
+                task.get().whenComplete((value, ex) -> {
+                    if (ex != null)
+                        result.completeExceptionally(ex);
+                    else
+                        result.complete(value);
+                });
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Posts a task to this worker's mailbox. Used as the executor of the continuations that
+     * must run on the worker owning the state they touch.
+     *
+     * @param task Task to be run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        mailbox.offer(task);
+        Thread current = thread;
+        if (running && !current.isAlive())
+            restart(current);
+    }
+
+    private void run() {
+        currentWorker.set(this);
+        while (running) {
+            try {
+                mailbox.take().run();
+            } catch (InterruptedException ignored) {
+            } catch (Throwable ex) {
+                // a failed task must not stop the worker, or its shard would stop answering
+                failureHandler.accept(this, ex);
+            }
+        }
+    }
+
+    // replaces a dead thread of the worker, keeping the mailbox and the cache shard
+    private synchronized void restart(Thread dead) {
+        if (!running || thread != dead) return;
+        System.err.println("Restarting " + dead.getName());
+        thread = newThread();
+        thread.start();
+    }
+
+    private Thread newThread() {
+        Thread started = new Thread(this::run, "dns-worker-" + index);
+        started.setDaemon(true);
+        // whatever escapes the task loop restarts the worker
+        started.setUncaughtExceptionHandler((dead, ex) -> restart(dead));
+        return started;
+    }
+}
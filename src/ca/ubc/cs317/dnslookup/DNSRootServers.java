@@ -0,0 +1,181 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** The set of root servers lookups start at. The set is first read from a root hints file, and
+ * then replaced by the root servers listed in the response to a priming query (the NS records
+ * of the root zone), for as long as those records are valid. Each lookup starts at a root server
+ * chosen by latency (see DNSServerLatency). A single root server may be set instead, to test
+ * against a specific server.
+ *
+ * Only IPv4 root server addresses are used, since the resolver may run on hosts without IPv6
+ * connectivity.
+ */
+public class DNSRootServers {
+
+    public static final String DEFAULT_HINTS_FILE = "root.hints";
+    public static final String ROOT_NAME = "";
+    public static final long PRIMING_RETRY_INTERVAL = 60000;
+
+    private static DNSRootServers instance = new DNSRootServers();
+
+    private volatile List<InetAddress> hints = Collections.emptyList();
+    private volatile List<InetAddress> primed = Collections.emptyList();
+    private volatile long primedExpirationTime = 0;
+    private volatile InetAddress override;
+    private volatile long nextPrimingTime = 0;
+    private final AtomicBoolean priming = new AtomicBoolean();
+
+    /** Singleton retrieval method. This method returns the single root server set.
+     *
+     * @return Instance of the root server set.
+     */
+    public static DNSRootServers getInstance() {
+        return instance;
+    }
+
+    /**
+     * Reads the root server addresses from a root hints file, in the format of the IANA
+     * named.root file: one "name TTL [class] type data" record per line, with comments starting
+     * with a semicolon.
+     *
+     * @param fileName Name of the root hints file.
+     * @return The number of root server addresses read.
+     * @throws IOException if the file could not be read, or holds no root server address.
+     */
+    public int loadHints(String fileName) throws IOException {
+        Set<String> rootNames = new HashSet<>();
+        Map<String, InetAddress> addresses = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(";", 2)[0].trim().split("\\s+");
+                if (fields.length < 4) continue;
+
+                String name = normalize(fields[0]);
+                String type = fields[fields.length - 2].toUpperCase(Locale.ROOT);
+                String data = fields[fields.length - 1];
+                if (type.equals("NS") && name.equals(ROOT_NAME))
+                    rootNames.add(normalize(data));
+                else if (type.equals("A"))
+                    addresses.put(name, ReverseName.parseLiteral(data));
+            }
+        }
+
+        List<InetAddress> loaded = new ArrayList<>();
+        for (Map.Entry<String, InetAddress> entry : addresses.entrySet())
+            if (rootNames.contains(entry.getKey()) && entry.getValue() instanceof Inet4Address)
+                loaded.add(entry.getValue());
+        if (loaded.isEmpty())
+            throw new IOException("No root server addresses in " + fileName);
+        hints = Collections.unmodifiableList(loaded);
+        return loaded.size();
+    }
+
+    // lower-cases a name and strips its trailing dot, so "." becomes the root name
+    private static String normalize(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    /**
+     * Replaces the root hints with the root servers of a priming response, until they expire.
+     *
+     * @param addresses      Addresses of the root servers.
+     * @param expirationTime Time (in milliseconds since the epoch) at which the first of the
+     *                       root NS and address records expires.
+     */
+    public void setPrimed(List<InetAddress> addresses, long expirationTime) {
+        primed = Collections.unmodifiableList(new ArrayList<>(addresses));
+        primedExpirationTime = expirationTime;
+    }
+
+    /**
+     * Makes every lookup start at a single server, or goes back to the root server set.
+     *
+     * @param server Address of the server, or null to use the root server set.
+     */
+    public void setOverride(InetAddress server) {
+        override = server;
+    }
+
+    public InetAddress getOverride() {
+        return override;
+    }
+
+    public boolean hasHints() {
+        return !hints.isEmpty();
+    }
+
+    /**
+     * Returns true if lookups use the root server set, the root servers of the last priming
+     * response (if any) have expired, and the last priming query was sent at least
+     * PRIMING_RETRY_INTERVAL ago.
+     */
+    public boolean isPrimingDue() {
+        long now = System.currentTimeMillis();
+        return override == null && !hints.isEmpty() && now >= primedExpirationTime && now >= nextPrimingTime;
+    }
+
+    /**
+     * Marks a priming query as started, unless one already is. Every successful call must be
+     * matched by a call to endPriming.
+     *
+     * @return true if the caller should send the priming query.
+     */
+    public boolean startPriming() {
+        return priming.compareAndSet(false, true);
+    }
+
+    public void endPriming() {
+        nextPrimingTime = System.currentTimeMillis() + PRIMING_RETRY_INTERVAL;
+        priming.set(false);
+    }
+
+    /**
+     * Returns the servers lookups may start at: the overriding server if one is set, otherwise
+     * the primed root servers while they are valid, or the root hints.
+     */
+    public List<InetAddress> getServers() {
+        InetAddress server = override;
+        if (server != null)
+            return Collections.singletonList(server);
+        if (!primed.isEmpty() && System.currentTimeMillis() < primedExpirationTime)
+            return primed;
+        return hints;
+    }
+
+    /**
+     * Chooses the server the next lookup starts at.
+     *
+     * @return The address of the server, or null if no root server is known.
+     */
+    public InetAddress select() {
+        List<InetAddress> servers = getServers();
+        return servers.isEmpty() ? null : DNSServerLatency.getInstance().choose(servers);
+    }
+
+    /**
+     * Prints where lookups start, and the smoothed round-trip time of each root server.
+     */
+    public void printStatus() {
+        InetAddress server = override;
+        long remaining = (primedExpirationTime - System.currentTimeMillis() + 999) / 1000;
+        if (server != null)
+            System.out.println("Root DNS server is: " + server.getHostAddress());
+        else if (!primed.isEmpty() && remaining > 0)
+            System.out.println("Root DNS servers: " + primed.size() + " from priming query, valid for " + remaining + "s");
+        else
+            System.out.println("Root DNS servers: " + hints.size() + " from root hints");
+
+        System.out.printf("%-40s %s\n", "Server", "SRTT (ms)");
+        for (InetAddress address : getServers())
+            System.out.printf("%-40s %.1f\n", address.getHostAddress(), DNSServerLatency.getInstance().getSrtt(address));
+    }
+}
@@ -0,0 +1,169 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.Set;
+
+/** A UDP DNS server that answers client queries using the resolver. Repeat queries are answered
+ * from the packet cache on the receiving thread. Other queries are handed to the worker owning
+ * the queried name, and the response is encoded, cached and sent once the lookup completes.
+ * Responses longer than the client accepts (512 bytes, or the payload size of an EDNS query)
+ * are truncated by the packet cache, with the TC flag set.
+ */
+public class DNSServer {
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int CLASS_IN = 1;
+    private static final int OPT_HEADER_LENGTH = 11;
+
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_NOTIMP = 4;
+
+    private final DatagramSocket socket;
+    private final Thread receiver;
+
+    /**
+     * Opens the server socket and starts answering queries.
+     *
+     * @param port UDP port the server listens on.
+     * @throws SocketException if the socket could not be opened.
+     */
+    public DNSServer(int port) throws SocketException {
+        socket = new DatagramSocket(port);
+        receiver = new Thread(this::receiveLoop, "dns-server-" + port);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    public void close() {
+        socket.close();
+    }
+
+    private void receiveLoop() {
+        byte[] out = new byte[DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE];
+        while (!socket.isClosed()) {
+            byte[] buffer = new byte[DNSPacketCache.MAX_UDP_MESSAGE_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                handleQuery(buffer, packet.getLength(), packet.getAddress(), packet.getPort(), out);
+            } catch (IOException | RuntimeException ignored) {
+            }
+        }
+    }
+
+    private void handleQuery(byte[] query, int length, InetAddress client, int clientPort, byte[] out)
+            throws IOException {
+
+        // ignore anything too short to be a query, and responses
+        if (length < HEADER_LENGTH || (query[2] & 0x80) != 0)
+            return;
+
+        int opcode = (query[2] & 0x78) >> 3;
+        int qdCount = ((query[4] & 0xFF) << 8) | (query[5] & 0xFF);
+        if (opcode != 0) {
+            sendError(query, HEADER_LENGTH, 0, RCODE_NOTIMP, client, clientPort);
+            return;
+        }
+        if (qdCount != 1) {
+            sendError(query, HEADER_LENGTH, 0, RCODE_FORMERR, client, clientPort);
+            return;
+        }
+
+        int questionEnd = RecordData.skipName(query, HEADER_LENGTH) + 4;
+        if (questionEnd > length) {
+            sendError(query, HEADER_LENGTH, 0, RCODE_FORMERR, client, clientPort);
+            return;
+        }
+        String hostName = RecordData.decodeName(query, 0, HEADER_LENGTH);
+        int qType = ((query[questionEnd - 4] & 0xFF) << 8) | (query[questionEnd - 3] & 0xFF);
+        int qClass = ((query[questionEnd - 2] & 0xFF) << 8) | (query[questionEnd - 1] & 0xFF);
+        RecordType type = RecordType.getByCode(qType);
+        if (qClass != CLASS_IN || type == RecordType.OTHER || type == RecordType.OPT) {
+            sendError(query, questionEnd, 1, RCODE_NOTIMP, client, clientPort);
+            return;
+        }
+
+        DNSNode node = new DNSNode(hostName, type);
+        DNSLookupStatistics.getInstance().record(node);
+        int payloadSize = payloadSize(query, length, questionEnd);
+        DNSPacketCache packetCache = DNSPacketCache.forNode(node);
+        int responseLength = packetCache.answer(query, questionEnd, node, qClass, payloadSize, out);
+        if (responseLength > 0) {
+            socket.send(new DatagramPacket(out, responseLength, client, clientPort));
+            return;
+        }
+
+        // the generation is read before the lookup reads the records from the cache
+        long generation = packetCache.getGeneration();
+        DNSLookupService.resolve(node)
+                .thenCompose(results -> DNSLookupService.getSourceNodes(node).thenAccept(sourceNodes ->
+                        respond(query, questionEnd, node, qClass, payloadSize, results, sourceNodes, generation,
+                                client, clientPort)))
+                .exceptionally(ex -> {
+                    respond(query, questionEnd, node, qClass, payloadSize, null, null, generation, client, clientPort);
+                    return null;
+                });
+    }
+
+    // returns the payload size of the OPT record following the question, if the query has one,
+    // within the range the server accepts; returns 0 otherwise
+    private static int payloadSize(byte[] query, int length, int questionEnd) {
+        int arCount = ((query[10] & 0xFF) << 8) | (query[11] & 0xFF);
+        if (arCount == 0 || questionEnd + OPT_HEADER_LENGTH > length || query[questionEnd] != 0)
+            return 0;
+        int type = ((query[questionEnd + 1] & 0xFF) << 8) | (query[questionEnd + 2] & 0xFF);
+        if (type != RecordType.OPT.getCode())
+            return 0;
+        int size = ((query[questionEnd + 3] & 0xFF) << 8) | (query[questionEnd + 4] & 0xFF);
+        return Math.max(DNSPacketCache.MAX_UDP_MESSAGE_SIZE, Math.min(size, DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE));
+    }
+
+    // sends the response to a resolved query, caching its encoded form
+    private void respond(byte[] query, int questionEnd, DNSNode node, int qClass, int payloadSize,
+                         Set<ResourceRecord> results, Set<DNSNode> sourceNodes, long generation,
+                         InetAddress client, int clientPort) {
+        try {
+            if (results == null) {
+                sendError(query, questionEnd, 1, RCODE_SERVFAIL, client, clientPort);
+                return;
+            }
+            byte[] out = new byte[DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE];
+            // empty results are not cached; names known not to exist are answered with NXDOMAIN
+            // from the denial index instead
+            int responseLength = results.isEmpty() ? -1 : DNSPacketCache.forNode(node).answer(query, questionEnd,
+                    node, qClass, results, sourceNodes, generation, payloadSize, out);
+            if (responseLength > 0)
+                socket.send(new DatagramPacket(out, responseLength, client, clientPort));
+            else if (!results.isEmpty())
+                sendError(query, questionEnd, 1, RCODE_SERVFAIL, client, clientPort);
+            else
+                sendError(query, questionEnd, 1,
+                        DNSDenialIndex.getInstance().isDenied(node.getHostName()) ? RCODE_NXDOMAIN : 0, client, clientPort);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // sends a response without records, echoing the header and question section of the query
+    private void sendError(byte[] query, int questionEnd, int qdCount, int rcode, InetAddress client, int clientPort)
+            throws IOException {
+        byte[] out = new byte[questionEnd];
+        System.arraycopy(query, 0, out, 0, questionEnd);
+        out[2] = (byte) (0x80 | (query[2] & 0x79)); // QR, OPCODE and RD
+        out[3] = (byte) (0x80 | rcode);            // RA and RCODE
+        out[4] = 0;
+        out[5] = (byte) qdCount;
+        for (int i = 6; i < HEADER_LENGTH; i++)
+            out[i] = 0;
+        socket.send(new DatagramPacket(out, out.length, client, clientPort));
+    }
+}
@@ -0,0 +1,91 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Smoothed round-trip times (SRTT) of the upstream servers the resolver has queried, used to
+ * prefer fast servers among equivalent ones. Each response updates the SRTT of its server with
+ * an exponentially weighted moving average; each timeout doubles it. Servers that have never
+ * been queried have an SRTT of zero, so every server of a set is tried at least once.
+ *
+ * A server is chosen by comparing two servers picked at random (power of two choices), which
+ * spreads queries across the whole set while avoiding slow servers. The SRTT of the server not
+ * chosen decays a little every time, so slow servers are eventually retried and can recover.
+ */
+public class DNSServerLatency {
+
+    private static final double SMOOTHING_FACTOR = 0.125;
+    private static final double DECAY_FACTOR = 0.98;
+    private static final double MAX_SRTT = 60000;
+
+    private static DNSServerLatency instance = new DNSServerLatency();
+
+    private final Map<InetAddress, Double> srtts = new ConcurrentHashMap<>();
+
+    /** Singleton retrieval method. This method returns the single latency tracker instance.
+     *
+     * @return Instance of the latency tracker.
+     */
+    public static DNSServerLatency getInstance() {
+        return instance;
+    }
+
+    /**
+     * Records the round-trip time of a query that got a response without being retransmitted.
+     *
+     * @param server Address of the server that responded.
+     * @param rtt    Round-trip time, in milliseconds.
+     */
+    public void recordResponse(InetAddress server, long rtt) {
+        srtts.merge(server, (double) rtt, (srtt, sample) ->
+                srtt == 0 ? sample : srtt + SMOOTHING_FACTOR * (sample - srtt));
+    }
+
+    /**
+     * Records a query to a server that timed out.
+     *
+     * @param server  Address of the server that did not respond.
+     * @param timeout Time waited for the response, in milliseconds.
+     */
+    public void recordTimeout(InetAddress server, long timeout) {
+        srtts.merge(server, (double) timeout, (srtt, waited) -> Math.min(MAX_SRTT, Math.max(srtt * 2, waited)));
+    }
+
+    /**
+     * Forgets the SRTT of every server, as if none had been queried.
+     */
+    public void clear() {
+        srtts.clear();
+    }
+
+    /**
+     * Returns the SRTT of a server, in milliseconds, or zero if it was never queried.
+     */
+    public double getSrtt(InetAddress server) {
+        return srtts.getOrDefault(server, 0.0);
+    }
+
+    /**
+     * Chooses one of a set of equivalent servers, comparing the SRTT of two of them picked at
+     * random.
+     *
+     * @param servers Non-empty list of server addresses.
+     * @return The chosen server.
+     */
+    public InetAddress choose(List<InetAddress> servers) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        InetAddress first = servers.get(random.nextInt(servers.size()));
+        if (servers.size() == 1) return first;
+
+        InetAddress second = servers.get(random.nextInt(servers.size() - 1));
+        if (second.equals(first)) second = servers.get(servers.size() - 1);
+
+        InetAddress chosen = getSrtt(first) <= getSrtt(second) ? first : second;
+        InetAddress passedOver = chosen == first ? second : first;
+        srtts.computeIfPresent(passedOver, (server, srtt) -> srtt * DECAY_FACTOR);
+        return chosen;
+    }
+}
@@ -1,14 +1,39 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.net.InetAddress;
 import java.nio.ByteBuffer;
 
 public class DNSServerResponse {
     private final ByteBuffer response;
     private final int transactionID;
+    private final InetAddress server;
+    private final String serverZone;
 
-    public DNSServerResponse(ByteBuffer response, int transactionID) {
+    public DNSServerResponse(ByteBuffer response, int transactionID, InetAddress server) {
+        this(response, transactionID, server, null);
+    }
+
+    /**
+     * @param response      The response message.
+     * @param transactionID Transaction ID of the query.
+     * @param server        Address of the server that sent the response.
+     * @param serverZone    Zone the server was queried as a name server of ("" for the root
+     *                      zone), or null if it is not known.
+     */
+    public DNSServerResponse(ByteBuffer response, int transactionID, InetAddress server, String serverZone) {
         this.response = response;
         this.transactionID = transactionID;
+        this.server = server;
+        this.serverZone = serverZone;
+    }
+
+    /**
+     * Returns this response, marked as coming from a name server of a zone.
+     *
+     * @param zone Zone the server was queried as a name server of ("" for the root zone).
+     */
+    public DNSServerResponse fromZone(String zone) {
+        return new DNSServerResponse(response, transactionID, server, zone);
     }
 
     public ByteBuffer getResponse() {
@@ -18,4 +43,19 @@ public class DNSServerResponse {
     public int getTransactionID() {
         return transactionID;
     }
+
+    public InetAddress getServer() {
+        return server;
+    }
+
+    public String getServerZone() {
+        return serverZone;
+    }
+
+    /**
+     * Returns the response code (RCODE) in the header of the response.
+     */
+    public int getRCode() {
+        return response.get(3) & 0x0F;
+    }
 }
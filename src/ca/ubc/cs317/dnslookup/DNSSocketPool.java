@@ -0,0 +1,242 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A pool of UDP sockets used to send queries to DNS servers. Each socket is bound to a random
+ * ephemeral port and is served by its own receiver thread, which hands incoming responses to the
+ * outstanding query with the same transaction ID. Queries are spread across the sockets in
+ * round-robin order, so no single source port or kernel socket queue carries all the traffic.
+ */
+public class DNSSocketPool {
+
+    public static final int DEFAULT_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+
+    private static final int MIN_EPHEMERAL_PORT = 49152;
+    private static final int MAX_EPHEMERAL_PORT = 65535;
+    private static final int MAX_BIND_ATTEMPTS = 16;
+    // at most half of the transaction IDs of a socket are outstanding, so a random ID is free at
+    // least every other attempt, and finding one never takes more than MAX_REGISTER_ATTEMPTS
+    public static final int MAX_OUTSTANDING_PER_SOCKET = 32768;
+    private static final int MAX_REGISTER_ATTEMPTS = 64;
+    private static final int MAX_PACKET_SIZE = DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final PooledSocket[] sockets;
+    private final AtomicInteger nextSocket = new AtomicInteger();
+
+    /**
+     * Opens the sockets of the pool and starts their receiver threads.
+     *
+     * @param size Number of sockets in the pool.
+     * @throws SocketException if one of the sockets could not be opened.
+     */
+    public DNSSocketPool(int size) throws SocketException {
+        if (size < 1)
+            throw new IllegalArgumentException("Socket pool size must be at least 1");
+
+        sockets = new PooledSocket[size];
+        try {
+            for (int i = 0; i < size; i++)
+                sockets[i] = new PooledSocket(i, bindRandomPort());
+        } catch (SocketException ex) {
+            close();
+            throw ex;
+        }
+        for (PooledSocket socket : sockets)
+            socket.receiver.start();
+    }
+
+    // binds a socket to a random port in the ephemeral range, leaving the choice to the OS if
+    // every attempt collides with a port already in use
+    private static DatagramSocket bindRandomPort() throws SocketException {
+        for (int i = 0; i < MAX_BIND_ATTEMPTS; i++) {
+            int port = MIN_EPHEMERAL_PORT + random.nextInt(MAX_EPHEMERAL_PORT - MIN_EPHEMERAL_PORT + 1);
+            try {
+                return new DatagramSocket(port);
+            } catch (BindException ignored) {
+            }
+        }
+        return new DatagramSocket();
+    }
+
+    /**
+     * Returns the socket to be used for the next query.
+     */
+    public PooledSocket next() {
+        return sockets[Math.floorMod(nextSocket.getAndIncrement(), sockets.length)];
+    }
+
+    public PooledSocket get(int index) {
+        return sockets[Math.floorMod(index, sockets.length)];
+    }
+
+    public int size() {
+        return sockets.length;
+    }
+
+    /**
+     * Closes every socket of the pool. Receiver threads end once their socket is closed, and any
+     * query still waiting for a response is failed.
+     */
+    public void close() {
+        for (PooledSocket socket : sockets)
+            if (socket != null)
+                socket.close();
+    }
+
+    /**
+     * Returns the number of packets sent through all sockets of the pool, retransmissions included.
+     */
+    public long getTotalSent() {
+        long total = 0;
+        for (PooledSocket socket : sockets)
+            total += socket.sent.get();
+        return total;
+    }
+
+    /**
+     * Prints the per-socket counters, which show how the load is spread across the pool.
+     */
+    public void printStatistics() {
+        System.out.printf("%-6s %-7s %-10s %-10s %-10s %-10s %s\n", "Socket", "Port", "Sent",
+                "Received", "Timeouts", "Dropped", "Outstanding");
+        for (PooledSocket socket : sockets)
+            System.out.printf("%-6d %-7d %-10d %-10d %-10d %-10d %d\n", socket.index, socket.getLocalPort(),
+                    socket.sent.get(), socket.received.get(), socket.timeouts.get(), socket.dropped.get(),
+                    socket.getOutstanding());
+    }
+
+    /** A single socket of the pool, along with the queries currently waiting for a response on
+     * it. Transaction IDs are unique among the outstanding queries of a socket.
+     */
+    public static class PooledSocket {
+
+        private final int index;
+        private final DatagramSocket socket;
+        private final Thread receiver;
+        private final Map<Integer, PendingQuery> pending = new ConcurrentHashMap<>();
+
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong timeouts = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+
+        private PooledSocket(int index, DatagramSocket socket) {
+            this.index = index;
+            this.socket = socket;
+            this.receiver = new Thread(this::receiveLoop, "dns-socket-" + index);
+            this.receiver.setDaemon(true);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public int getLocalPort() {
+            return socket.getLocalPort();
+        }
+
+        /**
+         * Reserves a random transaction ID for a query to be sent to a server. The response
+         * future is completed by the receiver thread once a matching response arrives.
+         *
+         * @param server   Address of the server the query is sent to.
+         * @param port     Port of the server the query is sent to.
+         * @param response Future completed with the response buffer.
+         * @return The transaction ID reserved for the query.
+         * @throws IOException if the socket has too many outstanding queries, or no free ID was
+         *                     found, in which case the query should be sent elsewhere.
+         */
+        public int register(InetAddress server, int port, CompletableFuture<ByteBuffer> response)
+                throws IOException {
+            if (pending.size() >= MAX_OUTSTANDING_PER_SOCKET)
+                throw new IOException("Too many outstanding queries on socket " + index);
+            PendingQuery query = new PendingQuery(server, port, response);
+            for (int i = 0; i < MAX_REGISTER_ATTEMPTS; i++) {
+                int id = random.nextInt(65536);
+                if (pending.putIfAbsent(id, query) == null)
+                    return id;
+            }
+            throw new IOException("No free transaction ID on socket " + index);
+        }
+
+        /**
+         * Releases a transaction ID whose query is no longer waiting for a response.
+         */
+        public void cancel(int id) {
+            pending.remove(id);
+        }
+
+        public void send(DatagramPacket packet) throws IOException {
+            socket.send(packet);
+            sent.incrementAndGet();
+        }
+
+        public void recordTimeout() {
+            timeouts.incrementAndGet();
+        }
+
+        /**
+         * Returns the number of queries waiting for a response on this socket.
+         */
+        public int getOutstanding() {
+            return pending.size();
+        }
+
+        private void close() {
+            socket.close();
+            for (PendingQuery query : pending.values())
+                query.response.completeExceptionally(new SocketException("Socket closed"));
+            pending.clear();
+        }
+
+        // receives responses until the socket is closed, ignoring any response that does not
+        // match an outstanding query (ID, server address and port)
+        private void receiveLoop() {
+            while (!socket.isClosed()) {
+                byte[] buffer = new byte[MAX_PACKET_SIZE];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (IOException ex) {
+                    continue;
+                }
+
+                if (packet.getLength() < 2) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                int id = ((buffer[0] & 0xFF) << 8) + (buffer[1] & 0xFF);
+                PendingQuery query = pending.get(id);
+                if (query == null || query.port != packet.getPort() || !query.server.equals(packet.getAddress())
+                        || !pending.remove(id, query)) {
+                    dropped.incrementAndGet();
+                    continue;
+                }
+                received.incrementAndGet();
+                query.response.complete(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+            }
+        }
+    }
+
+    private static class PendingQuery {
+        private final InetAddress server;
+        private final int port;
+        private final CompletableFuture<ByteBuffer> response;
+
+        private PendingQuery(InetAddress server, int port, CompletableFuture<ByteBuffer> response) {
+            this.server = server;
+            this.port = port;
+            this.response = response;
+        }
+    }
+}
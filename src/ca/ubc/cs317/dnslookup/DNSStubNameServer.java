@@ -0,0 +1,219 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** A stand-in for the DNS hierarchy, used to test and benchmark the resolver without network
+ * access. It serves three levels on loopback addresses, all on the same UDP port:
+ *
+ *   127.0.0.1  root server, referring every name under "test" to the TLD server;
+ *   127.0.0.2  "test" server, referring every name under zoneN.test to the zone server;
+ *   127.0.0.3  zone server, answering A and AAAA queries with addresses derived from the name.
+ *
+ * Names outside "test" get NXDOMAIN, and other record types get an empty answer. Every
+ * response can be delayed to simulate network latency. Loopback addresses other than
+ * 127.0.0.1 are available by default on Linux, but may need to be configured elsewhere.
+ */
+public class DNSStubNameServer {
+
+    public static final InetAddress ROOT_ADDRESS = loopbackAddress(1);
+    public static final InetAddress TLD_ADDRESS = loopbackAddress(2);
+    public static final InetAddress ZONE_ADDRESS = loopbackAddress(3);
+    public static final String TLD = "test";
+
+    private static final int HEADER_LENGTH = 12;
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_AA = 0x0400;
+    private static final int FLAG_RD = 0x0100;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private final DatagramSocket[] sockets = new DatagramSocket[3];
+    private final long ttl;
+    private final long delay;
+    private final ScheduledExecutorService delayedSender;
+    private final AtomicLong queries = new AtomicLong();
+    private volatile RecordType droppedType;
+
+    /**
+     * Starts answering queries on the three loopback addresses.
+     *
+     * @param port  UDP port to listen on.
+     * @param ttl   TTL (in seconds) of every record served.
+     * @param delay Delay (in milliseconds) before every response is sent.
+     * @throws SocketException if one of the sockets could not be opened.
+     */
+    public DNSStubNameServer(int port, long ttl, long delay) throws SocketException {
+        this.ttl = ttl;
+        this.delay = delay;
+        this.delayedSender = delay > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-stub-delay");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+
+        InetAddress[] addresses = { ROOT_ADDRESS, TLD_ADDRESS, ZONE_ADDRESS };
+        try {
+            for (int level = 0; level < sockets.length; level++)
+                sockets[level] = new DatagramSocket(port, addresses[level]);
+        } catch (SocketException ex) {
+            close();
+            throw ex;
+        }
+        for (int level = 0; level < sockets.length; level++) {
+            int serverLevel = level;
+            Thread receiver = new Thread(() -> receiveLoop(serverLevel), "dns-stub-" + level);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+    }
+
+    /**
+     * Returns the number of queries received by all three levels.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Makes the zone server ignore queries of a record type, to simulate responses that are lost.
+     *
+     * @param type Record type whose queries get no response, or null to answer every query.
+     */
+    public void dropAnswers(RecordType type) {
+        droppedType = type;
+    }
+
+    public void close() {
+        for (DatagramSocket socket : sockets)
+            if (socket != null)
+                socket.close();
+        if (delayedSender != null)
+            delayedSender.shutdownNow();
+    }
+
+    private static InetAddress loopbackAddress(int host) {
+        try {
+            return InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) host });
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void receiveLoop(int level) {
+        DatagramSocket socket = sockets[level];
+        while (!socket.isClosed()) {
+            byte[] buffer = new byte[DNSPacketCache.MAX_UDP_MESSAGE_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                if (packet.getLength() < HEADER_LENGTH) continue;
+                queries.incrementAndGet();
+
+                DatagramPacket response = buildResponse(level, buffer, packet.getLength());
+                if (response == null) continue;
+                response.setSocketAddress(packet.getSocketAddress());
+                if (delayedSender == null)
+                    socket.send(response);
+                else
+                    delayedSender.schedule(() -> sendQuietly(socket, response), delay, TimeUnit.MILLISECONDS);
+            } catch (IOException | RuntimeException ignored) {
+            }
+        }
+    }
+
+    private static void sendQuietly(DatagramSocket socket, DatagramPacket packet) {
+        try {
+            socket.send(packet);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // builds the response of a level of the hierarchy to a query, or returns null if the query
+    // is to be dropped
+    private DatagramPacket buildResponse(int level, byte[] query, int length) {
+        int questionEnd = RecordData.skipName(query, HEADER_LENGTH) + 4;
+        if (questionEnd > length)
+            throw new IllegalArgumentException("Truncated question");
+        String name = RecordData.decodeName(query, 0, HEADER_LENGTH).toLowerCase(Locale.ROOT);
+        int type = ((query[questionEnd - 4] & 0xFF) << 8) | (query[questionEnd - 3] & 0xFF);
+        String[] labels = name.split("\\.");
+
+        ByteBuffer response = ByteBuffer.allocate(DNSPacketCache.MAX_UDP_MESSAGE_SIZE);
+        response.put(query, 0, questionEnd);
+        int flags = FLAG_QR | (((query[2] & 0xFF) << 8) & FLAG_RD);
+        int answers = 0, authority = 0, additional = 0;
+
+        if (!name.equals(TLD) && !name.endsWith("." + TLD)) {
+            flags |= FLAG_AA | RCODE_NXDOMAIN;
+        } else if (level == 0) {
+            putReferral(response, TLD, "ns." + TLD, TLD_ADDRESS);
+            authority = additional = 1;
+        } else if (level == 1 && labels.length > 2) {
+            String zone = labels[labels.length - 2] + "." + TLD;
+            putReferral(response, zone, "ns." + zone, ZONE_ADDRESS);
+            authority = additional = 1;
+        } else if (droppedType != null && type == droppedType.getCode()) {
+            return null;
+        } else {
+            flags |= FLAG_AA;
+            if (type == RecordType.A.getCode() || type == RecordType.AAAA.getCode()) {
+                putAddress(response, type, addressFor(name, type == RecordType.AAAA.getCode() ? 16 : 4));
+                answers = 1;
+            }
+        }
+
+        response.putShort(2, (short) flags);
+        response.putShort(4, (short) 1);
+        response.putShort(6, (short) answers);
+        response.putShort(8, (short) authority);
+        response.putShort(10, (short) additional);
+        return new DatagramPacket(response.array(), response.position());
+    }
+
+    private void putReferral(ByteBuffer response, String zone, String nameServer, InetAddress address) {
+        putRecordHeader(response, zone, RecordType.NS);
+        int lengthPosition = response.position() - 2;
+        DNSQueryHandler.encodeDomainName(response, nameServer);
+        response.putShort(lengthPosition, (short) (response.position() - lengthPosition - 2));
+
+        putRecordHeader(response, nameServer, RecordType.A);
+        response.put(address.getAddress());
+        response.putShort(response.position() - 6, (short) 4);
+    }
+
+    private void putAddress(ByteBuffer response, int type, byte[] address) {
+        // the owner name is the question name
+        response.putShort((short) (0xC000 | HEADER_LENGTH));
+        response.putShort((short) type);
+        response.putShort((short) 1);
+        response.putInt((int) ttl);
+        response.putShort((short) address.length);
+        response.put(address);
+    }
+
+    private void putRecordHeader(ByteBuffer response, String name, RecordType type) {
+        DNSQueryHandler.encodeDomainName(response, name);
+        response.putShort((short) type.getCode());
+        response.putShort((short) 1);
+        response.putInt((int) ttl);
+        response.putShort((short) 0);
+    }
+
+    // derives a stable address from a name: 10.x.y.z for A, fd00::/8 for AAAA
+    private static byte[] addressFor(String name, int length) {
+        byte[] address = new byte[length];
+        int hash = name.hashCode();
+        address[0] = (byte) (length == 4 ? 10 : 0xFD);
+        for (int i = 1; i < length; i++) {
+            address[i] = (byte) hash;
+            hash = hash * 31 + i;
+        }
+        return address;
+    }
+}
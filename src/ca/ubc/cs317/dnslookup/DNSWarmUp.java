@@ -0,0 +1,171 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/** Fills the cache at startup by resolving a ranked list of popular names, so the first client
+ * queries after a restart do not all wait on upstream servers. Lookups are started at a fixed
+ * rate, with a cap on how many run at the same time, and run at background priority with the
+ * usual per-lookup budget. Resolving a name also caches the delegations (NS records and glue)
+ * on the way to it, which later lookups in the same zones reuse.
+ */
+public class DNSWarmUp {
+
+    public static final int DEFAULT_RATE = 100;
+    public static final int DEFAULT_CONCURRENCY = 16;
+    // time (in milliseconds) a lookup may take past its budget to return its permit
+    public static final long LOOKUP_GRACE_PERIOD = 1000;
+
+    private final int rate;
+    private final int concurrency;
+    private final long lookupTimeout;
+
+    /**
+     * @param rate        Maximum number of lookups started per second.
+     * @param concurrency Maximum number of lookups running at the same time.
+     */
+    public DNSWarmUp(int rate, int concurrency) {
+        this(rate, concurrency, DNSQueryBudget.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param rate          Maximum number of lookups started per second.
+     * @param concurrency   Maximum number of lookups running at the same time.
+     * @param lookupTimeout Time (in milliseconds) each lookup may take.
+     */
+    public DNSWarmUp(int rate, int concurrency, long lookupTimeout) {
+        this.rate = rate;
+        this.concurrency = concurrency;
+        this.lookupTimeout = lookupTimeout;
+    }
+
+    /**
+     * Reads a warm-up list: one "name [type]" line per query, most popular first. Anything after
+     * the type, such as a lookup count, is ignored, as is anything after a comment character.
+     * The type defaults to A.
+     *
+     * @param fileName Name of the file to read.
+     * @param limit    Maximum number of queries to read.
+     * @return The queries of the list, in order.
+     * @throws IOException if the file could not be read.
+     */
+    public static List<DNSNode> readList(String fileName, int limit) throws IOException {
+        List<DNSNode> nodes = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while (nodes.size() < limit && (line = reader.readLine()) != null) {
+                line = line.trim().split("#", 2)[0];
+                if (line.isEmpty()) continue;
+                String[] fields = line.split("\\s+");
+                try {
+                    RecordType type = fields.length > 1 ? RecordType.valueOf(fields[1].toUpperCase()) : RecordType.A;
+                    nodes.add(new DNSNode(fields[0], type));
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException("Invalid record type in line: " + line);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Resolves every query of a list, and waits until all lookups have completed, or until the
+     * warm-up deadline: the time the lookups are scheduled over, plus the timeout of a lookup.
+     * A lookup that has not completed by then (for example, because its worker stopped) does not
+     * hold up startup; the warm-up stops starting lookups and reports what it got so far.
+     *
+     * @param nodes Queries to resolve, most popular first.
+     * @return The outcome of the warm-up.
+     */
+    public Result run(List<DNSNode> nodes) {
+        Semaphore running = new Semaphore(concurrency);
+        AtomicInteger resolved = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long permitTimeout = TimeUnit.MILLISECONDS.toNanos(lookupTimeout + LOOKUP_GRACE_PERIOD);
+        long start = System.nanoTime();
+        long deadline = start + nodes.size() * interval + permitTimeout;
+
+        int started = 0;
+        for (int i = 0; i < nodes.size(); i++) {
+            long remaining;
+            while ((remaining = start + i * interval - System.nanoTime()) > 0)
+                LockSupport.parkNanos(remaining);
+            // a lookup returns its permit within its timeout, unless something went wrong
+            long wait = Math.min(deadline, System.nanoTime() + permitTimeout) - System.nanoTime();
+            if (!tryAcquire(running, 1, wait)) break;
+
+            DNSQueryBudget budget = new DNSQueryBudget(lookupTimeout, DNSQueryBudget.DEFAULT_MAX_QUERIES,
+                    DNSQueryBudget.PRIORITY_BACKGROUND);
+            started++;
+            DNSLookupService.resolve(nodes.get(i), budget).whenComplete((results, ex) -> {
+                if (ex == null && !results.isEmpty())
+                    resolved.incrementAndGet();
+                finished.incrementAndGet();
+                running.release();
+            });
+        }
+        tryAcquire(running, concurrency, deadline - System.nanoTime());
+        return new Result(nodes.size(), started, finished.get(), resolved.get());
+    }
+
+    // acquires permits within a time (in nanoseconds), or returns false
+    private static boolean tryAcquire(Semaphore semaphore, int permits, long timeout) {
+        try {
+            return semaphore.tryAcquire(permits, Math.max(0, timeout), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** The outcome of a warm-up: how many of its queries were started, completed and resolved.
+     */
+    public static class Result {
+
+        private final int queries;
+        private final int started;
+        private final int finished;
+        private final int resolved;
+
+        private Result(int queries, int started, int finished, int resolved) {
+            this.queries = queries;
+            this.started = started;
+            this.finished = finished;
+            this.resolved = resolved;
+        }
+
+        public int getQueries() {
+            return queries;
+        }
+
+        public int getStarted() {
+            return started;
+        }
+
+        public int getFinished() {
+            return finished;
+        }
+
+        /**
+         * Returns the number of queries that got results.
+         */
+        public int getResolved() {
+            return resolved;
+        }
+
+        /**
+         * Returns true if every query was started and completed before the deadline.
+         */
+        public boolean isComplete() {
+            return started == queries && finished == queries;
+        }
+    }
+}
@@ -0,0 +1,728 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** The RDATA of a resource record. Nothing is decoded until one of the decode methods is
+ * called, so records that are never looked at cost only a copy of their RDATA bytes (see
+ * fromMessage). Domain names in the RDATA of some types may be compressed, so their RDATA is
+ * instead a slice of the whole message, which must be decoded before the message is dropped.
+ * All reads use absolute positions, which makes the RDATA safe to decode from any thread, and
+ * are checked against the bounds of the RDATA (or of the message, for compressed names):
+ * malformed RDATA throws an IllegalArgumentException.
+ *
+ * The nested classes are the structured results of record types with more than one field.
+ */
+public class RecordData {
+
+    private static final int MAX_COMPRESSION_POINTERS = 64;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] BASE32HEX_DIGITS = "0123456789abcdefghijklmnopqrstuv".toCharArray();
+
+    private final int typeCode;
+    private final byte[] message;
+    private final int messageStart;
+    private final int messageEnd;
+    private final int offset;
+    private final int length;
+
+    /**
+     * @param typeCode     Record type code, as found in the message.
+     * @param message      Array holding the response message.
+     * @param messageStart Position of the first byte of the message in the array.
+     * @param messageEnd   Position right after the last byte of the message in the array.
+     * @param offset       Position of the first byte of the RDATA in the array.
+     * @param length       Length of the RDATA (RDLENGTH).
+     */
+    public RecordData(int typeCode, byte[] message, int messageStart, int messageEnd, int offset, int length) {
+        if (offset < messageStart || length < 0 || offset + length > messageEnd || messageEnd > message.length)
+            throw new IllegalArgumentException("RDATA exceeds message");
+        this.typeCode = typeCode;
+        this.message = message;
+        this.messageStart = messageStart;
+        this.messageEnd = messageEnd;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @param typeCode Record type code, as found in the message.
+     * @param rdata    The RDATA bytes, without compressed names.
+     */
+    public RecordData(int typeCode, byte[] rdata) {
+        this(typeCode, rdata, 0, rdata.length, 0, rdata.length);
+    }
+
+    /**
+     * Returns the RDATA of a record of a response message. Only RDATA that may hold compressed
+     * names (see hasCompressedNames) refers to the message; any other RDATA is copied, so the
+     * record does not keep the message alive.
+     *
+     * @param typeCode     Record type code, as found in the message.
+     * @param message      Array holding the response message.
+     * @param messageStart Position of the first byte of the message in the array.
+     * @param messageEnd   Position right after the last byte of the message in the array.
+     * @param offset       Position of the first byte of the RDATA in the array.
+     * @param length       Length of the RDATA (RDLENGTH).
+     * @return The RDATA.
+     */
+    public static RecordData fromMessage(int typeCode, byte[] message, int messageStart, int messageEnd,
+                                         int offset, int length) {
+        if (hasCompressedNames(typeCode))
+            return new RecordData(typeCode, message, messageStart, messageEnd, offset, length);
+        if (offset < messageStart || length < 0 || offset + length > messageEnd)
+            throw new IllegalArgumentException("RDATA exceeds message");
+        return new RecordData(typeCode, Arrays.copyOfRange(message, offset, offset + length));
+    }
+
+    /**
+     * Returns true if the RDATA of a record type may hold compressed names (RFC 3597 limits
+     * compression to the types of RFC 1035; SRV is included, as some servers compress it too).
+     */
+    public static boolean hasCompressedNames(int typeCode) {
+        switch (RecordType.getByCode(typeCode)) {
+            case NS:
+            case CNAME:
+            case PTR:
+            case MX:
+            case SOA:
+            case SRV:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns true if this RDATA is a slice of a whole message rather than a copy of its own.
+     */
+    public boolean referencesMessage() {
+        return offset != 0 || length != message.length;
+    }
+
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the RDATA bytes without copying them, for RDATA that does not refer to its message
+     * (see referencesMessage). The array is shared, and must not be modified.
+     */
+    byte[] getOwnBytes() {
+        if (referencesMessage())
+            throw new IllegalStateException("RDATA refers to its message");
+        return message;
+    }
+
+    /**
+     * Returns a copy of the RDATA bytes, as found in the message.
+     */
+    public byte[] getBytes() {
+        byte[] bytes = new byte[length];
+        System.arraycopy(message, offset, bytes, 0, length);
+        return bytes;
+    }
+
+    /**
+     * Decodes the RDATA of an A or AAAA record.
+     */
+    public InetAddress decodeAddress() {
+        try {
+            return InetAddress.getByAddress(getBytes());
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address length " + length);
+        }
+    }
+
+    /**
+     * Decodes the RDATA of a record holding a single domain name, such as NS, CNAME or PTR.
+     */
+    public String decodeName() {
+        return decodeName(offset);
+    }
+
+    public MX decodeMX() {
+        return new MX(readTwoOctets(offset), decodeName(offset + 2));
+    }
+
+    public SRV decodeSRV() {
+        return new SRV(readTwoOctets(offset), readTwoOctets(offset + 2), readTwoOctets(offset + 4),
+                decodeName(offset + 6));
+    }
+
+    public SOA decodeSOA() {
+        int rnameStart = skipName(offset);
+        int timersStart = skipName(rnameStart);
+        return new SOA(decodeName(offset), decodeName(rnameStart),
+                readFourOctets(timersStart), readFourOctets(timersStart + 4), readFourOctets(timersStart + 8),
+                readFourOctets(timersStart + 12), readFourOctets(timersStart + 16));
+    }
+
+    public TXT decodeTXT() {
+        List<String> strings = new ArrayList<>();
+        int position = offset;
+        while (position < offset + length) {
+            int stringLength = readOctet(position++);
+            if (position + stringLength > offset + length)
+                throw new IllegalArgumentException("TXT string exceeds RDATA");
+            strings.add(readCharacters(position, stringLength));
+            position += stringLength;
+        }
+        return new TXT(strings);
+    }
+
+    /**
+     * Decodes the RDATA of an NSEC record. The next domain name is never compressed.
+     */
+    public NSEC decodeNSEC() {
+        int bitmapStart = skipName(offset);
+        return new NSEC(decodeName(offset), decodeTypeBitmap(bitmapStart));
+    }
+
+    public NSEC3 decodeNSEC3() {
+        if (length < 6)
+            throw new IllegalArgumentException("NSEC3 RDATA too short");
+        int saltLength = readOctet(offset + 4);
+        int hashLengthPosition = offset + 5 + saltLength;
+        int hashLength = readOctet(hashLengthPosition);
+        if (hashLengthPosition + 1 + hashLength > offset + length)
+            throw new IllegalArgumentException("NSEC3 hash exceeds RDATA");
+        return new NSEC3(readOctet(offset), readOctet(offset + 1), readTwoOctets(offset + 2),
+                Arrays.copyOfRange(message, offset + 5, hashLengthPosition),
+                toBase32Hex(message, hashLengthPosition + 1, hashLength),
+                decodeTypeBitmap(hashLengthPosition + 1 + hashLength));
+    }
+
+    public RRSIG decodeRRSIG() {
+        if (length < 19)
+            throw new IllegalArgumentException("RRSIG RDATA too short");
+        return new RRSIG(readTwoOctets(offset), readOctet(offset + 2), readOctet(offset + 3),
+                readFourOctets(offset + 4), readFourOctets(offset + 8), readFourOctets(offset + 12),
+                readTwoOctets(offset + 16), decodeName(offset + 18));
+    }
+
+    // decodes the type bit maps of an NSEC or NSEC3 record, from a position to the end of the RDATA
+    private Set<Integer> decodeTypeBitmap(int position) {
+        Set<Integer> types = new TreeSet<>();
+        while (position < offset + length) {
+            int window = readOctet(position);
+            int bitmapLength = readOctet(position + 1);
+            position += 2;
+            if (bitmapLength == 0 || bitmapLength > 32 || position + bitmapLength > offset + length)
+                throw new IllegalArgumentException("Invalid type bit map");
+            for (int i = 0; i < bitmapLength; i++)
+                for (int bit = 0; bit < 8; bit++)
+                    if ((message[position + i] & (0x80 >> bit)) != 0)
+                        types.add(window * 256 + i * 8 + bit);
+            position += bitmapLength;
+        }
+        return types;
+    }
+
+    /**
+     * Encodes bytes in the base32 encoding with extended hex alphabet (RFC 4648), lower case and
+     * without padding, as used for the hashed owner names of NSEC3 records. The encoding keeps
+     * the order of the bytes.
+     *
+     * @param bytes    Array holding the bytes.
+     * @param position Position of the first byte.
+     * @param count    Number of bytes to encode.
+     * @return The encoded bytes.
+     */
+    public static String toBase32Hex(byte[] bytes, int position, int count) {
+        StringBuilder builder = new StringBuilder((count * 8 + 4) / 5);
+        int buffer = 0, bits = 0;
+        for (int i = position; i < position + count; i++) {
+            buffer = (buffer << 8) | (bytes[i] & 0xFF);
+            bits += 8;
+            while (bits >= 5) {
+                builder.append(BASE32HEX_DIGITS[(buffer >> (bits - 5)) & 0x1F]);
+                bits -= 5;
+            }
+        }
+        if (bits > 0)
+            builder.append(BASE32HEX_DIGITS[(buffer << (5 - bits)) & 0x1F]);
+        return builder.toString();
+    }
+
+    // formats type codes as type names, using the generic "TYPEn" name for unknown types
+    private static String formatTypes(Set<Integer> types) {
+        StringBuilder builder = new StringBuilder();
+        for (int code : types) {
+            RecordType type = RecordType.getByCode(code);
+            builder.append(' ').append(type == RecordType.OTHER ? "TYPE" + code : type.name());
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns the RDATA in the generic format for unknown record types (RFC 3597), that is,
+     * "\#" followed by the RDATA length and the RDATA bytes in hexadecimal.
+     */
+    public String toGenericString() {
+        StringBuilder builder = new StringBuilder("\\# ").append(length);
+        if (length > 0) builder.append(' ');
+        for (int i = offset; i < offset + length; i++)
+            builder.append(HEX_DIGITS[(message[i] >> 4) & 0x0F]).append(HEX_DIGITS[message[i] & 0x0F]);
+        return builder.toString();
+    }
+
+    /**
+     * Decodes a possibly compressed domain name starting at a position of a message, which
+     * extends to the end of the array. The name is returned without the trailing dot.
+     *
+     * @param message      Array holding the message.
+     * @param messageStart Position of the first byte of the message, which compression pointers
+     *                     are relative to.
+     * @param position     Position of the first byte of the name.
+     * @return The decoded domain name.
+     * @throws IllegalArgumentException if the name runs past the end of the message, or its
+     *                                  compression pointers loop.
+     */
+    public static String decodeName(byte[] message, int messageStart, int position) {
+        return decodeName(message, messageStart, message.length, position);
+    }
+
+    /**
+     * Decodes a possibly compressed domain name starting at a position of a message. The name
+     * is returned without the trailing dot.
+     *
+     * @param message      Array holding the message.
+     * @param messageStart Position of the first byte of the message, which compression pointers
+     *                     are relative to.
+     * @param messageEnd   Position right after the last byte of the message.
+     * @param position     Position of the first byte of the name.
+     * @return The decoded domain name.
+     * @throws IllegalArgumentException if the name runs past the end of the message, or its
+     *                                  compression pointers loop.
+     */
+    public static String decodeName(byte[] message, int messageStart, int messageEnd, int position) {
+        StringBuilder name = new StringBuilder();
+        int pointers = 0;
+        while (true) {
+            int partLength = octetAt(message, messageEnd, position);
+            if (partLength == 0)
+                break;
+            if ((partLength & 0xC0) == 0xC0) {
+                if (++pointers > MAX_COMPRESSION_POINTERS)
+                    throw new IllegalArgumentException("Compression pointer loop");
+                position = messageStart + (((partLength & 0x3F) << 8) | octetAt(message, messageEnd, position + 1));
+                if (position < messageStart)
+                    throw new IllegalArgumentException("Compression pointer outside of message");
+                continue;
+            }
+            if ((partLength & 0xC0) != 0 || position + partLength >= messageEnd)
+                throw new IllegalArgumentException("Invalid label in name");
+            for (int i = position + 1; i <= position + partLength; i++)
+                name.append((char) (message[i] & 0xFF));
+            name.append('.');
+            position += partLength + 1;
+        }
+        if (name.length() > 0)
+            name.setLength(name.length() - 1);
+        return name.toString();
+    }
+
+    /**
+     * Returns the position right after a domain name in a message, which extends to the end of
+     * the array, without following compression pointers.
+     *
+     * @throws IllegalArgumentException if the name runs past the end of the message.
+     */
+    public static int skipName(byte[] message, int position) {
+        return skipName(message, message.length, position);
+    }
+
+    /**
+     * Returns the position right after a domain name in a message, without following
+     * compression pointers.
+     *
+     * @param message    Array holding the message.
+     * @param messageEnd Position right after the last byte of the message.
+     * @param position   Position of the first byte of the name.
+     * @return The position right after the name.
+     * @throws IllegalArgumentException if the name runs past the end of the message.
+     */
+    public static int skipName(byte[] message, int messageEnd, int position) {
+        while (true) {
+            int partLength = octetAt(message, messageEnd, position);
+            if (partLength == 0)
+                return position + 1;
+            if ((partLength & 0xC0) == 0xC0) {
+                octetAt(message, messageEnd, position + 1);
+                return position + 2;
+            }
+            if ((partLength & 0xC0) != 0)
+                throw new IllegalArgumentException("Invalid label in name");
+            position += partLength + 1;
+        }
+    }
+
+    // returns an octet of a message, checking that it is within the message
+    private static int octetAt(byte[] message, int messageEnd, int position) {
+        if (position < 0 || position >= Math.min(messageEnd, message.length))
+            throw new IllegalArgumentException("Name exceeds message");
+        return message[position] & 0xFF;
+    }
+
+    // decodes a name of the RDATA, which may point anywhere before it in the message
+    private String decodeName(int position) {
+        if (position >= offset + length)
+            throw new IllegalArgumentException("RDATA too short");
+        return decodeName(message, messageStart, messageEnd, position);
+    }
+
+    // skips a name of the RDATA, which must end within the RDATA
+    private int skipName(int position) {
+        return skipName(message, offset + length, position);
+    }
+
+    private int readOctet(int position) {
+        if (position < offset || position >= offset + length)
+            throw new IllegalArgumentException("RDATA too short");
+        return message[position] & 0xFF;
+    }
+
+    private int readTwoOctets(int position) {
+        return (readOctet(position) << 8) | readOctet(position + 1);
+    }
+
+    private long readFourOctets(int position) {
+        return ((long) readTwoOctets(position) << 16) | readTwoOctets(position + 2);
+    }
+
+    private String readCharacters(int position, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = position; i < position + count; i++)
+            builder.append((char) (message[i] & 0xFF));
+        return builder.toString();
+    }
+
+    /** Start of authority: the zone's primary nameserver, the mailbox of its administrator,
+     * and the zone's serial number and timers.
+     */
+    public static class SOA implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String primaryNameServer;
+        private final String responsibleMailbox;
+        private final long serial;
+        private final long refresh;
+        private final long retry;
+        private final long expire;
+        private final long minimum;
+
+        public SOA(String primaryNameServer, String responsibleMailbox, long serial, long refresh, long retry,
+                   long expire, long minimum) {
+            this.primaryNameServer = primaryNameServer;
+            this.responsibleMailbox = responsibleMailbox;
+            this.serial = serial;
+            this.refresh = refresh;
+            this.retry = retry;
+            this.expire = expire;
+            this.minimum = minimum;
+        }
+
+        public String getPrimaryNameServer() {
+            return primaryNameServer;
+        }
+
+        public String getResponsibleMailbox() {
+            return responsibleMailbox;
+        }
+
+        public long getSerial() {
+            return serial;
+        }
+
+        public long getRefresh() {
+            return refresh;
+        }
+
+        public long getRetry() {
+            return retry;
+        }
+
+        public long getExpire() {
+            return expire;
+        }
+
+        public long getMinimum() {
+            return minimum;
+        }
+
+        @Override
+        public String toString() {
+            return primaryNameServer + " " + responsibleMailbox + " " + serial + " " + refresh + " " + retry + " "
+                    + expire + " " + minimum;
+        }
+    }
+
+    /** Mail exchange: the exchange host and its preference (lower values are preferred).
+     */
+    public static class MX implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int preference;
+        private final String exchange;
+
+        public MX(int preference, String exchange) {
+            this.preference = preference;
+            this.exchange = exchange;
+        }
+
+        public int getPreference() {
+            return preference;
+        }
+
+        public String getExchange() {
+            return exchange;
+        }
+
+        @Override
+        public String toString() {
+            return preference + " " + exchange;
+        }
+    }
+
+    /** Service location: the target host and port of a service, with its priority and weight.
+     */
+    public static class SRV implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int priority;
+        private final int weight;
+        private final int port;
+        private final String target;
+
+        public SRV(int priority, int weight, int port, String target) {
+            this.priority = priority;
+            this.weight = weight;
+            this.port = port;
+            this.target = target;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public int getWeight() {
+            return weight;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        @Override
+        public String toString() {
+            return priority + " " + weight + " " + port + " " + target;
+        }
+    }
+
+    /** Text: one or more character strings.
+     */
+    public static class TXT implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> strings;
+
+        public TXT(List<String> strings) {
+            this.strings = Collections.unmodifiableList(new ArrayList<>(strings));
+        }
+
+        public List<String> getStrings() {
+            return strings;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (String string : strings) {
+                if (builder.length() > 0) builder.append(' ');
+                builder.append('"').append(string.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            return builder.toString();
+        }
+    }
+
+    /** Authenticated denial of existence: the next owner name of the zone in canonical order,
+     * and the types that exist at the owner name.
+     */
+    public static class NSEC implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String nextDomainName;
+        private final Set<Integer> types;
+
+        public NSEC(String nextDomainName, Set<Integer> types) {
+            this.nextDomainName = nextDomainName;
+            this.types = Collections.unmodifiableSet(new TreeSet<>(types));
+        }
+
+        public String getNextDomainName() {
+            return nextDomainName;
+        }
+
+        public Set<Integer> getTypes() {
+            return types;
+        }
+
+        @Override
+        public String toString() {
+            return nextDomainName + formatTypes(types);
+        }
+    }
+
+    /** Hashed authenticated denial of existence: the hash parameters of the zone, the next hashed
+     * owner name of the zone in hash order (in base32hex), and the types that exist at the owner
+     * name.
+     */
+    public static class NSEC3 implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        public static final int FLAG_OPT_OUT = 0x01;
+
+        private final int hashAlgorithm;
+        private final int flags;
+        private final int iterations;
+        private final byte[] salt;
+        private final String nextHashedOwnerName;
+        private final Set<Integer> types;
+
+        public NSEC3(int hashAlgorithm, int flags, int iterations, byte[] salt, String nextHashedOwnerName,
+                     Set<Integer> types) {
+            this.hashAlgorithm = hashAlgorithm;
+            this.flags = flags;
+            this.iterations = iterations;
+            this.salt = salt.clone();
+            this.nextHashedOwnerName = nextHashedOwnerName;
+            this.types = Collections.unmodifiableSet(new TreeSet<>(types));
+        }
+
+        public int getHashAlgorithm() {
+            return hashAlgorithm;
+        }
+
+        public int getFlags() {
+            return flags;
+        }
+
+        public boolean isOptOut() {
+            return (flags & FLAG_OPT_OUT) != 0;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public byte[] getSalt() {
+            return salt.clone();
+        }
+
+        public String getNextHashedOwnerName() {
+            return nextHashedOwnerName;
+        }
+
+        public Set<Integer> getTypes() {
+            return types;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder().append(hashAlgorithm).append(' ').append(flags).append(' ')
+                    .append(iterations).append(' ');
+            if (salt.length == 0)
+                builder.append('-');
+            for (byte b : salt)
+                builder.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+            return builder.append(' ').append(nextHashedOwnerName).append(formatTypes(types)).toString();
+        }
+    }
+
+    /** Signature over a record set. Only the fields that describe the signature are kept; the
+     * signature itself is not, since the resolver does not validate signatures.
+     */
+    public static class RRSIG implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int typeCovered;
+        private final int algorithm;
+        private final int labels;
+        private final long originalTTL;
+        private final long expiration;
+        private final long inception;
+        private final int keyTag;
+        private final String signerName;
+
+        public RRSIG(int typeCovered, int algorithm, int labels, long originalTTL, long expiration, long inception,
+                     int keyTag, String signerName) {
+            this.typeCovered = typeCovered;
+            this.algorithm = algorithm;
+            this.labels = labels;
+            this.originalTTL = originalTTL;
+            this.expiration = expiration;
+            this.inception = inception;
+            this.keyTag = keyTag;
+            this.signerName = signerName;
+        }
+
+        public int getTypeCovered() {
+            return typeCovered;
+        }
+
+        public int getAlgorithm() {
+            return algorithm;
+        }
+
+        public int getLabels() {
+            return labels;
+        }
+
+        public long getOriginalTTL() {
+            return originalTTL;
+        }
+
+        /**
+         * Returns the time after which the signature is no longer valid, in seconds since the
+         * epoch (modulo 2^32, see RFC 4034).
+         */
+        public long getExpiration() {
+            return expiration;
+        }
+
+        public long getInception() {
+            return inception;
+        }
+
+        public int getKeyTag() {
+            return keyTag;
+        }
+
+        public String getSignerName() {
+            return signerName;
+        }
+
+        @Override
+        public String toString() {
+            RecordType type = RecordType.getByCode(typeCovered);
+            return (type == RecordType.OTHER ? "TYPE" + typeCovered : type.name()) + " " + algorithm + " " + labels
+                    + " " + originalTTL + " " + expiration + " " + inception + " " + keyTag + " " + signerName;
+        }
+    }
+}
@@ -1,10 +1,12 @@
 package ca.ubc.cs317.dnslookup;
 
 /** Record types supported by the application. Includes a few common record types that are not
- * fully supported by this application.
+ * fully supported by this application. Records of the DNSSEC types (RRSIG, NSEC and NSEC3) are
+ * decoded but not cached, and OPT pseudo-records (EDNS) are skipped.
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), PTR(12), MX(15), TXT(16), AAAA(28), SRV(33), OPT(41),
+    RRSIG(46), NSEC(47), NSEC3(50), OTHER(0);
 
     private int code;
 
@@ -1,13 +1,24 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Objects;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
  * and is represented by an expiration time calculated as a delta from the current time.
+ *
+ * Records decoded from a DNS response keep a copy of their RDATA and only decode it the first
+ * time one of the results is accessed. Records whose RDATA may hold compressed names are decoded
+ * right away instead, so that no record keeps the whole response alive. Records holding their
+ * RDATA (and address records) are compared and hashed by their RDATA bytes, so storing them in
+ * a hash set or map does not decode them; other records are compared by their text result. Record types with several fields (SOA, MX, SRV,
+ * TXT, NSEC, NSEC3 and RRSIG) also provide a structured result.
  */
 public class ResourceRecord implements Serializable {
 
@@ -15,6 +26,11 @@ public class ResourceRecord implements Serializable {
     private Date expirationTime;
     private String textResult;
     private InetAddress inetResult;
+    private Serializable structuredResult;
+    private transient RecordData recordData;
+    // the RDATA of records whose RDATA holds no (compressed) names, kept once decoded too, or
+    // the address of an address record; null for records compared by their text result
+    private byte[] rdata;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
         this.node = new DNSNode(hostName, type);
@@ -26,6 +42,41 @@ public class ResourceRecord implements Serializable {
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
         this(hostName, type, ttl, result.getHostAddress());
         this.inetResult = result;
+        this.rdata = result.getAddress();
+    }
+
+    /** Creates a copy of a record under another host name and with another expiration time,
+     * such as a result for a canonical name returned for one of its aliases.
+     *
+     * @param hostName       Host name of the copy.
+     * @param expirationTime Expiration time of the copy.
+     * @param record         Record whose results are copied.
+     */
+    public ResourceRecord(String hostName, Date expirationTime, ResourceRecord record) {
+        record.decodeRecordData();
+        this.node = new DNSNode(hostName, record.getType());
+        this.expirationTime = new Date(expirationTime.getTime());
+        this.textResult = record.textResult;
+        this.inetResult = record.inetResult;
+        this.structuredResult = record.structuredResult;
+        this.rdata = record.rdata;
+    }
+
+    /** Creates a record from its RDATA. RDATA that refers to the rest of its message (see
+     * RecordData.fromMessage) is decoded right away; any other RDATA is decoded when a result
+     * is first accessed.
+     *
+     * @throws IllegalArgumentException if RDATA decoded right away does not match its type.
+     */
+    public ResourceRecord(String hostName, RecordType type, long ttl, RecordData data) {
+        this.node = new DNSNode(hostName, type);
+        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        if (data.referencesMessage()) {
+            decode(data);
+        } else {
+            this.recordData = data;
+            this.rdata = data.getOwnBytes();
+        }
     }
 
     public DNSNode getNode() {
@@ -51,6 +102,14 @@ public class ResourceRecord implements Serializable {
         return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
     }
 
+    /** Returns the time at which this record expires.
+     *
+     * @return The expiration time of this record.
+     */
+    public Date getExpirationTime() {
+        return new Date(expirationTime.getTime());
+    }
+
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
      * should not be maintained in cache, and should instead be retrieved again from an
      * authoritative DNS server.
@@ -74,13 +133,113 @@ public class ResourceRecord implements Serializable {
     }
 
     public String getTextResult() {
+        decodeRecordData();
         return textResult;
     }
 
     public InetAddress getInetResult() {
+        decodeRecordData();
         return inetResult;
     }
 
+    public RecordData.SOA getSOAResult() {
+        decodeRecordData();
+        return structuredResult instanceof RecordData.SOA ? (RecordData.SOA) structuredResult : null;
+    }
+
+    public RecordData.MX getMXResult() {
+        decodeRecordData();
+        return structuredResult instanceof RecordData.MX ? (RecordData.MX) structuredResult : null;
+    }
+
+    public RecordData.SRV getSRVResult() {
+        decodeRecordData();
+        return structuredResult instanceof RecordData.SRV ? (RecordData.SRV) structuredResult : null;
+    }
+
+    public RecordData.TXT getTXTResult() {
+        decodeRecordData();
+        return structuredResult instanceof RecordData.TXT ? (RecordData.TXT) structuredResult : null;
+    }
+
+    public RecordData.NSEC getNSECResult() {
+        decodeRecordData();
+        return structuredResult instanceof RecordData.NSEC ? (RecordData.NSEC) structuredResult : null;
+    }
+
+    public RecordData.NSEC3 getNSEC3Result() {
+        decodeRecordData();
+        return structuredResult instanceof RecordData.NSEC3 ? (RecordData.NSEC3) structuredResult : null;
+    }
+
+    public RecordData.RRSIG getRRSIGResult() {
+        decodeRecordData();
+        return structuredResult instanceof RecordData.RRSIG ? (RecordData.RRSIG) structuredResult : null;
+    }
+
+    /** Decodes the RDATA the first time a result is accessed, and then drops it. RDATA that
+     * does not match its record type is kept in the generic format for unknown types.
+     */
+    private synchronized void decodeRecordData() {
+        if (recordData == null) return;
+
+        try {
+            decode(recordData);
+        } catch (IllegalArgumentException ex) {
+            inetResult = null;
+            structuredResult = null;
+            textResult = recordData.toGenericString();
+        }
+        recordData = null;
+    }
+
+    // decodes the results of the record from its RDATA, throwing an IllegalArgumentException if
+    // the RDATA does not match the record type
+    private void decode(RecordData data) {
+        switch (node.getType()) {
+            case A:
+            case AAAA:
+                inetResult = data.decodeAddress();
+                textResult = inetResult.getHostAddress();
+                break;
+            case NS:
+            case CNAME:
+            case PTR:
+                textResult = data.decodeName();
+                break;
+            case SOA:
+                structuredResult = data.decodeSOA();
+                break;
+            case MX:
+                structuredResult = data.decodeMX();
+                break;
+            case SRV:
+                structuredResult = data.decodeSRV();
+                break;
+            case TXT:
+                structuredResult = data.decodeTXT();
+                break;
+            case NSEC:
+                structuredResult = data.decodeNSEC();
+                break;
+            case NSEC3:
+                structuredResult = data.decodeNSEC3();
+                break;
+            case RRSIG:
+                structuredResult = data.decodeRRSIG();
+                break;
+            default:
+                textResult = data.toGenericString();
+        }
+        if (structuredResult != null)
+            textResult = structuredResult.toString();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeRecordData();
+        out.defaultWriteObject();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -89,14 +248,15 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        if (rdata != null || record.rdata != null)
+            return Arrays.equals(rdata, record.rdata);
+        return Objects.equals(textResult, record.textResult);
     }
 
+    // records holding their RDATA are hashed by it, so they are stored in a hash set without
+    // being decoded; the text result of any other record is decoded already
     @Override
     public int hashCode() {
-        int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
-        return result;
+        return 31 * node.hashCode() + (rdata != null ? Arrays.hashCode(rdata) : Objects.hashCode(textResult));
     }
 }
@@ -0,0 +1,111 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+
+/** Conversions between IP addresses and the domain names their PTR records are stored under:
+ * the reversed decimal octets under in-addr.arpa for IPv4, and the reversed hexadecimal nibbles
+ * under ip6.arpa for IPv6.
+ */
+public class ReverseName {
+
+    public static final String IPV4_SUFFIX = ".in-addr.arpa";
+    public static final String IPV6_SUFFIX = ".ip6.arpa";
+
+    private ReverseName() {
+    }
+
+    /**
+     * Returns the reverse lookup name of an address, such as 4.3.2.1.in-addr.arpa for 1.2.3.4.
+     *
+     * @param address IPv4 or IPv6 address.
+     * @return The name the PTR records of the address are stored under.
+     */
+    public static String forAddress(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        StringBuilder name = new StringBuilder();
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (bytes.length == 4)
+                name.append(bytes[i] & 0xFF).append('.');
+            else
+                name.append(Character.forDigit(bytes[i] & 0x0F, 16)).append('.')
+                        .append(Character.forDigit((bytes[i] >> 4) & 0x0F, 16)).append('.');
+        }
+        name.setLength(name.length() - 1);
+        return name.append(bytes.length == 4 ? IPV4_SUFFIX : IPV6_SUFFIX).toString();
+    }
+
+    /**
+     * Returns the address a complete reverse lookup name stands for.
+     *
+     * @param hostName Host name, possibly a reverse lookup name.
+     * @return The address, or null if the name is not the reverse lookup name of an address.
+     */
+    public static InetAddress toAddress(String hostName) {
+        String name = hostName.toLowerCase(Locale.ROOT);
+        if (name.endsWith("."))
+            name = name.substring(0, name.length() - 1);
+
+        byte[] bytes;
+        if (name.endsWith(IPV4_SUFFIX)) {
+            String[] labels = name.substring(0, name.length() - IPV4_SUFFIX.length()).split("\\.", -1);
+            if (labels.length != 4) return null;
+            bytes = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                if (!labels[i].matches("0|[1-9][0-9]{0,2}")) return null;
+                int octet = Integer.parseInt(labels[i]);
+                if (octet > 255) return null;
+                bytes[3 - i] = (byte) octet;
+            }
+        } else if (name.endsWith(IPV6_SUFFIX)) {
+            String[] labels = name.substring(0, name.length() - IPV6_SUFFIX.length()).split("\\.", -1);
+            if (labels.length != 32) return null;
+            bytes = new byte[16];
+            for (int i = 0; i < 32; i++) {
+                int nibble = labels[i].length() == 1 ? Character.digit(labels[i].charAt(0), 16) : -1;
+                if (nibble < 0) return null;
+                bytes[15 - i / 2] |= (byte) (i % 2 == 0 ? nibble : nibble << 4);
+            }
+        } else {
+            return null;
+        }
+        return toInetAddress(bytes);
+    }
+
+    /**
+     * Parses an IP address literal, without ever sending a DNS query for it.
+     *
+     * @param literal Dotted IPv4 address or IPv6 address.
+     * @return The address, or null if the string is not an IP address literal.
+     */
+    public static InetAddress parseLiteral(String literal) {
+        if (literal.matches("(\\d{1,3}\\.){3}\\d{1,3}")) {
+            byte[] bytes = new byte[4];
+            String[] octets = literal.split("\\.");
+            for (int i = 0; i < 4; i++) {
+                int octet = Integer.parseInt(octets[i]);
+                if (octet > 255) return null;
+                bytes[i] = (byte) octet;
+            }
+            return toInetAddress(bytes);
+        }
+        // a string containing a colon is only ever parsed as an IPv6 literal, never resolved
+        if (literal.indexOf(':') >= 0 && literal.matches("[0-9A-Fa-f:.]+")) {
+            try {
+                return InetAddress.getByName(literal);
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static InetAddress toInetAddress(byte[] bytes) {
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Objects;
+
+/** Assertions used by the tests. Each one throws an AssertionError describing the mismatch.
+ */
+public class Assert {
+
+    public static void assertTrue(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    public static void assertFalse(boolean condition, String message) {
+        assertTrue(!condition, message);
+    }
+
+    public static void assertEquals(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual))
+            throw new AssertionError(message + ": expected <" + expected + "> but was <" + actual + ">");
+    }
+
+    /**
+     * Runs code that is expected to throw an exception of the given type.
+     *
+     * @param type Expected exception type.
+     * @param code Code to be run.
+     * @return The exception thrown.
+     */
+    public static <T extends Throwable> T assertThrows(Class<T> type, ThrowingRunnable code, String message) {
+        try {
+            code.run();
+        } catch (Throwable t) {
+            if (type.isInstance(t))
+                return type.cast(t);
+            throw new AssertionError(message + ": expected " + type.getSimpleName() + " but got " + t, t);
+        }
+        throw new AssertionError(message + ": expected " + type.getSimpleName() + " but nothing was thrown");
+    }
+
+    public interface ThrowingRunnable {
+        void run() throws Exception;
+    }
+}
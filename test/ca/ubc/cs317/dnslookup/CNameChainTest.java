@@ -0,0 +1,119 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests following CNAME chains: results of the canonical name returned under the alias, chains
+ * dropped when one of their CNAME records changes, loops and chains that are too long, and the
+ * nodes a chained answer is resolved from.
+ */
+public class CNameChainTest {
+
+    public static void testChainResultsAreReturnedUnderAlias() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(2, 0)) {
+            DNSNode alias = new DNSNode("www.example", RecordType.A);
+            cache(alias, cname("www.example", "cdn.example", 300), cname("cdn.example", "edge.example", 60),
+                    address("edge.example", 120));
+
+            Set<ResourceRecord> results = resolver.resolve(alias);
+            assertEquals(1, results.size(), "results of the alias");
+            ResourceRecord result = results.iterator().next();
+            assertEquals("www.example", result.getHostName(), "owner of the result");
+            assertEquals("10.0.0.1", result.getTextResult(), "address of the canonical name");
+            assertTrue(result.getTTL() <= 60, "result outlives the chain: TTL " + result.getTTL());
+            assertEquals(0L, resolver.getQueries(), "upstream queries for a cached chain");
+        }
+    }
+
+    public static void testChainIsDroppedWhenCNameChanges() {
+        DNSCache cache = new DNSCache();
+        DNSNode alias = new DNSNode("www.example", RecordType.A);
+        ResourceRecord first = cname("www.example", "cdn.example", 300);
+        ResourceRecord second = cname("cdn.example", "edge.example", 300);
+        cache.addChain(new CNameChain(alias, List.of(first, second)));
+        assertTrue(cache.getCachedChain(alias) != null, "chain cached");
+
+        cache.addResult(cname("cdn.example", "other.example", 600));
+        assertTrue(cache.getCachedChain(alias) == null, "chain kept after one of its CNAMEs changed");
+    }
+
+    public static void testCNameLoopIsDetected() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0)) {
+            DNSNode alias = new DNSNode("a.example", RecordType.A);
+            cache(alias, cname("a.example", "b.example", 300), cname("b.example", "c.example", 300),
+                    cname("c.example", "a.example", 300));
+
+            String errors = capturingErrors(() -> assertTrue(resolver.resolve(alias).isEmpty(),
+                    "results of a looping alias"));
+            assertTrue(errors.contains("CNAME loop detected for a.example."), "loop message: " + errors);
+        }
+    }
+
+    public static void testLongChainIsReportedAsTooLong() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0)) {
+            DNSNode alias = new DNSNode("h0.example", RecordType.A);
+            ResourceRecord[] cnames = new ResourceRecord[12];
+            for (int i = 0; i < cnames.length; i++)
+                cnames[i] = cname("h" + i + ".example", "h" + (i + 1) + ".example", 300);
+            cache(alias, cnames);
+
+            String errors = capturingErrors(() -> assertTrue(resolver.resolve(alias).isEmpty(),
+                    "results of an alias with a long chain"));
+            assertTrue(errors.contains("CNAME chain too long for h0.example."), "chain length message: " + errors);
+            assertFalse(errors.contains("loop"), "long chain reported as a loop: " + errors);
+        }
+    }
+
+    public static void testSourceNodesCoverChainAndTarget() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(2, 0)) {
+            DNSNode alias = new DNSNode("www.example", RecordType.A);
+            cache(alias, cname("www.example", "cdn.example", 300), cname("cdn.example", "edge.example", 300),
+                    address("edge.example", 300));
+            resolver.resolve(alias);
+
+            Set<DNSNode> nodes = DNSLookupService.getSourceNodes(alias).get(5, TimeUnit.SECONDS);
+            assertEquals(Set.of(new DNSNode("www.example", RecordType.CNAME),
+                    new DNSNode("cdn.example", RecordType.CNAME),
+                    new DNSNode("edge.example", RecordType.A)), nodes, "source nodes of the alias");
+            assertTrue(DNSLookupService.getSourceNodes(new DNSNode("edge.example", RecordType.A))
+                    .get(5, TimeUnit.SECONDS).isEmpty(), "source nodes of a canonical name");
+        }
+    }
+
+    // caches records in the shard of the worker owning a node, as if they came in its response
+    private static void cache(DNSNode node, ResourceRecord... records) throws Exception {
+        DNSResolverWorker owner = DNSResolverWorker.forNode(node);
+        owner.submit(() -> {
+            for (ResourceRecord record : records)
+                owner.getCache().addResult(record);
+            return null;
+        }).get(2, TimeUnit.SECONDS);
+    }
+
+    private static ResourceRecord cname(String alias, String target, long ttl) {
+        return new ResourceRecord(alias, RecordType.CNAME, ttl, target);
+    }
+
+    private static ResourceRecord address(String hostName, long ttl) throws Exception {
+        return new ResourceRecord(hostName, RecordType.A, ttl, InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }));
+    }
+
+    // runs code with System.err captured, returning what was printed
+    private static String capturingErrors(Assert.ThrowingRunnable code) throws Exception {
+        PrintStream original = System.err;
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errors, true));
+        try {
+            code.run();
+        } finally {
+            System.setErr(original);
+        }
+        return errors.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Set;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests the address index of the cache, which answers reverse lookups for addresses resolved
+ * recently: names expire with their address records, and the index stays bounded.
+ */
+public class DNSAddressIndexTest {
+
+    public static void testAddressRecordsAreIndexed() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(address("www.example", 1, 300));
+        cache.addResult(address("WWW.example", 1, 300));
+        cache.addResult(address("mail.example", 1, 300));
+
+        Map<String, Long> names = cache.getNamesForAddress(ip(1));
+        assertEquals(2, names.size(), "names of the address");
+        assertTrue(names.containsKey("www.example") && names.containsKey("mail.example"), "names: " + names);
+        assertEquals(2, cache.getIndexedNameCount(), "indexed names");
+    }
+
+    public static void testGlueIsNotIndexed() throws Exception {
+        // address records outside the answer section, such as glue, are cached without indexing
+        DNSCache cache = new DNSCache();
+        cache.addResult(address("ns.example", 1, 300), false);
+        assertEquals(1, cache.getCachedResults(new DNSNode("ns.example", RecordType.A)).size(), "cached glue");
+        assertTrue(cache.getNamesForAddress(ip(1)).isEmpty(), "names of a glue address");
+        assertEquals(0, cache.getIndexedNameCount(), "indexed names");
+    }
+
+    public static void testExpiredNamesAreEvicted() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(address("old.example", 1, 1));
+        Thread.sleep(1100);
+
+        // the expired name is evicted by the next addition, without a lookup of its address
+        cache.addResult(address("new.example", 2, 300));
+        assertEquals(1, cache.getIndexedNameCount(), "indexed names after expiry");
+        assertTrue(cache.getNamesForAddress(ip(1)).isEmpty(), "names of an expired address");
+    }
+
+    public static void testExtendedNameIsNotEvicted() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(address("www.example", 1, 1));
+        cache.addResult(address("www.example", 1, 300));
+        Thread.sleep(1100);
+
+        cache.addResult(address("other.example", 2, 300));
+        assertEquals(Set.of("www.example"), cache.getNamesForAddress(ip(1)).keySet(),
+                "name whose address record was replaced");
+        assertEquals(2, cache.getIndexedNameCount(), "indexed names");
+    }
+
+    public static void testIndexIsBounded() throws Exception {
+        DNSCache cache = new DNSCache();
+        int count = DNSCache.MAX_INDEXED_NAMES + 10;
+        // later names expire later, so the first ones are evicted to make room
+        for (int i = 0; i < count; i++)
+            cache.addResult(new ResourceRecord("host" + i + ".example", RecordType.A, 1000 + i,
+                    InetAddress.getByAddress(new byte[] { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i })));
+
+        assertEquals(DNSCache.MAX_INDEXED_NAMES, cache.getIndexedNameCount(), "indexed names");
+        assertTrue(cache.getNamesForAddress(InetAddress.getByAddress(new byte[] { 10, 0, 0, 0 })).isEmpty(),
+                "name expiring soonest still indexed");
+        int last = count - 1;
+        assertEquals(Set.of("host" + last + ".example"), cache.getNamesForAddress(InetAddress.getByAddress(
+                new byte[] { 10, (byte) (last >> 16), (byte) (last >> 8), (byte) last })).keySet(), "latest name");
+    }
+
+    public static void testReverseLookupIsAnsweredFromIndex() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(2, 0)) {
+            Set<ResourceRecord> addresses = resolver.resolve("host1.zone1.test");
+            assertEquals(1, addresses.size(), "addresses of the name");
+            InetAddress address = addresses.iterator().next().getInetResult();
+            long queries = resolver.getQueries();
+
+            Set<ResourceRecord> names = resolver.resolve(new DNSNode(ReverseName.forAddress(address), RecordType.PTR));
+            assertEquals(1, names.size(), "names of the address");
+            assertEquals("host1.zone1.test", names.iterator().next().getTextResult(), "name of the address");
+            assertEquals(queries, resolver.getQueries(), "upstream queries for an indexed address");
+        }
+    }
+
+    private static InetAddress ip(int host) throws Exception {
+        return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) host });
+    }
+
+    private static ResourceRecord address(String hostName, int host, long ttl) throws Exception {
+        return new ResourceRecord(hostName, RecordType.A, ttl, ip(host));
+    }
+}
@@ -0,0 +1,57 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests lookups of both addresses of a host: the A and AAAA queries share one referral walk,
+ * and the answer of one type is kept when the other is lost.
+ */
+public class DNSAddressLookupTest {
+
+    private static final String ZONE = "zone1.test";
+
+    public static void testTypesShareReferralWalk() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0)) {
+            List<ResourceRecord> addresses = resolveAddresses("host1." + ZONE, ResolverFixture.LOOKUP_TIMEOUT);
+
+            assertEquals(2, addresses.size(), "addresses of both types");
+            assertEquals(RecordType.AAAA, addresses.get(0).getType(), "type of the first address");
+            assertEquals(RecordType.A, addresses.get(1).getType(), "type of the second address");
+            // one query to each referring server, and both types to the zone server
+            assertEquals(4L, resolver.getQueries(), "queries of the walk");
+
+            // the delegation of the zone is known now, so only the zone server is asked
+            assertEquals(2, resolveAddresses("host2." + ZONE, ResolverFixture.LOOKUP_TIMEOUT).size(),
+                    "addresses of another host in the zone");
+            assertEquals(6L, resolver.getQueries(), "queries after a lookup in a known zone");
+        }
+    }
+
+    public static void testAnswerIsKeptWhenOtherTypeTimesOut() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0)) {
+            resolver.dropAnswers(RecordType.A);
+            List<ResourceRecord> addresses = resolveAddresses("host1." + ZONE, ResolverFixture.LOOKUP_TIMEOUT);
+
+            assertEquals(1, addresses.size(), "addresses once the A query timed out");
+            assertEquals(RecordType.AAAA, addresses.get(0).getType(), "type of the address found");
+            assertEquals(4L, resolver.getQueries(), "queries of the walk");
+        }
+    }
+
+    public static void testAnswerIsKeptWhenBudgetEndsWaitingForOtherType() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0)) {
+            resolver.dropAnswers(RecordType.AAAA);
+            List<ResourceRecord> addresses = resolveAddresses("host1." + ZONE, 1000);
+
+            assertEquals(1, addresses.size(), "addresses once the lookup timed out");
+            assertEquals(RecordType.A, addresses.get(0).getType(), "type of the address found");
+        }
+    }
+
+    private static List<ResourceRecord> resolveAddresses(String hostName, long timeout) throws Exception {
+        return DNSLookupService.resolveAddresses(hostName, timeout)
+                .get(timeout + ResolverFixture.LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,105 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests cache snapshots, which must not change while the cache does, and the export of the
+ * snapshots of several shards in a single node order.
+ */
+public class DNSCacheSnapshotTest {
+
+    public static void testSnapshotIgnoresLaterChanges() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(address("a.example", 1, 300));
+        DNSCacheSnapshot snapshot = cache.snapshot();
+
+        // a record added to an existing node, and a new node
+        cache.addResult(address("a.example", 2, 300));
+        cache.addResult(address("b.example", 3, 300));
+
+        assertEquals(List.of("a.example A 10.0.0.1"), records(snapshot), "records of the snapshot");
+        assertEquals(2, cache.getCachedResults(new DNSNode("a.example", RecordType.A)).size(),
+                "records of the cache");
+        assertEquals(List.of("a.example A 10.0.0.1", "a.example A 10.0.0.2", "b.example A 10.0.0.3"),
+                records(cache.snapshot()), "records of a later snapshot");
+    }
+
+    public static void testSnapshotKeepsRecordsRemovedFromCache() throws Exception {
+        DNSCache cache = new DNSCache();
+        cache.addResult(address("a.example", 1, 1));
+        cache.addResult(address("a.example", 2, 300));
+        DNSCacheSnapshot snapshot = cache.snapshot();
+
+        Thread.sleep(1100);
+        assertEquals(1, cache.getCachedResults(new DNSNode("a.example", RecordType.A)).size(),
+                "records left in the cache");
+        assertEquals(2, records(snapshot).size(), "records of the snapshot after expiry");
+    }
+
+    public static void testReturnedResultsIgnoreLaterChanges() throws Exception {
+        DNSCache cache = new DNSCache();
+        DNSNode node = new DNSNode("a.example", RecordType.A);
+        cache.addResult(address("a.example", 1, 300));
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+
+        cache.addResult(address("a.example", 2, 300));
+        assertEquals(1, results.size(), "results returned before the change");
+        assertEquals(2, cache.getCachedResults(node).size(), "results returned after the change");
+    }
+
+    public static void testExportMergesShardsInNodeOrder() throws Exception {
+        List<DNSCacheSnapshot> snapshots = new ArrayList<>();
+        String[][] shards = { { "d.example", "a.example", "f.example" }, { "e.example", "c.example" },
+                { "B.example" } };
+        for (String[] names : shards) {
+            DNSCache shard = new DNSCache();
+            for (int i = 0; i < names.length; i++)
+                shard.addResult(address(names[i], i + 1, 300));
+            snapshots.add(shard.snapshot());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long count = new DNSCacheExporter(DNSCacheExporter.Format.TEXT, null, null).export(snapshots, out);
+        List<String> names = new ArrayList<>();
+        for (String line : out.toString(StandardCharsets.UTF_8).split("\n"))
+            names.add(line.split("\\s+")[0]);
+
+        assertEquals(6L, count, "records exported");
+        assertEquals(List.of("a.example", "B.example", "c.example", "d.example", "e.example", "f.example"), names,
+                "order of the exported records");
+    }
+
+    public static void testExportFiltersByPrefixAcrossShards() throws Exception {
+        DNSCache first = new DNSCache(), second = new DNSCache();
+        first.addResult(address("www.b.example", 1, 300));
+        first.addResult(address("mail.example", 2, 300));
+        second.addResult(address("www.a.example", 3, 300));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DNSCacheExporter(DNSCacheExporter.Format.JSON, "WWW.", RecordType.A)
+                .export(List.of(first.snapshot(), second.snapshot()), out);
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+
+        assertEquals(2, lines.length, "records exported");
+        assertTrue(lines[0].startsWith("{\"name\":\"www.a.example\""), "first record: " + lines[0]);
+        assertTrue(lines[1].startsWith("{\"name\":\"www.b.example\""), "second record: " + lines[1]);
+    }
+
+    private static List<String> records(DNSCacheSnapshot snapshot) {
+        List<String> records = new ArrayList<>();
+        snapshot.forEachRecord(null, null, (node, record) ->
+                records.add(node.getHostName() + " " + node.getType() + " " + record.getTextResult()));
+        records.sort(null);
+        return records;
+    }
+
+    private static ResourceRecord address(String hostName, int host, long ttl) throws Exception {
+        return new ResourceRecord(hostName, RecordType.A, ttl, InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) host }));
+    }
+}
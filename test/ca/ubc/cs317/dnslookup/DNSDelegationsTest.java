@@ -0,0 +1,119 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests the delegation table shared by the workers: which referrals it keeps, how long it keeps
+ * them, and lookups of every worker starting at the servers of a zone learnt by one of them.
+ */
+public class DNSDelegationsTest {
+
+    private static final InetAddress TLD_SERVER = ResolverFixture.loopback(2);
+    private static final InetAddress ZONE_SERVER = ResolverFixture.loopback(3);
+
+    public static void testClosestEnclosingZoneIsFound() {
+        DNSDelegations delegations = new DNSDelegations();
+        delegations.addReferral("www.zone1.test", "", referral("test", "ns.test", TLD_SERVER, 300));
+        delegations.addReferral("www.zone1.test", "test", referral("zone1.test", "ns.zone1.test", ZONE_SERVER, 300));
+
+        DNSDelegations.Delegation zone = delegations.find("Mail.Zone1.test.");
+        assertEquals("zone1.test", zone.getZone(), "zone of a name in the zone");
+        assertEquals(List.of(ZONE_SERVER), zone.getServers(), "servers of a name in the zone");
+        assertEquals(List.of(TLD_SERVER), delegations.find("www.zone2.test").getServers(), "servers of a name in the TLD");
+        assertTrue(delegations.find("www.example") == null, "delegation of a name outside every zone");
+    }
+
+    public static void testUnrelatedReferralsAreIgnored() {
+        DNSDelegations delegations = new DNSDelegations();
+        // a zone that does not enclose the queried name, and the root zone
+        delegations.addReferral("www.zone1.test", "", referral("example", "ns.example", TLD_SERVER, 300));
+        delegations.addReferral("www.zone1.test", "", referral("", "a.root-servers.net", TLD_SERVER, 300));
+        // a zone whose server has no glue address
+        delegations.addReferral("www.zone1.test", "test", List.of(
+                new ResourceRecord("zone1.test", RecordType.NS, 300, "ns.elsewhere.example"),
+                new ResourceRecord("ns.other.test", RecordType.A, 300, ZONE_SERVER)));
+
+        assertEquals(0, delegations.size(), "delegations kept");
+    }
+
+    public static void testUpwardReferralIsIgnored() {
+        DNSDelegations delegations = new DNSDelegations();
+        // a server of zone1.test claiming to delegate its parent zone, or its own zone
+        delegations.addReferral("www.zone1.test", "zone1.test", referral("test", "ns.test", TLD_SERVER, 300));
+        delegations.addReferral("www.zone1.test", "zone1.test", referral("zone1.test", "ns.zone1.test", ZONE_SERVER, 300));
+        // a referral from a server whose zone is not known
+        delegations.addReferral("www.zone1.test", null, referral("zone1.test", "ns.zone1.test", ZONE_SERVER, 300));
+        assertEquals(0, delegations.size(), "delegations kept");
+
+        delegations.addReferral("www.sub.zone1.test", "zone1.test",
+                referral("sub.zone1.test", "ns.sub.zone1.test", ZONE_SERVER, 300));
+        assertEquals("sub.zone1.test", delegations.find("www.sub.zone1.test").getZone(), "zone delegated downward");
+    }
+
+    public static void testOutOfBailiwickGlueIsIgnored() {
+        DNSDelegations delegations = new DNSDelegations();
+        // glue for a name outside both the delegated zone and the server's zone
+        delegations.addReferral("www.zone1.test", "test", referral("zone1.test", "ns.example", ZONE_SERVER, 300));
+        assertEquals(0, delegations.size(), "delegations kept with out-of-bailiwick glue");
+
+        // glue within the server's zone is used, and glue outside it is not
+        delegations.addReferral("www.zone1.test", "test", List.of(
+                new ResourceRecord("zone1.test", RecordType.NS, 300, "ns.zone2.test"),
+                new ResourceRecord("zone1.test", RecordType.NS, 300, "ns.example"),
+                new ResourceRecord("ns.zone2.test", RecordType.A, 300, ZONE_SERVER),
+                new ResourceRecord("ns.example", RecordType.A, 300, TLD_SERVER)));
+        assertEquals(List.of(ZONE_SERVER), delegations.find("www.zone1.test").getServers(),
+                "servers of a zone with glue in and out of bailiwick");
+    }
+
+    public static void testExpiredDelegationIsRemoved() throws Exception {
+        DNSDelegations delegations = new DNSDelegations();
+        // the delegation expires with the first of its NS and glue records
+        List<ResourceRecord> referral = List.of(
+                new ResourceRecord("zone1.test", RecordType.NS, 300, "ns.zone1.test"),
+                new ResourceRecord("ns.zone1.test", RecordType.A, 1, ZONE_SERVER));
+        delegations.addReferral("www.zone1.test", "test", referral);
+        assertEquals(List.of(ZONE_SERVER), delegations.find("www.zone1.test").getServers(), "servers before expiry");
+
+        Thread.sleep(1100);
+        assertTrue(delegations.find("www.zone1.test") == null, "delegation after expiry");
+        assertEquals(0, delegations.size(), "expired delegations kept");
+    }
+
+    public static void testDelegationIsUsedByEveryWorker() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(3, 0)) {
+            resolve(resolver, "host0.zone1.test");
+            assertEquals(3L, resolver.getQueries(), "queries of the first lookup in the zone");
+
+            // names of the zone hash to every worker, and all go straight to the zone's server
+            for (int i = 1; i <= 6; i++)
+                resolve(resolver, "host" + i + ".zone1.test");
+            assertEquals(9L, resolver.getQueries(), "queries of later lookups in the zone");
+
+            // the referral is cached only by the worker that received it
+            int shards = 0;
+            DNSNode nsNode = new DNSNode("zone1.test", RecordType.NS);
+            for (int i = 0; i < DNSResolverWorker.getWorkerCount(); i++) {
+                DNSResolverWorker worker = resolver.getWorker(i);
+                if (!worker.submit(() -> worker.getCache().getCachedResults(nsNode)).get(2, TimeUnit.SECONDS).isEmpty())
+                    shards++;
+            }
+            assertEquals(1, shards, "cache shards holding the zone's NS records");
+        }
+    }
+
+    private static Set<ResourceRecord> resolve(ResolverFixture resolver, String hostName) throws Exception {
+        Set<ResourceRecord> results = resolver.resolve(hostName);
+        assertEquals(1, results.size(), "addresses of " + hostName);
+        return results;
+    }
+
+    private static List<ResourceRecord> referral(String zone, String nameServer, InetAddress address, long ttl) {
+        return List.of(new ResourceRecord(zone, RecordType.NS, ttl, nameServer),
+                new ResourceRecord(nameServer, RecordType.A, ttl, address));
+    }
+}
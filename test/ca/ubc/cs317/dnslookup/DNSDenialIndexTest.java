@@ -0,0 +1,165 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests the denial index: names covered by NSEC ranges, names whose NSEC3 hashes (checked
+ * against the examples of RFC 5155) are covered, and the negative responses ranges are taken
+ * from, which must come from the servers of the zone and not outlive its negative TTL.
+ */
+public class DNSDenialIndexTest {
+
+    private static final int NOERROR = 0;
+    private static final int NXDOMAIN = 3;
+
+    public static void testNameCoveredByNSECIsDenied() {
+        DNSDenialIndex index = new DNSDenialIndex();
+        index.addAuthority("b.example", "example", true, NXDOMAIN, 0, nsecResponse("example", 300, 300));
+
+        assertTrue(index.isDenied("b.example"), "name covered by a range");
+        assertTrue(index.isDenied("B.Example."), "name covered by a range, in another case");
+        assertTrue(index.isDenied("d.example"), "name covered by the last range, which wraps around");
+        assertFalse(index.isDenied("a.example"), "name at the start of a range");
+        assertFalse(index.isDenied("c.example"), "name at the end of a range");
+        assertFalse(index.isDenied("b.other"), "name of another zone");
+    }
+
+    public static void testNSEC3HashesMatchRFC5155() {
+        // the name error example of RFC 5155 (appendix B.1), with the opt-out flag cleared: the
+        // closest encloser x.w.example, the next closer name c.x.w.example and the wildcard
+        // *.x.w.example are each matched or covered by an NSEC3 record
+        List<ResourceRecord> authority = new ArrayList<>();
+        authority.add(soa("example", 3600, 3600));
+        authority.add(nsec3("b4um86eghhds6nea196smvmlo4ors995", "gjeqe526plbf1g8mklp59enfd789njgi"));
+        authority.add(nsec3("0p9mhaveqvm6t7vbl5lop2u3t2rp3tom", "2t7b4g4vsa5smi47k61mv5bv1a22bojr"));
+        authority.add(nsec3("35mthgpgcu1qg68fab165klnsnk3dpvl", "b4um86eghhds6nea196smvmlo4ors995"));
+        DNSDenialIndex index = new DNSDenialIndex();
+        index.addAuthority("a.c.x.w.example", "example", true, NXDOMAIN, 0, authority);
+
+        assertTrue(index.isDenied("a.c.x.w.example"), "name of the RFC 5155 name error example");
+        assertTrue(index.isDenied("c.x.w.example"), "next closer name of the example");
+        assertFalse(index.isDenied("x.w.example"), "closest encloser, which exists");
+        assertFalse(index.isDenied("a.example"), "name whose hash is an owner name, which exists");
+    }
+
+    public static void testNonAuthoritativeResponseIsIgnored() {
+        DNSDenialIndex index = new DNSDenialIndex();
+        index.addAuthority("b.example", "example", false, NXDOMAIN, 0, nsecResponse("example", 300, 300));
+        assertFalse(index.isDenied("b.example"), "name denied by a non-authoritative response");
+    }
+
+    public static void testOnlyNegativeResponsesAreUsed() {
+        DNSDenialIndex index = new DNSDenialIndex();
+        index.addAuthority("b.example", "example", true, NOERROR, 1, nsecResponse("example", 300, 300));
+        assertFalse(index.isDenied("b.example"), "name denied by a response with answers");
+
+        // a response without answers (NODATA) proves the ranges as well
+        index.addAuthority("a.example", "example", true, NOERROR, 0, nsecResponse("example", 300, 300));
+        assertTrue(index.isDenied("b.example"), "name covered by the ranges of a NODATA response");
+    }
+
+    public static void testServerCannotDenyNamesOutsideItsZone() {
+        DNSDenialIndex index = new DNSDenialIndex();
+        // a server of example claiming ranges of the root zone
+        index.addAuthority("b.example", "example", true, NXDOMAIN, 0, nsecResponse("", 300, 300));
+        assertFalse(index.isDenied("b.example"), "name denied by ranges of a zone above the server's");
+        assertFalse(index.isDenied("z.com"), "name of another zone denied by ranges of the root zone");
+
+        // ranges of a zone that does not enclose the question
+        index.addAuthority("b.other", "", true, NXDOMAIN, 0, nsecResponse("example", 300, 300));
+        assertFalse(index.isDenied("b.example"), "name denied by ranges of a zone unrelated to the question");
+
+        // the ranges of a zone below the server's are accepted, as from a server of both zones
+        index.addAuthority("b.example", "", true, NXDOMAIN, 0, nsecResponse("example", 300, 300));
+        assertTrue(index.isDenied("b.example"), "name denied by the server of a parent zone");
+    }
+
+    public static void testUnknownServerZoneIsIgnored() {
+        DNSDenialIndex index = new DNSDenialIndex();
+        index.addAuthority("b.example", null, true, NXDOMAIN, 0, nsecResponse("example", 300, 300));
+        assertFalse(index.isDenied("b.example"), "name denied by a server of an unknown zone");
+    }
+
+    public static void testRangesWithoutSOAAreIgnored() {
+        List<ResourceRecord> authority = nsecResponse("example", 300, 300);
+        authority.remove(0);
+        DNSDenialIndex index = new DNSDenialIndex();
+        index.addAuthority("b.example", "example", true, NXDOMAIN, 0, authority);
+        assertFalse(index.isDenied("b.example"), "name denied by ranges without the zone's SOA");
+    }
+
+    public static void testRangesExpireWithTTLAndNegativeTTL() throws Exception {
+        DNSDenialIndex bySoaMinimum = new DNSDenialIndex();
+        DNSDenialIndex byRecordTtl = new DNSDenialIndex();
+        bySoaMinimum.addAuthority("b.example", "example", true, NXDOMAIN, 0, nsecResponse("example", 300, 1));
+        byRecordTtl.addAuthority("b.example", "example", true, NXDOMAIN, 0, nsecResponse("example", 1, 300));
+        assertTrue(bySoaMinimum.isDenied("b.example") && byRecordTtl.isDenied("b.example"), "name denied before expiry");
+
+        Thread.sleep(1100);
+        assertFalse(bySoaMinimum.isDenied("b.example"), "range kept past the negative TTL of its zone");
+        assertFalse(byRecordTtl.isDenied("b.example"), "range kept past its record's TTL");
+    }
+
+    // builds the authority section of a negative response of a zone: its SOA record, and NSEC
+    // records for the names "", "a" and "c" of the zone, with the given TTL and SOA minimum
+    private static List<ResourceRecord> nsecResponse(String zone, long ttl, long minimum) {
+        String suffix = zone.isEmpty() ? "" : "." + zone;
+        List<ResourceRecord> authority = new ArrayList<>();
+        authority.add(soa(zone, 3600, minimum));
+        authority.add(nsec(zone, "a" + suffix, ttl));
+        authority.add(nsec("a" + suffix, "c" + suffix, ttl));
+        authority.add(nsec("c" + suffix, zone, ttl));
+        return authority;
+    }
+
+    private static ResourceRecord soa(String zone, long ttl, long minimum) {
+        ByteBuffer rdata = ByteBuffer.allocate(512);
+        DNSQueryHandler.encodeDomainName(rdata, "ns" + (zone.isEmpty() ? "" : "." + zone));
+        DNSQueryHandler.encodeDomainName(rdata, "hostmaster" + (zone.isEmpty() ? "" : "." + zone));
+        rdata.putInt(1).putInt(3600).putInt(600).putInt(86400).putInt((int) minimum);
+        return record(zone, RecordType.SOA, ttl, rdata);
+    }
+
+    private static ResourceRecord nsec(String owner, String next, long ttl) {
+        ByteBuffer rdata = ByteBuffer.allocate(512);
+        DNSQueryHandler.encodeDomainName(rdata, next);
+        // type bit map of window 0 holding A (1) only
+        rdata.put((byte) 0).put((byte) 1).put((byte) 0x40);
+        return record(owner, RecordType.NSEC, ttl, rdata);
+    }
+
+    // an NSEC3 record of the example zone of RFC 5155: SHA-1, 12 iterations, salt aabbccdd
+    private static ResourceRecord nsec3(String hash, String nextHash) {
+        ByteBuffer rdata = ByteBuffer.allocate(512);
+        rdata.put((byte) 1).put((byte) 0).putShort((short) 12);
+        rdata.put((byte) 4).put(new byte[] { (byte) 0xAA, (byte) 0xBB, (byte) 0xCC, (byte) 0xDD });
+        byte[] next = fromBase32Hex(nextHash);
+        rdata.put((byte) next.length).put(next);
+        return record(hash + ".example", RecordType.NSEC3, 3600, rdata);
+    }
+
+    private static ResourceRecord record(String owner, RecordType type, long ttl, ByteBuffer rdata) {
+        byte[] bytes = new byte[rdata.position()];
+        rdata.flip().get(bytes);
+        return new ResourceRecord(owner, type, ttl, new RecordData(type.getCode(), bytes));
+    }
+
+    private static byte[] fromBase32Hex(String text) {
+        String alphabet = "0123456789abcdefghijklmnopqrstuv";
+        byte[] bytes = new byte[text.length() * 5 / 8];
+        long buffer = 0;
+        int bits = 0, count = 0;
+        for (char c : text.toCharArray()) {
+            buffer = (buffer << 5) | alphabet.indexOf(c);
+            bits += 5;
+            if (bits >= 8) {
+                bits -= 8;
+                bytes[count++] = (byte) (buffer >> bits);
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,140 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests forwarding: the choice of a forwarder within a pool, and failing over to the next
+ * forwarder when one fails or does not respond. The stand-in zone server answers forwarded
+ * queries for the names of its zone.
+ */
+public class DNSForwardersTest {
+
+    private static final String ZONE = "zone1.test";
+    private static final InetAddress FAILING = ResolverFixture.loopback(5);
+    private static final InetAddress SILENT = ResolverFixture.loopback(6);
+
+    public static void testPoolPrefersLeastLoadedForwarder() {
+        DNSServerLatency latency = DNSServerLatency.getInstance();
+        latency.clear();
+        DNSForwarders forwarders = new DNSForwarders();
+        forwarders.setZone(ZONE, List.of(FAILING, SILENT));
+        DNSForwarders.Pool pool = forwarders.findPool("host1." + ZONE);
+
+        assertEquals(FAILING, pool.select(Set.of()), "first forwarder chosen");
+        assertEquals(SILENT, pool.select(Set.of()), "forwarder with fewer outstanding queries chosen");
+        pool.release(SILENT);
+        assertEquals(SILENT, pool.select(Set.of()), "forwarder chosen after its query was released");
+        assertTrue(pool.select(Set.of(FAILING, SILENT)) == null, "forwarder chosen while every one is excluded");
+
+        // among equally loaded forwarders, the fastest is chosen
+        pool.release(FAILING);
+        pool.release(SILENT);
+        latency.recordResponse(FAILING, 50);
+        latency.recordResponse(SILENT, 10);
+        assertEquals(SILENT, pool.select(Set.of()), "forwarder chosen over a faster one");
+    }
+
+    public static void testLongestZoneIsUsed() {
+        DNSForwarders forwarders = new DNSForwarders();
+        forwarders.setZone(".", List.of(FAILING));
+        forwarders.setZone(ZONE + ".", List.of(SILENT));
+
+        assertEquals(ZONE, forwarders.findPool("HOST1.Zone1.test.").getZone(), "zone of a name in the zone");
+        assertEquals("", forwarders.findPool("host1.zone2.test").getZone(), "zone of a name outside the zone");
+        assertTrue(forwarders.removeZone("."), "root zone removed");
+        assertTrue(forwarders.findPool("host1.zone2.test") == null, "pool of a name that is not forwarded");
+    }
+
+    public static void testServerFailureFailsOverToNextForwarder() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0);
+             FailingForwarder failing = new FailingForwarder(resolver.getPort())) {
+            DNSForwarders.getInstance().setZone(ZONE, List.of(FAILING, DNSStubNameServer.ZONE_ADDRESS));
+
+            assertEquals(1, resolver.resolve("host1." + ZONE).size(), "addresses after failing over");
+            assertEquals(1, failing.getQueries(), "queries to the failing forwarder");
+            assertTrue(DNSServerLatency.getInstance().getSrtt(FAILING) > DNSServerLatency.getInstance()
+                    .getSrtt(DNSStubNameServer.ZONE_ADDRESS), "failing forwarder not avoided");
+
+            // with both forwarders idle, the next lookup goes to the one that answered
+            assertEquals(1, resolver.resolve("host2." + ZONE).size(), "addresses of another name");
+            assertEquals(1, failing.getQueries(), "queries to the failing forwarder after it failed");
+            assertEquals(2L, resolver.getQueries(), "queries to the answering forwarder");
+        } finally {
+            DNSForwarders.getInstance().removeZone(ZONE);
+        }
+    }
+
+    public static void testSilentForwarderFailsOverAfterTimeout() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0)) {
+            DNSForwarders.getInstance().setZone(ZONE, List.of(SILENT, DNSStubNameServer.ZONE_ADDRESS));
+
+            long start = System.currentTimeMillis();
+            assertEquals(1, resolver.resolve("host1." + ZONE).size(), "addresses after failing over");
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue(elapsed >= 1500 && elapsed < 4000, "lookup time with a silent forwarder: " + elapsed + " ms");
+            assertEquals(1L, resolver.getQueries(), "queries to the answering forwarder");
+        } finally {
+            DNSForwarders.getInstance().removeZone(ZONE);
+        }
+    }
+
+    public static void testLookupFailsWhenEveryForwarderFails() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0);
+             FailingForwarder failing = new FailingForwarder(resolver.getPort())) {
+            DNSForwarders.getInstance().setZone(ZONE, List.of(FAILING));
+
+            assertTrue(resolver.resolve("host1." + ZONE).isEmpty(), "addresses with every forwarder failing");
+            assertEquals(1, failing.getQueries(), "queries to the failing forwarder");
+            assertEquals(0L, resolver.getQueries(), "forwarded name iterated from the root");
+        } finally {
+            DNSForwarders.getInstance().removeZone(ZONE);
+        }
+    }
+
+    /** A forwarder that answers every query with a server failure.
+     */
+    private static class FailingForwarder implements AutoCloseable {
+
+        private final DatagramSocket socket;
+        private final AtomicInteger queries = new AtomicInteger();
+
+        FailingForwarder(int port) throws IOException {
+            socket = new DatagramSocket(port, FAILING);
+            Thread thread = new Thread(this::receiveLoop, "failing-forwarder");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getQueries() {
+            return queries.get();
+        }
+
+        private void receiveLoop() {
+            byte[] buffer = new byte[DNSPacketCache.MAX_UDP_MESSAGE_SIZE];
+            while (!socket.isClosed()) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                    queries.incrementAndGet();
+                    // the query itself, with QR, RD, RA and RCODE 2 (server failure)
+                    buffer[2] = (byte) 0x81;
+                    buffer[3] = (byte) 0x82;
+                    socket.send(new DatagramPacket(buffer, packet.getLength(), packet.getSocketAddress()));
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests the load generator: the intended send times of its schedules, the percentiles of its
+ * report, and the outcomes of UDP queries sent to the stand-in zone server, which answers them
+ * directly.
+ */
+public class DNSLoadGeneratorTest {
+
+    private static final long MILLIS = 1_000_000L;
+
+    public static void testSyntheticQueriesAreEvenlySpaced() {
+        List<DNSLoadGenerator.ScheduledQuery> schedule = DNSLoadGenerator.synthesize(100, 4, 1.0, RecordType.AAAA,
+                50, 2, new Random(1));
+
+        assertEquals(100, schedule.size(), "queries in the schedule");
+        for (int i = 0; i < schedule.size(); i++) {
+            DNSNode node = schedule.get(i).getNode();
+            assertEquals(i * 20 * MILLIS, schedule.get(i).getOffset(), "intended send time of query " + i);
+            assertEquals(RecordType.AAAA, node.getType(), "type of query " + i);
+            assertTrue(node.getHostName().matches("host(\\d+)\\.zone[0-3]\\.test"), "name " + node.getHostName());
+        }
+    }
+
+    public static void testLogKeepsRecordedSpacing() throws Exception {
+        File log = File.createTempFile("queries", ".log");
+        try {
+            try (FileWriter writer = new FileWriter(log)) {
+                writer.write("# name type timestamp\n");
+                writer.write("a.test A 5.0\n");
+                writer.write("\n");
+                writer.write("c.test MX 5.5\n");
+                writer.write("b.test AAAA 7.25\n");
+            }
+
+            List<DNSLoadGenerator.ScheduledQuery> recorded = DNSLoadGenerator.readLog(log.getPath(), 0);
+            assertEquals(3, recorded.size(), "queries in the log");
+            assertEquals(0L, recorded.get(0).getOffset(), "intended send time of the first query");
+            assertEquals(500 * MILLIS, recorded.get(1).getOffset(), "intended send time of the second query");
+            assertEquals(RecordType.MX, recorded.get(1).getNode().getType(), "type of the second query");
+            assertEquals(2250 * MILLIS, recorded.get(2).getOffset(), "intended send time of the third query");
+            assertEquals("b.test", recorded.get(2).getNode().getHostName(), "third query");
+
+            List<DNSLoadGenerator.ScheduledQuery> paced = DNSLoadGenerator.readLog(log.getPath(), 4);
+            for (int i = 0; i < paced.size(); i++)
+                assertEquals(i * 250 * MILLIS, paced.get(i).getOffset(), "intended send time at 4 qps of query " + i);
+        } finally {
+            log.delete();
+        }
+    }
+
+    public static void testPercentilesUseNearestRank() {
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = (i + 1) * MILLIS;
+
+        assertEquals(1.0, DNSLoadGenerator.percentile(sorted, 0), "p0");
+        assertEquals(50.0, DNSLoadGenerator.percentile(sorted, 50), "p50");
+        assertEquals(99.0, DNSLoadGenerator.percentile(sorted, 99), "p99");
+        assertEquals(100.0, DNSLoadGenerator.percentile(sorted, 99.9), "p99.9");
+        assertEquals(7.0, DNSLoadGenerator.percentile(new long[] { 7 * MILLIS }, 99.9), "p99.9 of one latency");
+    }
+
+    public static void testLatenciesIncludeServerDelay() throws Exception {
+        int port = ResolverFixture.freePort();
+        DNSStubNameServer stub = new DNSStubNameServer(port, 300, 50);
+        try {
+            DNSLoadGenerator.Outcomes outcomes = run(port, schedule(20, RecordType.A), 2000);
+
+            long[] sorted = outcomes.getSortedLatencies();
+            assertEquals(20, sorted.length, "queries answered");
+            assertEquals(0L, outcomes.getTimeouts(), "queries timed out");
+            assertEquals(0L, outcomes.getEmptyAnswers(), "empty answers");
+            double p50 = DNSLoadGenerator.percentile(sorted, 50);
+            double p99 = DNSLoadGenerator.percentile(sorted, 99);
+            assertTrue(p50 >= 50 && p50 < 1000, "p50 of " + p50 + " ms with a 50 ms server");
+            assertTrue(p99 >= p50 && p99 < 1000, "p99 of " + p99 + " ms with a 50 ms server");
+        } finally {
+            stub.close();
+        }
+    }
+
+    public static void testLostQueriesTimeOut() throws Exception {
+        int port = ResolverFixture.freePort();
+        DNSStubNameServer stub = new DNSStubNameServer(port, 300, 0);
+        try {
+            stub.dropAnswers(RecordType.A);
+            List<DNSLoadGenerator.ScheduledQuery> schedule = schedule(10, RecordType.AAAA);
+            schedule.addAll(schedule(10, RecordType.A));
+            schedule.sort(Comparator.comparingLong(DNSLoadGenerator.ScheduledQuery::getOffset));
+
+            long start = System.nanoTime();
+            DNSLoadGenerator.Outcomes outcomes = run(port, schedule, 200);
+            long waited = (System.nanoTime() - start) / MILLIS;
+
+            // the run only returns once every lost query has reached its deadline
+            assertTrue(waited >= 200, "run returned after " + waited + " ms");
+            assertEquals(10, outcomes.getSortedLatencies().length, "queries answered");
+            assertEquals(10L, outcomes.getTimeouts(), "lost queries timed out");
+        } finally {
+            stub.close();
+        }
+    }
+
+    public static void testLateRepliesAreIgnored() throws Exception {
+        int port = ResolverFixture.freePort();
+        DNSStubNameServer stub = new DNSStubNameServer(port, 300, 300);
+        try {
+            DNSLoadGenerator.Outcomes outcomes = run(port, schedule(5, RecordType.A), 100);
+            assertEquals(5L, outcomes.getTimeouts(), "queries timed out");
+
+            // the replies arrive after the run, and are not counted as latencies
+            Thread.sleep(400);
+            assertEquals(0, outcomes.getSortedLatencies().length, "late replies counted");
+            assertEquals(5L, outcomes.getTimeouts(), "queries timed out after the replies arrived");
+        } finally {
+            stub.close();
+        }
+    }
+
+    // queries for names of the stand-in zone server, one every 10 ms
+    private static List<DNSLoadGenerator.ScheduledQuery> schedule(int count, RecordType type) {
+        List<DNSLoadGenerator.ScheduledQuery> schedule = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            schedule.add(new DNSLoadGenerator.ScheduledQuery(new DNSNode("host" + i + ".zone1.test", type),
+                    i * 10 * MILLIS));
+        return schedule;
+    }
+
+    private static DNSLoadGenerator.Outcomes run(int port, List<DNSLoadGenerator.ScheduledQuery> schedule,
+                                                 long timeout) throws Exception {
+        DNSLoadGenerator.Outcomes outcomes = new DNSLoadGenerator.Outcomes(schedule.size());
+        DNSLoadGenerator.runUdp(schedule, new InetSocketAddress(DNSStubNameServer.ZONE_ADDRESS, port), timeout,
+                outcomes);
+        return outcomes;
+    }
+}
@@ -0,0 +1,199 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests the packet cache: invalidation of stored responses, responses whose records changed
+ * while they were being encoded, and truncation to the client's payload size.
+ */
+public class DNSPacketCacheTest {
+
+    private static final int CLASS_IN = 1;
+    private static final int HEADER_LENGTH = 12;
+    private static final DNSNode NODE = new DNSNode("www.example.com", RecordType.A);
+
+    public static void testRepeatQueryIsAnsweredFromCache() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        byte[] query = query(NODE, 0x1111, 0);
+        byte[] out = new byte[DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE];
+        store(cache, query, addresses(NODE.getHostName(), 2), Collections.emptySet(), cache.getGeneration(), 0);
+
+        byte[] repeat = query(NODE, 0x2222, 0);
+        int length = cache.answer(repeat, questionEnd(repeat), NODE, CLASS_IN, 0, out);
+        assertTrue(length > 0, "repeat query not answered from the cache");
+        assertEquals(0x2222, readShort(out, 0), "transaction ID of the repeat query");
+        assertEquals(2, readShort(out, 6), "answers");
+    }
+
+    public static void testInvalidatedResponseIsDropped() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        byte[] query = query(NODE, 1, 0);
+        store(cache, query, addresses(NODE.getHostName(), 1), Collections.emptySet(), cache.getGeneration(), 0);
+        assertEquals(1, cache.size(), "stored responses");
+
+        cache.invalidate(new DNSNode("WWW.Example.com", RecordType.A));
+        assertEquals(0, cache.size(), "stored responses after invalidation");
+        assertEquals(-1, cache.answer(query, questionEnd(query), NODE, CLASS_IN, 0, new byte[512]),
+                "answer after invalidation");
+    }
+
+    public static void testResponseInvalidatedWhileEncodedIsNotStored() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        byte[] query = query(NODE, 1, 0);
+        long generation = cache.getGeneration();
+        // the record is replaced in the DNS cache after the resolver read it
+        cache.invalidate(NODE);
+
+        int length = store(cache, query, addresses(NODE.getHostName(), 1), Collections.emptySet(), generation, 0);
+        assertTrue(length > 0, "stale response still answers the query it was resolved for");
+        assertEquals(0, cache.size(), "stale response stored");
+
+        // a response read after the invalidation is stored
+        store(cache, query, addresses(NODE.getHostName(), 1), Collections.emptySet(), cache.getGeneration(), 0);
+        assertEquals(1, cache.size(), "fresh response stored");
+    }
+
+    public static void testResponseIsDroppedWhenCNameChainChanges() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        byte[] query = query(NODE, 1, 0);
+        DNSNode cname = new DNSNode(NODE.getHostName(), RecordType.CNAME);
+        DNSNode target = new DNSNode("edge.cdn.example.net", RecordType.A);
+        // results of the canonical name are returned under the alias
+        store(cache, query, addresses(NODE.getHostName(), 1), Set.of(cname, target), cache.getGeneration(), 0);
+
+        cache.invalidate(target);
+        assertEquals(0, cache.size(), "response kept after the canonical name's records changed");
+
+        store(cache, query, addresses(NODE.getHostName(), 1), Set.of(cname, target), cache.getGeneration(), 0);
+        cache.invalidate(cname);
+        assertEquals(0, cache.size(), "response kept after the alias' CNAME changed");
+    }
+
+    public static void testResponseIsKeptInShardOfQuestion() throws Exception {
+        DNSResolverWorker.startWorkers(2);
+        try {
+            // a canonical name owned by the other worker
+            DNSNode target = null;
+            for (int i = 0; target == null || DNSResolverWorker.forNode(target) == DNSResolverWorker.forNode(NODE); i++)
+                target = new DNSNode("edge" + i + ".cdn.example.net", RecordType.A);
+            DNSPacketCache shard = DNSPacketCache.forNode(NODE);
+            DNSPacketCache targetShard = DNSPacketCache.forNode(target);
+
+            store(shard, query(NODE, 1, 0), addresses(NODE.getHostName(), 1), Set.of(target), shard.getGeneration(), 0);
+            assertEquals(1, shard.size(), "responses in the shard of the question");
+            assertEquals(0, targetShard.size(), "responses in the shard of the canonical name");
+            assertEquals(1, DNSPacketCache.getTotalSize(), "responses in every shard");
+
+            // the canonical name's records change on the worker owning it
+            targetShard.invalidate(target);
+            assertEquals(0, shard.size(), "response kept after the canonical name's records changed");
+        } finally {
+            DNSResolverWorker.stopWorkers();
+        }
+    }
+
+    public static void testLongResponseIsTruncatedAtRecordBoundary() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        byte[] query = query(NODE, 1, 0);
+        byte[] out = new byte[DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE];
+        // 40 address records of 16 bytes each do not fit in 512 bytes
+        int length = cache.answer(query, questionEnd(query), NODE, CLASS_IN, addresses(NODE.getHostName(), 40),
+                Collections.emptySet(), cache.getGeneration(), 0, out);
+
+        assertTrue(length > 0 && length <= DNSPacketCache.MAX_UDP_MESSAGE_SIZE, "response length " + length);
+        assertTrue((out[2] & 0x02) != 0, "TC flag of a truncated response");
+        int answers = readShort(out, 6);
+        assertTrue(answers > 0 && answers < 40, "answers of a truncated response: " + answers);
+        assertEquals(questionEnd(query) + answers * 16, length, "truncated within a record");
+        assertValidAnswers(out, length, answers);
+    }
+
+    public static void testEdnsQueryGetsLongerResponse() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        byte[] query = query(NODE, 1, 1232);
+        byte[] out = new byte[DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE];
+        int length = cache.answer(query, questionEnd(query), NODE, CLASS_IN, addresses(NODE.getHostName(), 40),
+                Collections.emptySet(), cache.getGeneration(), 1232, out);
+
+        assertTrue((out[2] & 0x02) == 0, "TC flag of a response within the EDNS payload size");
+        assertEquals(40, readShort(out, 6), "answers");
+        assertEquals(1, readShort(out, 10), "OPT record in the additional section");
+        assertEquals(RecordType.OPT.getCode(), readShort(out, length - 10), "type of the last record");
+
+        // the same cached response is truncated for a client without EDNS
+        byte[] plain = query(NODE, 2, 0);
+        length = cache.answer(plain, questionEnd(plain), NODE, CLASS_IN, 0, out);
+        assertTrue(length <= DNSPacketCache.MAX_UDP_MESSAGE_SIZE && (out[2] & 0x02) != 0,
+                "cached response not truncated for a client without EDNS");
+        assertEquals(0, readShort(out, 10), "additional records for a client without EDNS");
+    }
+
+    public static void testResponseOverLargestPayloadIsTruncated() throws Exception {
+        DNSPacketCache cache = new DNSPacketCache();
+        byte[] query = query(NODE, 1, 4096);
+        byte[] out = new byte[DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE];
+        int length = cache.answer(query, questionEnd(query), NODE, CLASS_IN, addresses(NODE.getHostName(), 100),
+                Collections.emptySet(), cache.getGeneration(), DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE, out);
+
+        assertTrue(length <= DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE, "response length " + length);
+        assertTrue((out[2] & 0x02) != 0, "TC flag of a response over the largest payload size");
+        assertEquals(1, cache.size(), "truncated response stored");
+    }
+
+    private static int store(DNSPacketCache cache, byte[] query, List<ResourceRecord> answers, Set<DNSNode> sourceNodes,
+                             long generation, int payloadSize) {
+        return cache.answer(query, questionEnd(query), NODE, CLASS_IN, answers, sourceNodes, generation, payloadSize,
+                new byte[DNSQueryHandler.EDNS_UDP_PAYLOAD_SIZE]);
+    }
+
+    private static List<ResourceRecord> addresses(String hostName, int count) throws Exception {
+        List<ResourceRecord> records = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            records.add(new ResourceRecord(hostName, RecordType.A, 300,
+                    InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i })));
+        return records;
+    }
+
+    // builds a query for a node, with an OPT record if a payload size is given
+    private static byte[] query(DNSNode node, int id, int payloadSize) {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.putShort((short) id);
+        buffer.putShort((short) 0x0100);
+        buffer.putShort((short) 1);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) (payloadSize > 0 ? 1 : 0));
+        DNSQueryHandler.encodeDomainName(buffer, node.getHostName());
+        buffer.putShort((short) node.getType().getCode());
+        buffer.putShort((short) CLASS_IN);
+        if (payloadSize > 0) {
+            buffer.put((byte) 0);
+            buffer.putShort((short) RecordType.OPT.getCode());
+            buffer.putShort((short) payloadSize);
+            buffer.putInt(0);
+            buffer.putShort((short) 0);
+        }
+        return buffer.array();
+    }
+
+    private static int questionEnd(byte[] query) {
+        return RecordData.skipName(query, HEADER_LENGTH) + 4;
+    }
+
+    private static int readShort(byte[] message, int position) {
+        return ((message[position] & 0xFF) << 8) | (message[position + 1] & 0xFF);
+    }
+
+    // checks that a response parses with the given number of answers
+    private static void assertValidAnswers(byte[] out, int length, int answers) throws Exception {
+        Set<ResourceRecord> records = DNSQueryHandler.decodeAndCacheResponse(readShort(out, 0),
+                ByteBuffer.wrap(out, 0, length), new DNSCache());
+        assertEquals(answers, records.size(), "records of the truncated response");
+    }
+}
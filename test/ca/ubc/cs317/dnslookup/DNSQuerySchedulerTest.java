@@ -0,0 +1,148 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests admission control of upstream queries, and the release of the slots and transaction
+ * IDs of queries however they end.
+ */
+public class DNSQuerySchedulerTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    public static void testQueriesOverCapAreQueued() {
+        DNSQueryScheduler scheduler = new DNSQueryScheduler();
+        scheduler.setMaxOutstanding(2);
+        long deadline = System.currentTimeMillis() + 5000;
+
+        assertTrue(scheduler.acquire(LOOPBACK, 0, deadline).isDone(), "first query admitted");
+        assertTrue(scheduler.acquire(LOOPBACK, 0, deadline).isDone(), "second query admitted");
+        CompletableFuture<Void> third = scheduler.acquire(LOOPBACK, 0, deadline);
+        assertFalse(third.isDone(), "query over the cap admitted");
+        assertEquals(1, scheduler.getQueued(LOOPBACK), "queued queries");
+
+        scheduler.release(LOOPBACK);
+        assertTrue(third.isDone() && !third.isCompletedExceptionally(), "queued query admitted on release");
+        assertEquals(2, scheduler.getOutstanding(LOOPBACK), "outstanding queries");
+        scheduler.release(LOOPBACK);
+        scheduler.release(LOOPBACK);
+        assertEquals(0, scheduler.getOutstanding(LOOPBACK), "outstanding queries after release");
+    }
+
+    public static void testMostUrgentQueryIsAdmittedFirst() {
+        DNSQueryScheduler scheduler = new DNSQueryScheduler();
+        scheduler.setMaxOutstanding(1);
+        long deadline = System.currentTimeMillis() + 5000;
+
+        scheduler.acquire(LOOPBACK, 0, deadline);
+        CompletableFuture<Void> background = scheduler.acquire(LOOPBACK, 1, deadline);
+        CompletableFuture<Void> later = scheduler.acquire(LOOPBACK, 0, deadline + 1000);
+        CompletableFuture<Void> sooner = scheduler.acquire(LOOPBACK, 0, deadline);
+
+        scheduler.release(LOOPBACK);
+        assertTrue(sooner.isDone(), "earliest deadline of the highest priority admitted first");
+        scheduler.release(LOOPBACK);
+        assertTrue(later.isDone(), "highest priority admitted second");
+        assertFalse(background.isDone(), "lower priority admitted before higher priority");
+    }
+
+    public static void testQueuedQueryExpiresAtDeadline() throws Exception {
+        DNSQueryScheduler scheduler = new DNSQueryScheduler();
+        scheduler.setMaxOutstanding(1);
+        scheduler.acquire(LOOPBACK, 0, System.currentTimeMillis() + 5000);
+        CompletableFuture<Void> queued = scheduler.acquire(LOOPBACK, 0, System.currentTimeMillis() + 200);
+
+        // nothing waits on the admission: it fails on its own once the deadline passes
+        assertThrows(SocketTimeoutException.class, () -> {
+            try {
+                queued.get(2, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                throw (Exception) e.getCause();
+            }
+        }, "queued query past its deadline");
+        assertEquals(0, scheduler.getQueued(LOOPBACK), "expired query still queued");
+    }
+
+    public static void testCancelledQueryGivesUpItsPlace() {
+        DNSQueryScheduler scheduler = new DNSQueryScheduler();
+        scheduler.setMaxOutstanding(1);
+        long deadline = System.currentTimeMillis() + 5000;
+
+        scheduler.acquire(LOOPBACK, 0, deadline);
+        CompletableFuture<Void> cancelled = scheduler.acquire(LOOPBACK, 0, deadline);
+        CompletableFuture<Void> next = scheduler.acquire(LOOPBACK, 0, deadline + 1);
+        cancelled.cancel(false);
+        assertEquals(1, scheduler.getQueued(LOOPBACK), "cancelled query still queued");
+
+        scheduler.release(LOOPBACK);
+        assertTrue(next.isDone() && !next.isCompletedExceptionally(), "slot passed to the next query");
+        assertEquals(1, scheduler.getOutstanding(LOOPBACK), "outstanding queries");
+    }
+
+    public static void testUnansweredQueryReleasesSlotAndId() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0, LOOPBACK)) {
+            DNSQueryHandler.openSocket(1);
+            DNSQueryHandler.setServerPort(server.getLocalPort());
+            DNSQueryScheduler.getInstance().setMaxOutstanding(1);
+            DNSNode node = new DNSNode("www.example.com", RecordType.A);
+
+            DNSQueryHandler.PendingQuery sent = DNSQueryHandler.sendQuery(LOOPBACK, node, new DNSQueryBudget());
+            DNSQueryHandler.PendingQuery queued = DNSQueryHandler.sendQuery(LOOPBACK, node, new DNSQueryBudget());
+            assertEquals(1, DNSQueryScheduler.getInstance().getQueued(LOOPBACK), "queued queries");
+
+            // the first query is never answered: once its caller stops waiting, the queued
+            // query is admitted and sent in its place
+            CompletionException timeout = assertThrows(CompletionException.class,
+                    () -> sent.getResponse(System.currentTimeMillis() + 200).join(), "unanswered query");
+            assertTrue(timeout.getCause() instanceof SocketTimeoutException, "unanswered query times out");
+            server.setSoTimeout(2000);
+            DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+            server.receive(packet);
+            server.receive(packet);
+            assertEquals(queued.getTransactionID(),
+                    ((packet.getData()[0] & 0xFF) << 8) | (packet.getData()[1] & 0xFF), "second query sent");
+
+            queued.cancel();
+            assertEquals(0, DNSQueryScheduler.getInstance().getOutstanding(LOOPBACK), "scheduler slots held");
+            assertEquals(0, DNSQueryHandler.getSocketPool().get(0).getOutstanding(), "transaction IDs held");
+        } finally {
+            DNSQueryScheduler.getInstance().setMaxOutstanding(DNSQueryScheduler.DEFAULT_MAX_OUTSTANDING);
+            DNSQueryHandler.setServerPort(DNSQueryHandler.DEFAULT_DNS_PORT);
+            DNSQueryHandler.closeSocket();
+        }
+    }
+
+    public static void testQueryCancelledWhileQueuedIsNeverSent() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0, LOOPBACK)) {
+            DNSQueryHandler.openSocket(1);
+            DNSQueryHandler.setServerPort(server.getLocalPort());
+            DNSQueryScheduler.getInstance().setMaxOutstanding(1);
+            DNSNode node = new DNSNode("www.example.com", RecordType.AAAA);
+
+            DNSQueryHandler.PendingQuery sent = DNSQueryHandler.sendQuery(LOOPBACK, node, new DNSQueryBudget());
+            DNSQueryHandler.PendingQuery queued = DNSQueryHandler.sendQuery(LOOPBACK, node, new DNSQueryBudget());
+            queued.cancel();
+            assertThrows(CancellationException.class, () -> queued.getResponse(System.currentTimeMillis() + 1000).join(),
+                    "cancelled query");
+            assertEquals(0, DNSQueryScheduler.getInstance().getQueued(LOOPBACK), "cancelled query still queued");
+
+            sent.cancel();
+            assertEquals(-1, queued.getTransactionID(), "cancelled query was sent");
+            assertEquals(0, DNSQueryScheduler.getInstance().getOutstanding(LOOPBACK), "scheduler slots held");
+            assertEquals(0, DNSQueryHandler.getSocketPool().get(0).getOutstanding(), "transaction IDs held");
+        } finally {
+            DNSQueryScheduler.getInstance().setMaxOutstanding(DNSQueryScheduler.DEFAULT_MAX_OUTSTANDING);
+            DNSQueryHandler.setServerPort(DNSQueryHandler.DEFAULT_DNS_PORT);
+            DNSQueryHandler.closeSocket();
+        }
+    }
+}
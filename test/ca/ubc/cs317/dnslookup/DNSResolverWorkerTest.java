@@ -0,0 +1,98 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests the resolver workers: failing tasks, and lookups running as continuations so a worker
+ * never blocks or nests one lookup inside another while waiting for responses.
+ */
+public class DNSResolverWorkerTest {
+
+    public static void testFailedTaskCompletesFutureExceptionally() throws Exception {
+        DNSResolverWorker.startWorkers(1);
+        try {
+            DNSResolverWorker worker = DNSResolverWorker.getWorker(0);
+            CompletableFuture<Object> failed = worker.submit(() -> {
+                throw new StackOverflowError();
+            });
+            CompletionException ex = assertThrows(CompletionException.class, failed::join, "failed task");
+            assertTrue(ex.getCause() instanceof StackOverflowError, "error of the task");
+
+            // the worker keeps running the tasks of its mailbox
+            assertEquals(1, worker.submit(() -> 1).get(2, TimeUnit.SECONDS), "task after a failed task");
+        } finally {
+            DNSResolverWorker.stopWorkers();
+        }
+    }
+
+    public static void testFailedRawTaskDoesNotStopWorker() throws Exception {
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        DNSResolverWorker.setFailureHandler((failed, ex) -> failure.complete(ex));
+        DNSResolverWorker.startWorkers(1);
+        try {
+            DNSResolverWorker worker = DNSResolverWorker.getWorker(0);
+            worker.execute(() -> {
+                throw new IllegalStateException("task failure");
+            });
+            assertEquals(2, worker.submit(() -> 2).get(2, TimeUnit.SECONDS), "task after a failed task");
+            assertEquals("task failure", failure.get(2, TimeUnit.SECONDS).getMessage(), "failure handled");
+        } finally {
+            DNSResolverWorker.stopWorkers();
+            DNSResolverWorker.setFailureHandler(null);
+        }
+    }
+
+    public static void testAsyncTaskCompletesWithItsFuture() throws Exception {
+        DNSResolverWorker.startWorkers(1);
+        try {
+            DNSResolverWorker worker = DNSResolverWorker.getWorker(0);
+            CompletableFuture<String> pending = new CompletableFuture<>();
+            CompletableFuture<String> result = worker.submitAsync(() -> pending);
+
+            // the worker is free while the task's future is pending
+            assertEquals(3, worker.submit(() -> 3).get(2, TimeUnit.SECONDS), "task while another is pending");
+            assertFalse(result.isDone(), "async task completed early");
+            pending.complete("done");
+            assertEquals("done", result.get(2, TimeUnit.SECONDS), "async task result");
+        } finally {
+            DNSResolverWorker.stopWorkers();
+        }
+    }
+
+    public static void testWorkerStaysResponsiveDuringLookups() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 300)) {
+            List<CompletableFuture<Set<ResourceRecord>>> lookups = new ArrayList<>();
+            for (int i = 0; i < 50; i++)
+                lookups.add(resolver.lookup("host" + i + ".zone" + i + ".test"));
+
+            // every lookup is waiting for a response, none of them on the worker's thread
+            long start = System.currentTimeMillis();
+            resolver.getWorker(0).submit(() -> null).get(2, TimeUnit.SECONDS);
+            assertTrue(System.currentTimeMillis() - start < 200, "worker blocked by waiting lookups");
+
+            for (CompletableFuture<Set<ResourceRecord>> lookup : lookups)
+                assertFalse(lookup.get(10, TimeUnit.SECONDS).isEmpty(), "lookup without results");
+        }
+    }
+
+    public static void testBurstOfLookupsCompletesWithoutNesting() throws Exception {
+        // the load that used to overflow the worker stack: many slow lookups on few workers
+        try (ResolverFixture resolver = new ResolverFixture(2, 50)) {
+            List<CompletableFuture<Set<ResourceRecord>>> lookups = new ArrayList<>();
+            for (int i = 0; i < 2500; i++)
+                lookups.add(resolver.lookup("host" + i + ".zone" + (i % 20) + ".test"));
+
+            int resolved = 0;
+            for (CompletableFuture<Set<ResourceRecord>> lookup : lookups)
+                if (!lookup.get(20, TimeUnit.SECONDS).isEmpty())
+                    resolved++;
+            assertEquals(lookups.size(), resolved, "lookups with results");
+        }
+    }
+}
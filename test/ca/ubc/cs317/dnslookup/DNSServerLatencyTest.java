@@ -0,0 +1,98 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests the smoothed round-trip times of upstream servers and the choice of a server by them:
+ * unqueried servers are tried first, fast servers preferred, and slow servers retried later.
+ */
+public class DNSServerLatencyTest {
+
+    private static final InetAddress FAST = ResolverFixture.loopback(10);
+    private static final InetAddress SLOW = ResolverFixture.loopback(11);
+
+    public static void testResponsesAreSmoothed() {
+        DNSServerLatency latency = new DNSServerLatency();
+        assertEquals(0.0, latency.getSrtt(FAST), "SRTT of an unqueried server");
+        latency.recordResponse(FAST, 100);
+        assertEquals(100.0, latency.getSrtt(FAST), "SRTT after the first response");
+        latency.recordResponse(FAST, 20);
+        assertEquals(90.0, latency.getSrtt(FAST), "SRTT after a faster response");
+    }
+
+    public static void testTimeoutsDoubleSrtt() {
+        DNSServerLatency latency = new DNSServerLatency();
+        latency.recordResponse(SLOW, 40);
+        latency.recordTimeout(SLOW, 50);
+        assertEquals(80.0, latency.getSrtt(SLOW), "SRTT after a timeout");
+        latency.recordTimeout(SLOW, 1000);
+        assertEquals(1000.0, latency.getSrtt(SLOW), "SRTT after a timeout longer than twice the SRTT");
+        for (int i = 0; i < 10; i++)
+            latency.recordTimeout(SLOW, 1000);
+        assertEquals(60000.0, latency.getSrtt(SLOW), "SRTT after repeated timeouts");
+    }
+
+    public static void testUnqueriedServerIsTriedFirst() {
+        DNSServerLatency latency = new DNSServerLatency();
+        latency.recordResponse(FAST, 1);
+        for (int i = 0; i < 20; i++)
+            assertEquals(SLOW, latency.choose(List.of(FAST, SLOW)), "server chosen over an unqueried one");
+    }
+
+    public static void testFastServerIsPreferred() {
+        DNSServerLatency latency = new DNSServerLatency();
+        latency.recordResponse(FAST, 10);
+        latency.recordResponse(SLOW, 100);
+        for (int i = 0; i < 100; i++)
+            assertEquals(FAST, latency.choose(List.of(FAST, SLOW)), "server chosen over a faster one");
+        assertTrue(latency.getSrtt(SLOW) < 100, "SRTT of the server passed over did not decay");
+    }
+
+    public static void testSlowServerIsEventuallyRetried() {
+        DNSServerLatency latency = new DNSServerLatency();
+        latency.recordResponse(FAST, 10);
+        latency.recordResponse(SLOW, 100);
+        // each retry finds the slow server still slow
+        int slow = 0;
+        for (int i = 0; i < 200; i++)
+            if (latency.choose(List.of(FAST, SLOW)).equals(SLOW)) {
+                latency.recordResponse(SLOW, 100);
+                slow++;
+            }
+        assertTrue(slow > 0 && slow < 20, "choices of the slow server: " + slow);
+    }
+
+    public static void testLatencyIsMeasuredFromResponses() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 50)) {
+            resolver.resolve("host1.zone1.test");
+
+            DNSServerLatency latency = DNSServerLatency.getInstance();
+            for (InetAddress server : List.of(DNSStubNameServer.ROOT_ADDRESS, DNSStubNameServer.TLD_ADDRESS,
+                    DNSStubNameServer.ZONE_ADDRESS))
+                assertTrue(latency.getSrtt(server) >= 50 && latency.getSrtt(server) < 1000,
+                        "SRTT of " + server.getHostAddress() + ": " + latency.getSrtt(server));
+        }
+    }
+
+    public static void testLookupsAvoidSlowRootServer() throws Exception {
+        // nothing answers on the second root server, which timed out before
+        InetAddress silent = ResolverFixture.loopback(4);
+        DNSRootServers rootServers = DNSRootServers.getInstance();
+        try (ResolverFixture resolver = new ResolverFixture(1, 0)) {
+            DNSLookupService.setRootServer(null);
+            rootServers.setPrimed(List.of(DNSStubNameServer.ROOT_ADDRESS, silent), System.currentTimeMillis() + 60000);
+            DNSServerLatency.getInstance().recordTimeout(silent, 2000);
+
+            // names outside the stand-in hierarchy are denied by the root server, so every lookup starts there
+            for (int i = 0; i < 10; i++)
+                assertTrue(resolver.lookup("host" + i + ".invalid").get(1, TimeUnit.SECONDS).isEmpty(),
+                        "results of a denied name");
+            assertEquals(10L, resolver.getQueries(), "queries answered by the responsive root server");
+        } finally {
+            rootServers.setPrimed(List.of(), 0);
+        }
+    }
+}
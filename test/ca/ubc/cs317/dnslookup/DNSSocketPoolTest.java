@@ -0,0 +1,155 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests matching responses to outstanding queries in the socket pool.
+ */
+public class DNSSocketPoolTest {
+
+    private static final InetAddress LOOPBACK = InetAddress.getLoopbackAddress();
+
+    public static void testResponseCompletesMatchingQuery() throws Exception {
+        DNSSocketPool pool = new DNSSocketPool(1);
+        try (DatagramSocket server = new DatagramSocket(0, LOOPBACK)) {
+            DNSSocketPool.PooledSocket socket = pool.get(0);
+            CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+            int id = socket.register(LOOPBACK, server.getLocalPort(), response);
+
+            socket.send(packet(id, server.getLocalPort()));
+            DatagramPacket query = receive(server);
+            reply(server, query, id);
+
+            ByteBuffer buffer = response.get(2, TimeUnit.SECONDS);
+            assertEquals(id, ((buffer.get(0) & 0xFF) << 8) | (buffer.get(1) & 0xFF), "response ID");
+        } finally {
+            pool.close();
+        }
+    }
+
+    public static void testResponseWithUnknownIdIsDropped() throws Exception {
+        DNSSocketPool pool = new DNSSocketPool(1);
+        try (DatagramSocket server = new DatagramSocket(0, LOOPBACK)) {
+            DNSSocketPool.PooledSocket socket = pool.get(0);
+            CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+            int id = socket.register(LOOPBACK, server.getLocalPort(), response);
+
+            socket.send(packet(id, server.getLocalPort()));
+            DatagramPacket query = receive(server);
+            reply(server, query, (id + 1) & 0xFFFF);
+
+            assertThrows(TimeoutException.class, () -> response.get(300, TimeUnit.MILLISECONDS),
+                    "response with another ID");
+            // the right response is still accepted afterwards
+            reply(server, query, id);
+            response.get(2, TimeUnit.SECONDS);
+        } finally {
+            pool.close();
+        }
+    }
+
+    public static void testResponseFromOtherServerIsDropped() throws Exception {
+        DNSSocketPool pool = new DNSSocketPool(1);
+        try (DatagramSocket server = new DatagramSocket(0, LOOPBACK);
+             DatagramSocket impostor = new DatagramSocket(0, LOOPBACK)) {
+            DNSSocketPool.PooledSocket socket = pool.get(0);
+            CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+            int id = socket.register(LOOPBACK, server.getLocalPort(), response);
+
+            socket.send(packet(id, server.getLocalPort()));
+            DatagramPacket query = receive(server);
+            reply(impostor, query, id);
+
+            assertThrows(TimeoutException.class, () -> response.get(300, TimeUnit.MILLISECONDS),
+                    "response from another port");
+        } finally {
+            pool.close();
+        }
+    }
+
+    public static void testCancelledQueryIgnoresResponse() throws Exception {
+        DNSSocketPool pool = new DNSSocketPool(1);
+        try (DatagramSocket server = new DatagramSocket(0, LOOPBACK)) {
+            DNSSocketPool.PooledSocket socket = pool.get(0);
+            CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+            int id = socket.register(LOOPBACK, server.getLocalPort(), response);
+
+            socket.send(packet(id, server.getLocalPort()));
+            DatagramPacket query = receive(server);
+            socket.cancel(id);
+            assertEquals(0, socket.getOutstanding(), "outstanding queries after cancel");
+            reply(server, query, id);
+
+            assertThrows(TimeoutException.class, () -> response.get(300, TimeUnit.MILLISECONDS),
+                    "response to a cancelled query");
+        } finally {
+            pool.close();
+        }
+    }
+
+    public static void testOutstandingIdsAreUnique() throws Exception {
+        DNSSocketPool pool = new DNSSocketPool(1);
+        try {
+            DNSSocketPool.PooledSocket socket = pool.get(0);
+            Set<Integer> ids = new HashSet<>();
+            for (int i = 0; i < 20000; i++)
+                assertTrue(ids.add(socket.register(LOOPBACK, 53, new CompletableFuture<>())), "duplicate ID");
+            assertEquals(20000, socket.getOutstanding(), "outstanding queries");
+        } finally {
+            pool.close();
+        }
+    }
+
+    public static void testFullSocketRejectsQueries() throws Exception {
+        DNSSocketPool pool = new DNSSocketPool(1);
+        try {
+            DNSSocketPool.PooledSocket socket = pool.get(0);
+            int id = -1;
+            for (int i = 0; i < DNSSocketPool.MAX_OUTSTANDING_PER_SOCKET; i++)
+                id = socket.register(LOOPBACK, 53, new CompletableFuture<>());
+            assertThrows(IOException.class, () -> socket.register(LOOPBACK, 53, new CompletableFuture<>()),
+                    "query registered on a full socket");
+
+            socket.cancel(id);
+            socket.register(LOOPBACK, 53, new CompletableFuture<>());
+            assertEquals(DNSSocketPool.MAX_OUTSTANDING_PER_SOCKET, socket.getOutstanding(), "outstanding queries");
+        } finally {
+            pool.close();
+        }
+    }
+
+    public static void testCloseFailsOutstandingQueries() throws Exception {
+        DNSSocketPool pool = new DNSSocketPool(1);
+        CompletableFuture<ByteBuffer> response = new CompletableFuture<>();
+        pool.get(0).register(LOOPBACK, 53, response);
+        pool.close();
+        assertTrue(response.isCompletedExceptionally(), "query still outstanding after close");
+    }
+
+    private static DatagramPacket packet(int id, int port) {
+        byte[] message = { (byte) (id >> 8), (byte) id, 0x01, 0x00, 0, 0, 0, 0, 0, 0, 0, 0 };
+        return new DatagramPacket(message, message.length, LOOPBACK, port);
+    }
+
+    private static DatagramPacket receive(DatagramSocket server) throws Exception {
+        server.setSoTimeout(2000);
+        DatagramPacket query = new DatagramPacket(new byte[512], 512);
+        server.receive(query);
+        return query;
+    }
+
+    private static void reply(DatagramSocket from, DatagramPacket query, int id) throws Exception {
+        byte[] message = { (byte) (id >> 8), (byte) id, (byte) 0x81, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0 };
+        from.send(new DatagramPacket(message, message.length, query.getSocketAddress()));
+    }
+}
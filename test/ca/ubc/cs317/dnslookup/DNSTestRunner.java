@@ -0,0 +1,44 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/** Runs the tests of the classes named on the command line. Every public static method of a
+ * test class whose name starts with "test" and that takes no arguments is a test; it passes if
+ * it returns, and fails if it throws. The runner exits with a non-zero status if any test fails.
+ */
+public class DNSTestRunner {
+
+    public static void main(String[] args) throws ClassNotFoundException {
+        int passed = 0, failed = 0;
+        for (String className : args) {
+            Method[] methods = Class.forName(className).getMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+            for (Method method : methods) {
+                if (!method.getName().startsWith("test") || method.getParameterCount() != 0
+                        || !Modifier.isStatic(method.getModifiers()))
+                    continue;
+
+                String name = className.substring(className.lastIndexOf('.') + 1) + "." + method.getName();
+                long start = System.currentTimeMillis();
+                try {
+                    method.invoke(null);
+                    passed++;
+                    System.out.printf("PASS %-60s %6d ms\n", name, System.currentTimeMillis() - start);
+                } catch (InvocationTargetException e) {
+                    failed++;
+                    System.out.printf("FAIL %-60s %6d ms\n", name, System.currentTimeMillis() - start);
+                    e.getCause().printStackTrace(System.out);
+                } catch (IllegalAccessException e) {
+                    failed++;
+                    System.out.println("FAIL " + name + ": " + e);
+                }
+            }
+        }
+        System.out.println(passed + " passed, " + failed + " failed");
+        System.exit(failed == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,54 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests the cache warm-up, which must resolve its list and then let startup go on, even when
+ * some of its lookups never complete.
+ */
+public class DNSWarmUpTest {
+
+    public static void testWarmUpResolvesList() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(2, 0)) {
+            List<DNSNode> nodes = nodes(5);
+            nodes.add(new DNSNode("missing.invalid", RecordType.A));
+
+            DNSWarmUp.Result result = new DNSWarmUp(100, 4).run(nodes);
+            assertTrue(result.isComplete(), "warm-up not complete");
+            assertEquals(5, result.getResolved(), "names resolved");
+            long queries = resolver.getQueries();
+            resolver.resolve(nodes.get(0));
+            assertEquals(queries, resolver.getQueries(), "upstream queries for a warmed-up name");
+        }
+    }
+
+    public static void testWarmUpStopsAtDeadline() throws Exception {
+        try (ResolverFixture resolver = new ResolverFixture(1, 0)) {
+            // the only worker is stuck, so no lookup returns its permit
+            CompletableFuture<Void> stuck = new CompletableFuture<>();
+            resolver.getWorker(0).submit(stuck::join);
+            try {
+                long start = System.currentTimeMillis();
+                DNSWarmUp.Result result = new DNSWarmUp(1000, 2, 200).run(nodes(5));
+                long elapsed = System.currentTimeMillis() - start;
+
+                assertTrue(elapsed < 3000, "warm-up waited " + elapsed + " ms for stuck lookups");
+                assertFalse(result.isComplete(), "warm-up with stuck lookups reported complete");
+                assertEquals(2, result.getStarted(), "lookups started");
+                assertEquals(0, result.getFinished(), "lookups finished");
+            } finally {
+                stuck.complete(null);
+            }
+        }
+    }
+
+    private static List<DNSNode> nodes(int count) {
+        List<DNSNode> nodes = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            nodes.add(new DNSNode("host" + i + ".zone1.test", RecordType.A));
+        return nodes;
+    }
+}
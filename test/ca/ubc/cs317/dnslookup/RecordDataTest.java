@@ -0,0 +1,206 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ca.ubc.cs317.dnslookup.Assert.*;
+
+/** Tests decoding malformed RDATA and responses, which must fail with a decode exception and
+ * never with an exception from indexing past the end of the message.
+ */
+public class RecordDataTest {
+
+    private static final int ID = 0x1234;
+
+    public static void testTruncatedNameIsRejected() {
+        // a label of 10 bytes with only 3 left in the message
+        byte[] message = { 10, 'a', 'b', 'c' };
+        assertThrows(IllegalArgumentException.class, () -> RecordData.decodeName(message, 0, 1),
+                "label past the end of the message");
+        assertThrows(IllegalArgumentException.class, () -> RecordData.skipName(message, 0),
+                "skipping a label past the end of the message");
+        // a name with a valid label but no terminating zero within the message
+        byte[] unterminated = { 3, 'a', 'b', 'c' };
+        assertThrows(IllegalArgumentException.class, () -> RecordData.decodeName(unterminated, 0, 0),
+                "unterminated name");
+    }
+
+    public static void testPointerOutsideOfMessageIsRejected() {
+        byte[] message = { 3, 'c', 'o', 'm', 0, (byte) 0xC0, 0x7F };
+        assertThrows(IllegalArgumentException.class, () -> RecordData.decodeName(message, 0, 5),
+                "pointer past the end of the message");
+        byte[] truncated = { 3, 'c', 'o', 'm', 0, (byte) 0xC0 };
+        assertThrows(IllegalArgumentException.class, () -> RecordData.decodeName(truncated, 0, 5),
+                "pointer cut off by the end of the message");
+        assertEquals("com", RecordData.decodeName(new byte[] { 3, 'c', 'o', 'm', 0, (byte) 0xC0, 0 }, 0, 5),
+                "valid pointer");
+    }
+
+    public static void testPointerLoopIsRejected() {
+        byte[] message = { (byte) 0xC0, 2, (byte) 0xC0, 0 };
+        assertThrows(IllegalArgumentException.class, () -> RecordData.decodeName(message, 0, 0),
+                "compression pointer loop");
+    }
+
+    public static void testNameIsBoundedByMessageEnd() {
+        // the array is larger than the message, as with the socket pool's receive buffers
+        byte[] buffer = new byte[64];
+        byte[] name = { 3, 'c', 'o', 'm', 0 };
+        System.arraycopy(name, 0, buffer, 0, name.length);
+        assertEquals("com", RecordData.decodeName(buffer, 0, 5, 0), "name within the message");
+        assertThrows(IllegalArgumentException.class, () -> RecordData.decodeName(buffer, 0, 3, 0),
+                "name past the end of the message");
+    }
+
+    public static void testShortRDataFallsBackToGenericFormat() {
+        assertEquals("\\# 1 00", copied(RecordType.MX, 0).getTextResult(), "one-byte MX");
+        assertEquals("\\# 4 00010002", copied(RecordType.SRV, 0, 1, 0, 2).getTextResult(), "four-byte SRV");
+        assertEquals("\\# 6 010000000a00", copied(RecordType.NSEC3, 1, 0, 0, 0, 10, 0).getTextResult(),
+                "NSEC3 with a salt past the RDATA");
+        assertEquals("\\# 2 0510", copied(RecordType.TXT, 5, 0x10).getTextResult(), "TXT string past the RDATA");
+        assertEquals("\\# 3 010203", copied(RecordType.A, 1, 2, 3).getTextResult(), "three-byte A");
+        assertTrue(copied(RecordType.MX, 0).getMXResult() == null, "structured result of malformed MX");
+    }
+
+    public static void testMalformedNameRecordIsRejected() {
+        // an NS record refers to its message, so it is decoded as soon as it is parsed
+        byte[] message = { 0, 0, 5, 'a', 'b' };
+        RecordData data = RecordData.fromMessage(RecordType.NS.getCode(), message, 0, message.length, 2, 3);
+        assertThrows(IllegalArgumentException.class,
+                () -> new ResourceRecord("example.com", RecordType.NS, 60, data), "truncated NS name");
+    }
+
+    public static void testRDataIsCopiedOutOfMessage() {
+        byte[] message = { 0, 0, 10, 0, 0, 1, 0 };
+        RecordData address = RecordData.fromMessage(RecordType.A.getCode(), message, 0, message.length, 2, 4);
+        assertFalse(address.referencesMessage(), "A RDATA refers to the message");
+        message[2] = 99;
+        assertEquals("10.0.0.1", new ResourceRecord("example.com", RecordType.A, 60, address).getTextResult(),
+                "RDATA changed with the message");
+
+        byte[] named = { 3, 'c', 'o', 'm', 0, (byte) 0xC0, 0 };
+        RecordData name = RecordData.fromMessage(RecordType.CNAME.getCode(), named, 0, named.length, 5, 2);
+        assertTrue(name.referencesMessage(), "compressed CNAME RDATA copied without its message");
+        assertEquals("com", new ResourceRecord("www.com", RecordType.CNAME, 60, name).getTextResult(), "CNAME");
+    }
+
+    public static void testMalformedResponseCachesNothing() throws Exception {
+        ByteArrayOutputStream response = header(2, 0);
+        // a valid A record, then an NS record whose name points past the end of the message
+        record(response, RecordType.A, new byte[] { 10, 0, 0, 1 });
+        record(response, RecordType.NS, new byte[] { (byte) 0xC1, 0 });
+        DNSCache cache = new DNSCache();
+
+        assertThrows(IOException.class,
+                () -> DNSQueryHandler.decodeAndCacheResponse(ID, buffer(response), cache), "malformed response");
+        AtomicInteger cached = new AtomicInteger();
+        cache.forEachRecord((node, record) -> cached.incrementAndGet());
+        assertEquals(0, cached.get(), "records cached from a malformed response");
+    }
+
+    public static void testTruncatedResponseIsRejected() throws Exception {
+        ByteArrayOutputStream response = header(1, 0);
+        record(response, RecordType.A, new byte[] { 10, 0, 0, 1 });
+        byte[] bytes = response.toByteArray();
+        ByteBuffer truncated = ByteBuffer.wrap(bytes, 0, bytes.length - 2);
+
+        assertThrows(IOException.class,
+                () -> DNSQueryHandler.decodeAndCacheResponse(ID, truncated, new DNSCache()), "truncated response");
+    }
+
+    public static void testWellFormedResponseIsCached() throws Exception {
+        ByteArrayOutputStream response = header(1, 0);
+        record(response, RecordType.A, new byte[] { 10, 0, 0, 1 });
+        DNSCache cache = new DNSCache();
+
+        DNSQueryHandler.decodeAndCacheResponse(ID, buffer(response), cache);
+        assertEquals(1, cache.getCachedResults(new DNSNode("example.com", RecordType.A)).size(), "cached records");
+    }
+
+    public static void testRecordsAreCachedWithoutDecoding() throws Exception {
+        AtomicInteger decoded = new AtomicInteger();
+        DNSCache cache = new DNSCache();
+        for (int i = 0; i < 100; i++)
+            cache.addResult(new ResourceRecord("example.com", RecordType.A, 60,
+                    new CountingData(decoded, 10, 0, 0, i)), false);
+        // a record equal to one already cached
+        cache.addResult(new ResourceRecord("example.com", RecordType.A, 60, new CountingData(decoded, 10, 0, 0, 5)),
+                false);
+
+        assertEquals(100, cache.getCachedResults(new DNSNode("example.com", RecordType.A)).size(), "cached records");
+        assertEquals(0, decoded.get(), "records decoded to be cached");
+    }
+
+    public static void testRecordsAreComparedByRData() throws Exception {
+        ResourceRecord copied = copied(RecordType.A, 10, 0, 0, 1);
+        ResourceRecord built = new ResourceRecord("example.com", RecordType.A, 300,
+                InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }));
+        assertEquals(built, copied, "address record built from its address");
+        assertEquals(built.hashCode(), copied.hashCode(), "hash of an address record built from its address");
+        assertFalse(copied.equals(copied(RecordType.A, 10, 0, 0, 2)), "records of other addresses are equal");
+
+        // the RDATA is kept once decoded, so the hash does not change
+        int hash = copied(RecordType.TXT, 2, 'h', 'i').hashCode();
+        ResourceRecord decoded = copied(RecordType.TXT, 2, 'h', 'i');
+        decoded.getTextResult();
+        assertEquals(hash, decoded.hashCode(), "hash of a decoded record");
+    }
+
+    private static RecordData copiedData(RecordType type, int... bytes) {
+        byte[] rdata = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            rdata[i] = (byte) bytes[i];
+        return new RecordData(type.getCode(), rdata);
+    }
+
+    private static ResourceRecord copied(RecordType type, int... bytes) {
+        return new ResourceRecord("example.com", type, 60, copiedData(type, bytes));
+    }
+
+    // address RDATA counting how many times it is decoded
+    private static class CountingData extends RecordData {
+        private final AtomicInteger decoded;
+
+        private CountingData(AtomicInteger decoded, int... bytes) {
+            super(RecordType.A.getCode(), toBytes(bytes));
+            this.decoded = decoded;
+        }
+
+        @Override
+        public InetAddress decodeAddress() {
+            decoded.incrementAndGet();
+            return super.decodeAddress();
+        }
+
+        private static byte[] toBytes(int... bytes) {
+            byte[] rdata = new byte[bytes.length];
+            for (int i = 0; i < bytes.length; i++)
+                rdata[i] = (byte) bytes[i];
+            return rdata;
+        }
+    }
+
+    // writes the header and the question (example.com, A) of a response
+    private static ByteArrayOutputStream header(int answers, int authority) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(new byte[] { (byte) (ID >> 8), (byte) ID, (byte) 0x84, 0, 0, 1, 0, (byte) answers,
+                0, (byte) authority, 0, 0 });
+        out.writeBytes(new byte[] { 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 0, 1, 0, 1 });
+        return out;
+    }
+
+    // writes a record owned by the name of the question, with a TTL of 60 seconds
+    private static void record(ByteArrayOutputStream out, RecordType type, byte[] rdata) {
+        int code = type.getCode();
+        out.writeBytes(new byte[] { (byte) 0xC0, 12, (byte) (code >> 8), (byte) code, 0, 1, 0, 0, 0, 60,
+                (byte) (rdata.length >> 8), (byte) rdata.length });
+        out.writeBytes(rdata);
+    }
+
+    private static ByteBuffer buffer(ByteArrayOutputStream out) {
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+}
@@ -0,0 +1,131 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/** A resolver running against the stand-in hierarchy of DNSStubNameServer, for tests that go
+ * through whole lookups. Every fixture starts with no server latencies measured and no
+ * delegations known. Closing it stops the workers, the socket pool and the stand-in servers.
+ */
+public class ResolverFixture implements AutoCloseable {
+
+    public static final long LOOKUP_TIMEOUT = 5000;
+
+    private final DNSStubNameServer stub;
+    private final int port;
+
+    /**
+     * Starts the stand-in servers on a free port, and a resolver using them.
+     *
+     * @param workers Number of resolver workers.
+     * @param delay   Delay (in milliseconds) of every stand-in response.
+     */
+    public ResolverFixture(int workers, long delay) throws Exception {
+        port = freePort();
+        stub = new DNSStubNameServer(port, 300, delay);
+        DNSQueryHandler.openSocket(workers);
+        DNSQueryHandler.setServerPort(port);
+        DNSLookupService.setRootServer(DNSStubNameServer.ROOT_ADDRESS);
+        DNSServerLatency.getInstance().clear();
+        DNSDelegations.getInstance().clear();
+        DNSResolverWorker.startWorkers(workers);
+    }
+
+    /**
+     * Starts a lookup through the resolver.
+     *
+     * @param node Host name and record type to be looked up.
+     * @return A future completed with the results of the lookup.
+     */
+    public CompletableFuture<Set<ResourceRecord>> lookup(DNSNode node) {
+        return DNSLookupService.resolve(node);
+    }
+
+    public CompletableFuture<Set<ResourceRecord>> lookup(String hostName) {
+        return lookup(new DNSNode(hostName, RecordType.A));
+    }
+
+    /**
+     * Looks up a node, waiting up to LOOKUP_TIMEOUT milliseconds for its results.
+     */
+    public Set<ResourceRecord> resolve(DNSNode node) throws Exception {
+        return lookup(node).get(LOOKUP_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks up the addresses (A records) of a name, waiting up to LOOKUP_TIMEOUT milliseconds.
+     */
+    public Set<ResourceRecord> resolve(String hostName) throws Exception {
+        return resolve(new DNSNode(hostName, RecordType.A));
+    }
+
+    public DNSResolverWorker getWorker(int index) {
+        return DNSResolverWorker.getWorker(index);
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the number of queries the stand-in servers have received.
+     */
+    public long getQueries() {
+        return stub.getQueries();
+    }
+
+    /**
+     * Makes the stand-in zone server ignore queries of a record type (null to answer them all).
+     */
+    public void dropAnswers(RecordType type) {
+        stub.dropAnswers(type);
+    }
+
+    @Override
+    public void close() {
+        DNSResolverWorker.stopWorkers();
+        DNSQueryHandler.closeSocket();
+        DNSQueryHandler.setServerPort(DNSQueryHandler.DEFAULT_DNS_PORT);
+        DNSLookupService.setRootServer(null);
+        stub.close();
+    }
+
+    /**
+     * Returns the loopback address 127.0.0.host, as used by the stand-in servers and by tests
+     * for servers of their own.
+     */
+    public static InetAddress loopback(int host) {
+        try {
+            return InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) host });
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns a UDP port free on every loopback address the stand-in servers listen on.
+     */
+    static int freePort() throws Exception {
+        while (true) {
+            int port;
+            try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+                port = socket.getLocalPort();
+            }
+            if (isFree(port, DNSStubNameServer.TLD_ADDRESS) && isFree(port, DNSStubNameServer.ZONE_ADDRESS))
+                return port;
+        }
+    }
+
+    private static boolean isFree(int port, InetAddress address) {
+        try (DatagramSocket socket = new DatagramSocket(port, address)) {
+            return socket.isBound();
+        } catch (SocketException taken) {
+            return false;
+        }
+    }
+}